@@ -0,0 +1,112 @@
+package com.nlang.vm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Float sum and dot product over arrays of {@code size} elements.
+ * <p>
+ * {@code execute} runs a whole program: a bytecode loop with one ALOAD per element, or one FASUM /
+ * FADOT run by the scalar or the vector {@link ArrayKernels}. Every variant also allocates and fills
+ * its arrays with AFILL. {@code kernel} times the bulk instruction alone on arrays made once.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ArrayBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Execution {
+
+        @Param({"sum", "dot"})
+        String op;
+
+        @Param({"loop", "scalar", "vector"})
+        String mode;
+
+        @Param({"1000000"})
+        int size;
+
+        Program program;
+        ArrayKernels kernels;
+        OutputSink out;
+
+        @Setup
+        public void setUp() {
+            out = BenchmarkSupport.discardingSink();
+            program = Program.parse(source());
+            kernels = kernels(mode);
+        }
+
+        private String source() {
+            boolean dot = op.equals("dot");
+            StringBuilder sb = new StringBuilder("#code\nmain:0:0:\n");
+            sb.append("PUSH ").append(size).append("\nNEW_ARRAY\nSTORE 0\nLOAD 0\nPUSH 1.5\nAFILL\n");
+            sb.append("PUSH ").append(size).append("\nNEW_ARRAY\nSTORE 1\nLOAD 1\nPUSH 0.5\nAFILL\n");
+            if (!mode.equals("loop")) {
+                sb.append(dot ? "LOAD 0\nLOAD 1\nFADOT\n" : "LOAD 0\nFASUM\n");
+            } else {
+                sb.append("PUSH 0\nSTORE 2\nPUSH 0\nSTORE 3\n");
+                sb.append("loop:\nLOAD 3\nPUSH ").append(size).append("\nILT\nJZ done\n");
+                sb.append("LOAD 2\nLOAD 0\nLOAD 3\nALOAD\n");
+                if (dot) {
+                    sb.append("LOAD 1\nLOAD 3\nALOAD\nFMUL\n");
+                }
+                sb.append("FADD\nSTORE 2\nLOAD 3\nPUSH 1\nIADD\nSTORE 3\nJMP loop\n");
+                sb.append("done:\nLOAD 2\n");
+            }
+            sb.append("FPRINT\nSTOP\n");
+            return sb.toString();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Kernel {
+
+        @Param({"sum", "dot"})
+        String op;
+
+        @Param({"scalar", "vector"})
+        String mode;
+
+        @Param({"1000000"})
+        int size;
+
+        ArrayHeap heap;
+        int a;
+        int b;
+
+        @Setup
+        public void setUp() {
+            heap = new ArrayHeap(2 * size);
+            heap.kernels = kernels(mode);
+            a = heap.allocate(size);
+            b = heap.allocate(size);
+            heap.fill(a, Float.floatToIntBits(1.5f));
+            heap.fill(b, Float.floatToIntBits(0.5f));
+        }
+    }
+
+    private static ArrayKernels kernels(String mode) {
+        if (mode.equals("vector") && !(ArrayKernels.DEFAULT instanceof VectorKernels)) {
+            throw new IllegalStateException("jdk.incubator.vector is not available");
+        }
+        return mode.equals("scalar") ? ArrayKernels.SCALAR : ArrayKernels.DEFAULT;
+    }
+
+    @Benchmark
+    public void execute(Execution state) {
+        NVM vm = new NVM(state.program, NVM.Engine.THREADED, state.out);
+        vm.heapCapacity = 2 * state.size;
+        vm.heap().kernels = state.kernels;
+        vm.execute();
+    }
+
+    @Benchmark
+    public float kernel(Kernel state) {
+        return state.op.equals("dot") ? state.heap.floatDot(state.a, state.b) : state.heap.floatSum(state.a);
+    }
+}
@@ -0,0 +1,226 @@
+package com.nlang.vm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Helpers shared by the benchmarks: loading the shipped examples and generating synthetic sources.
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    static String readExample(String name) throws IOException {
+        return Files.readString(Path.of("examples", name + ".nbyte"));
+    }
+
+    static BytecodeLexer lex(String source) {
+        BytecodeLexer lexer = new BytecodeLexer();
+        lexer.parseCode(source);
+        return lexer;
+    }
+
+    /**
+     * Keeps PRINT output out of the benchmark log while still formatting every value.
+     */
+    static OutputSink discardingSink() {
+        return new BufferedOutputSink(OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Recursive fib(n), the call-heavy workload.
+     */
+    static String fibRecursive(int n) {
+        return """
+                #code
+                fib:1:1:
+                    LOAD 0
+                    PUSH 2
+                    ILT
+                    JZ recursion
+                    LOAD 0
+                    RET
+                recursion:
+                    LOAD 0
+                    PUSH 1
+                    ISUB
+                    CALL fib
+                    LOAD 0
+                    PUSH 2
+                    ISUB
+                    CALL fib
+                    IADD
+                    RET
+                main:0:0:
+                    PUSH %d
+                    CALL fib
+                    PRINT
+                    STOP
+                """.formatted(n);
+    }
+
+    /**
+     * A counted loop doing int and float arithmetic on locals, the dispatch-heavy workload.
+     */
+    static String arithmeticLoop(int iterations) {
+        return """
+                #code
+                loop:1:1:
+                    PUSH 0
+                    STORE 1
+                    PUSH 0
+                    STORE 2
+                    PUSH 1.0
+                    STORE 3
+                head:
+                    LOAD 1
+                    LOAD 0
+                    ILT
+                    JZ done
+                    LOAD 2
+                    LOAD 1
+                    PUSH 3
+                    IMUL
+                    IADD
+                    STORE 2
+                    LOAD 3
+                    PUSH 1.5
+                    FMUL
+                    PUSH 1.25
+                    FDIV
+                    STORE 3
+                    LOAD 1
+                    PUSH 1
+                    IADD
+                    STORE 1
+                    JMP head
+                done:
+                    LOAD 2
+                    RET
+                main:0:0:
+                    PUSH %d
+                    CALL loop
+                    PRINT
+                    STOP
+                """.formatted(iterations);
+    }
+
+    /**
+     * A loop calling a small two-argument leaf function on every iteration.
+     */
+    static String callLoop(int iterations) {
+        return """
+                #code
+                avg:1:2:
+                    LOAD 0
+                    LOAD 1
+                    IADD
+                    PUSH 2
+                    IDIV
+                    RET
+                loop:2:1:
+                    PUSH 0
+                    STORE 1
+                    PUSH 0
+                    STORE 2
+                head:
+                    LOAD 1
+                    LOAD 0
+                    ILT
+                    JZ done
+                    LOAD 2
+                    LOAD 1
+                    CALL avg
+                    STORE 2
+                    LOAD 1
+                    PUSH 1
+                    IADD
+                    STORE 1
+                    JMP head
+                done:
+                    LOAD 2
+                    RET
+                main:0:0:
+                    PUSH %d
+                    CALL loop
+                    PRINT
+                    STOP
+                """.formatted(iterations);
+    }
+
+    /**
+     * A loop printing an int and a float on every iteration, the output-heavy workload.
+     */
+    static String printLoop(int iterations) {
+        return """
+                #code
+                loop:1:1:
+                    PUSH 0
+                    STORE 1
+                head:
+                    LOAD 1
+                    LOAD 0
+                    ILT
+                    JZ done
+                    LOAD 1
+                    PRINT
+                    PUSH 0.25
+                    FPRINT
+                    LOAD 1
+                    PUSH 1
+                    IADD
+                    STORE 1
+                    JMP head
+                done:
+                    LOAD 1
+                    RET
+                main:0:0:
+                    PUSH %d
+                    CALL loop
+                    PRINT
+                    STOP
+                """.formatted(iterations);
+    }
+
+    /**
+     * A large straight-line source with roughly {@code instructions} instructions spread over
+     * {@code functions} functions, labels, comments and float literals, used to measure the lexer.
+     */
+    static String largeSource(int functions, int instructions) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#constants\n");
+        sb.append("0:\"generated\"\n\n");
+        sb.append("#code\n");
+        int perFunction = Math.max(1, instructions / functions);
+        for (int f = 1; f < functions; f++) {
+            sb.append("f").append(f).append(':').append(f).append(":1:\n");
+            for (int i = 0; i < perFunction; i += 8) {
+                sb.append("f").append(f).append("_l").append(i).append(":\n");
+                sb.append("    LOAD 0       // argument\n");
+                sb.append("    PUSH ").append(i).append('\n');
+                sb.append("    IADD\n");
+                sb.append("    STORE 1\n");
+                sb.append("    PUSH 2.5\n");
+                sb.append("    PUSH 0.5\n");
+                sb.append("    FMUL\n");
+                sb.append("    STORE 2\n");
+            }
+            sb.append("    LOAD 1\n");
+            sb.append("    RET\n\n");
+        }
+        sb.append("main:0:0:\n");
+        for (int f = 1; f < functions; f++) {
+            sb.append("    PUSH ").append(f).append('\n');
+            sb.append("    CALL f").append(f).append('\n');
+            sb.append("    PRINT\n");
+        }
+        sb.append("    LDC 0\n");
+        sb.append("    SPRINT\n");
+        sb.append("    STOP\n");
+        return sb.toString();
+    }
+}
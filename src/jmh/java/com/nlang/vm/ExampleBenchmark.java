@@ -0,0 +1,52 @@
+package com.nlang.vm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the programs shipped in ./examples, run from the project root.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExampleBenchmark {
+
+    @Param({"fibonacci_recursive", "fibonacci_pure", "fib_loop", "factorial_loop", "factorial_recursive", "float", "sieve", "strings"})
+    String example;
+
+    @Param({"SWITCH", "THREADED", "JIT", "REGISTER"})
+    NVM.Engine engine;
+
+    @Param({"false", "true"})
+    boolean fuse;
+
+    private int[] code;
+    private FunctionInfo[] functionTable;
+    private Map<Integer, String> stringPool;
+    private OutputSink out;
+
+    @Setup
+    public void setUp() throws IOException {
+        out = BenchmarkSupport.discardingSink();
+        Program program = Program.parse(BenchmarkSupport.readExample(example));
+        code = program.code;
+        functionTable = program.functionTable;
+        stringPool = program.stringPool;
+        if (fuse) {
+            PeepholeOptimizer.Result result = PeepholeOptimizer.optimize(code, functionTable);
+            code = result.code;
+            functionTable = result.functionTable;
+        }
+    }
+
+    @Benchmark
+    public void execute() {
+        new NVM(code, functionTable, stringPool, engine, out).execute();
+    }
+}
@@ -0,0 +1,74 @@
+package com.nlang.vm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many executions of one small program: parsing per request against one shared Program run
+ * sequentially, on a fixed pool sized to the machine and on virtual threads. Scores are
+ * executions per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutorBenchmark {
+
+    private static final int EXECUTIONS = 1000;
+
+    @Param({"reparse", "shared", "pool", "virtual"})
+    String mode;
+
+    @Param({"SWITCH", "THREADED"})
+    NVM.Engine engine;
+
+    private String source;
+    private Program program;
+    private ProgramExecutor executor;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = BenchmarkSupport.readExample("factorial_recursive");
+        program = Program.parse(source);
+        executor = switch (mode) {
+            case "pool" -> ProgramExecutor.fixedPool(program, engine, Runtime.getRuntime().availableProcessors());
+            case "virtual" -> ProgramExecutor.virtualThreads(program, engine);
+            default -> null;
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executor != null) {
+            executor.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXECUTIONS)
+    public Object run() {
+        switch (mode) {
+            case "reparse" -> {
+                for (int i = 0; i < EXECUTIONS; i++) {
+                    MemoryOutputSink out = new MemoryOutputSink();
+                    new NVM(Program.parse(source), engine, out).execute();
+                }
+                return null;
+            }
+            case "shared" -> {
+                for (int i = 0; i < EXECUTIONS; i++) {
+                    MemoryOutputSink out = new MemoryOutputSink();
+                    new NVM(program, engine, out).execute();
+                }
+                return null;
+            }
+            default -> {
+                return executor.runAll(EXECUTIONS);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.nlang.vm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BytecodeLexer.parseCode on large generated sources, against the streaming Assembler and loading
+ * the same program from a binary .nbc file. The shared source stays within the lexer's fixed
+ * function table; assembleManyFunctions spreads the same instruction count over 10000 functions.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LexerBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int instructions;
+
+    private String source;
+    private String manyFunctions;
+    private Path sourceFile;
+    private Path binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = BenchmarkSupport.largeSource(10, instructions);
+        manyFunctions = BenchmarkSupport.largeSource(10000, instructions);
+        sourceFile = Files.createTempFile("nvm-bench", ".nbyte");
+        Files.writeString(sourceFile, source);
+        binary = Files.createTempFile("nvm-bench", ".nbc");
+        NbcFormat.write(Program.parse(source), binary);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(sourceFile);
+        Files.deleteIfExists(binary);
+    }
+
+    @Benchmark
+    public int[] parseCode() {
+        BytecodeLexer lexer = new BytecodeLexer();
+        lexer.parseCode(source);
+        return lexer.getBytecode();
+    }
+
+    @Benchmark
+    public Program assemble() {
+        return Assembler.assemble(source);
+    }
+
+    @Benchmark
+    public Program assembleFile() throws IOException {
+        return Assembler.assemble(sourceFile);
+    }
+
+    @Benchmark
+    public Program assembleManyFunctions() {
+        return Assembler.assemble(manyFunctions);
+    }
+
+    @Benchmark
+    public Program loadNbc() throws IOException {
+        return NbcFormat.load(binary);
+    }
+}
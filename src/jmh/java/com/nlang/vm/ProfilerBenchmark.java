@@ -0,0 +1,52 @@
+package com.nlang.vm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of running with a {@link Profiler} attached at its default 1 ms sampling interval.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProfilerBenchmark {
+
+    @Param({"fibonacci_recursive", "fib_loop"})
+    String example;
+
+    @Param({"SWITCH", "THREADED"})
+    NVM.Engine engine;
+
+    @Param({"false", "true"})
+    boolean profile;
+
+    private Program program;
+    private Profiler profiler;
+    private OutputSink out;
+
+    @Setup
+    public void setUp() throws IOException {
+        out = BenchmarkSupport.discardingSink();
+        program = Program.parse(BenchmarkSupport.readExample(example));
+        profiler = profile ? new Profiler() : null;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (profiler != null) {
+            profiler.close();
+        }
+    }
+
+    @Benchmark
+    public void execute() {
+        NVM vm = new NVM(program, engine, out);
+        vm.setProfiler(profiler);
+        vm.execute();
+    }
+}
@@ -0,0 +1,46 @@
+package com.nlang.vm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * fibonacci_parallel for a larger n, with every SPAWN a plain call (spawnDepth 0) and forking to
+ * the default depth. The ratio of the two is the speedup on the common ForkJoinPool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpawnBenchmark {
+
+    @Param({"35"})
+    int n;
+
+    @Param({"0", "default"})
+    String spawnDepth;
+
+    @Param({"SWITCH", "THREADED"})
+    NVM.Engine engine;
+
+    private Program program;
+    private OutputSink out;
+
+    @Setup
+    public void setUp() throws IOException {
+        out = BenchmarkSupport.discardingSink();
+        program = Program.parse(BenchmarkSupport.readExample("fibonacci_parallel").replace("PUSH  30", "PUSH  " + n));
+    }
+
+    @Benchmark
+    public void execute() {
+        NVM vm = new NVM(program, engine, out);
+        if (!spawnDepth.equals("default")) {
+            vm.spawnDepth = Integer.parseInt(spawnDepth);
+        }
+        vm.execute();
+    }
+}
@@ -0,0 +1,59 @@
+package com.nlang.vm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generated workloads, larger than the examples: deep recursion, a long arithmetic loop and a
+ * call-per-iteration loop and a print-per-iteration loop.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SyntheticBenchmark {
+
+    @Param({"fib_recursive_27", "arithmetic_loop_1M", "call_loop_1M", "print_loop_1M"})
+    String workload;
+
+    @Param({"SWITCH", "THREADED", "JIT", "REGISTER"})
+    NVM.Engine engine;
+
+    @Param({"false", "true"})
+    boolean fuse;
+
+    private int[] code;
+    private FunctionInfo[] functionTable;
+    private Map<Integer, String> stringPool;
+    private OutputSink out;
+
+    @Setup
+    public void setUp() {
+        out = BenchmarkSupport.discardingSink();
+        String source = switch (workload) {
+            case "fib_recursive_27" -> BenchmarkSupport.fibRecursive(27);
+            case "arithmetic_loop_1M" -> BenchmarkSupport.arithmeticLoop(1_000_000);
+            case "call_loop_1M" -> BenchmarkSupport.callLoop(1_000_000);
+            case "print_loop_1M" -> BenchmarkSupport.printLoop(1_000_000);
+            default -> throw new IllegalArgumentException("Unknown workload: " + workload);
+        };
+        BytecodeLexer lexer = BenchmarkSupport.lex(source);
+        code = lexer.getBytecode();
+        functionTable = lexer.functionTable;
+        stringPool = lexer.getStringPool();
+        if (fuse) {
+            PeepholeOptimizer.Result result = PeepholeOptimizer.optimize(code, functionTable);
+            code = result.code;
+            functionTable = result.functionTable;
+        }
+    }
+
+    @Benchmark
+    public void execute() {
+        new NVM(code, functionTable, stringPool, engine, out).execute();
+    }
+}
@@ -0,0 +1,312 @@
+package com.nlang.vm;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.Objects;
+
+import static com.nlang.vm.InstructionSet.*;
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+/**
+ * The arrays of one execution: 32 bit int or float elements packed back to back in a single
+ * off-heap {@link MemorySegment}, allocated by bumping a pointer.
+ * <p>
+ * An array is named by an int handle that fits in a stack slot, its slot in the handle table with
+ * the slot's generation in the high bits. A freed slot moves to the next generation, so a stale
+ * handle fails instead of reaching a newer array, and handles are never small ints.
+ * <p>
+ * Arrays are reclaimed by {@link #collect}, a conservative mark-compact collector: every stack slot,
+ * local and array element that equals a live handle keeps that array alive, and the survivors are
+ * slid down to the start of the segment.
+ */
+final class ArrayHeap {
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("nvm.heap.capacity", 1 << 16);
+
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int MAX_GENERATION = (1 << (31 - SLOT_BITS)) - 1;
+
+    private MemorySegment memory;
+    private long top;           // elements in use
+    private long collectAt;     // collect before top passes this
+
+    // per slot: first element, length (-1 when free) and current generation
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+    private int[] generations = new int[16];
+    private int[] marks = new int[16];
+    private int slots;
+    private int[] free = new int[16];
+    private int freeTop;
+    private int epoch;
+    private int[] pending = new int[16];
+    private int pendingTop;
+
+    private long collections;
+    private long reclaimed;
+
+    ArrayKernels kernels = ArrayKernels.DEFAULT;
+
+    ArrayHeap(int capacity) {
+        this.memory = Arena.ofAuto().allocate(Math.max(capacity, 16) * 4L, 8);
+        this.collectAt = memory.byteSize() / 4;
+    }
+
+    /**
+     * True if allocating {@code length} more elements should collect first.
+     */
+    boolean shouldCollect(int length) {
+        return top + length > collectAt || (freeTop == 0 && slots == SLOT_MASK + 1);
+    }
+
+    int allocate(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative array length: " + length);
+        }
+        int slot;
+        if (freeTop > 0) {
+            slot = free[--freeTop];
+        } else if (slots <= SLOT_MASK) {
+            slot = slots++;
+            if (slot == offsets.length) {
+                int size = slot * 2;
+                offsets = Arrays.copyOf(offsets, size);
+                lengths = Arrays.copyOf(lengths, size);
+                generations = Arrays.copyOf(generations, size);
+                marks = Arrays.copyOf(marks, size);
+            }
+            generations[slot] = 1;
+        } else {
+            throw new UnsupportedOperationException("Too many live arrays");
+        }
+        long end = top + length;
+        if (end * 4 > memory.byteSize()) {
+            MemorySegment grown = Arena.ofAuto().allocate(Math.max(memory.byteSize() * 2, end * 4), 8);
+            MemorySegment.copy(memory, 0, grown, 0, top * 4);
+            memory = grown;
+        }
+        memory.asSlice(top * 4, length * 4L).fill((byte) 0);
+        offsets[slot] = top;
+        lengths[slot] = length;
+        top = end;
+        return generations[slot] << SLOT_BITS | slot;
+    }
+
+    int length(int handle) {
+        return lengths[slot(handle)];
+    }
+
+    int load(int handle, int index) {
+        int slot = slot(handle);
+        return memory.getAtIndex(JAVA_INT, offsets[slot] + Objects.checkIndex(index, lengths[slot]));
+    }
+
+    void store(int handle, int index, int value) {
+        int slot = slot(handle);
+        memory.setAtIndex(JAVA_INT, offsets[slot] + Objects.checkIndex(index, lengths[slot]), value);
+    }
+
+    void storeFloat(int handle, int index, float value) {
+        int slot = slot(handle);
+        memory.setAtIndex(JAVA_FLOAT, offsets[slot] + Objects.checkIndex(index, lengths[slot]), value);
+    }
+
+    int intSum(int handle) {
+        int slot = slot(handle);
+        return kernels.intSum(memory, offsets[slot], lengths[slot]);
+    }
+
+    float floatSum(int handle) {
+        int slot = slot(handle);
+        return kernels.floatSum(memory, offsets[slot], lengths[slot]);
+    }
+
+    int intDot(int a, int b) {
+        int slotA = slot(a);
+        int slotB = sameLength(slotA, slot(b));
+        return kernels.intDot(memory, offsets[slotA], offsets[slotB], lengths[slotA]);
+    }
+
+    float floatDot(int a, int b) {
+        int slotA = slot(a);
+        int slotB = sameLength(slotA, slot(b));
+        return kernels.floatDot(memory, offsets[slotA], offsets[slotB], lengths[slotA]);
+    }
+
+    /**
+     * {@code dst[i] = a[i] op b[i]} for one of the element-wise instructions IAADD, IAMUL, FAADD and
+     * FAMUL. The three arrays must have the same length, {@code dst} may be {@code a} or {@code b}.
+     */
+    void elementWise(int inst, int dst, int a, int b) {
+        int slotDst = slot(dst);
+        long to = offsets[slotDst];
+        long x = offsets[sameLength(slotDst, slot(a))];
+        long y = offsets[sameLength(slotDst, slot(b))];
+        int length = lengths[slotDst];
+        switch (inst) {
+            case IAADD -> kernels.intAdd(memory, to, x, y, length);
+            case IAMUL -> kernels.intMul(memory, to, x, y, length);
+            case FAADD -> kernels.floatAdd(memory, to, x, y, length);
+            case FAMUL -> kernels.floatMul(memory, to, x, y, length);
+            default -> throw NVM.unsupported(inst);
+        }
+    }
+
+    void fill(int handle, int value) {
+        int slot = slot(handle);
+        kernels.fill(memory, offsets[slot], lengths[slot], value);
+    }
+
+    private int sameLength(int slot, int other) {
+        if (lengths[slot] != lengths[other]) {
+            throw new IllegalArgumentException("Array lengths differ: " + lengths[slot] + " and " + lengths[other]);
+        }
+        return other;
+    }
+
+    private int slot(int handle) {
+        int slot = handle & SLOT_MASK;
+        if (slot >= slots || lengths[slot] < 0 || generations[slot] != handle >>> SLOT_BITS) {
+            throw new IllegalArgumentException("Invalid array handle: " + handle);
+        }
+        return slot;
+    }
+
+    private boolean isLive(int value) {
+        int slot = value & SLOT_MASK;
+        return value > 0 && slot < slots && lengths[slot] >= 0 && generations[slot] == value >>> SLOT_BITS;
+    }
+
+    /**
+     * Frees every array not reachable from {@code stack[0..sp]} or {@code frames[0..frameTop)} and
+     * compacts the rest. The next collection is due once the heap has doubled its live size.
+     */
+    void collect(int[] stack, int sp, int[] frames, int frameTop) {
+        collections++;
+        epoch++;
+        pendingTop = 0;
+        for (int i = 0; i <= sp; i++) {
+            mark(stack[i]);
+        }
+        for (int i = 0; i < frameTop; i++) {
+            mark(frames[i]);
+        }
+        // arrays reachable through other arrays
+        long[] live = new long[16];
+        int liveCount = 0;
+        while (pendingTop > 0) {
+            int slot = pending[--pendingTop];
+            if (liveCount == live.length) {
+                live = Arrays.copyOf(live, liveCount * 2);
+            }
+            live[liveCount++] = offsets[slot] << SLOT_BITS | slot;
+            for (long e = offsets[slot], end = e + lengths[slot]; e < end; e++) {
+                mark(memory.getAtIndex(JAVA_INT, e));
+            }
+        }
+
+        for (int slot = 0; slot < slots; slot++) {
+            if (lengths[slot] >= 0 && marks[slot] != epoch) {
+                lengths[slot] = -1;
+                generations[slot] = generations[slot] == MAX_GENERATION ? 1 : generations[slot] + 1;
+                if (freeTop == free.length) {
+                    free = Arrays.copyOf(free, freeTop * 2);
+                }
+                free[freeTop++] = slot;
+                reclaimed++;
+            }
+        }
+        Arrays.sort(live, 0, liveCount);
+        long next = 0;
+        for (int i = 0; i < liveCount; i++) {
+            int slot = (int) (live[i] & SLOT_MASK);
+            if (offsets[slot] != next) {
+                MemorySegment.copy(memory, offsets[slot] * 4, memory, next * 4, lengths[slot] * 4L);
+                offsets[slot] = next;
+            }
+            next += lengths[slot];
+        }
+        top = next;
+        collectAt = Math.max(memory.byteSize() / 4, top * 2);
+    }
+
+    private void mark(int value) {
+        if (isLive(value) && marks[value & SLOT_MASK] != epoch) {
+            marks[value & SLOT_MASK] = epoch;
+            if (pendingTop == pending.length) {
+                pending = Arrays.copyOf(pending, pendingTop * 2);
+            }
+            pending[pendingTop++] = value & SLOT_MASK;
+        }
+    }
+
+    long snapshotBytes() {
+        return 40 + top * 4 + slots * 16L + freeTop * 4L;
+    }
+
+    /**
+     * Writes the elements in use and the handle table, see {@link Snapshot}.
+     */
+    void save(Snapshot.Cursor out) {
+        out.putLong(top);
+        out.putLong(collectAt);
+        out.putLong(collections);
+        out.putLong(reclaimed);
+        out.putInt(slots);
+        out.putInt(freeTop);
+        out.putSegment(memory, top * 4);
+        out.putLongs(offsets, slots);
+        out.putInts(lengths, slots);
+        out.putInts(generations, slots);
+        out.putInts(free, freeTop);
+    }
+
+    static ArrayHeap restore(Snapshot.Cursor in, int capacity) {
+        long top = in.getLong();
+        ArrayHeap heap = new ArrayHeap((int) Math.min(Math.max(capacity, top), Integer.MAX_VALUE / 4));
+        heap.top = top;
+        heap.collectAt = in.getLong();
+        heap.collections = in.getLong();
+        heap.reclaimed = in.getLong();
+        heap.slots = in.getInt();
+        heap.freeTop = in.getInt();
+        int size = Math.max(16, Integer.highestOneBit(Math.max(heap.slots, heap.freeTop)) * 2);
+        heap.offsets = new long[size];
+        heap.lengths = new int[size];
+        heap.generations = new int[size];
+        heap.marks = new int[size];
+        heap.free = new int[size];
+        in.getSegment(heap.memory, top * 4);
+        in.getLongs(heap.offsets, heap.slots);
+        in.getInts(heap.lengths, heap.slots);
+        in.getInts(heap.generations, heap.slots);
+        in.getInts(heap.free, heap.freeTop);
+        return heap;
+    }
+
+    /**
+     * Elements allocated so far, {@link #element} reads any of them whether its array is live or not.
+     */
+    long used() {
+        return top;
+    }
+
+    int element(long index) {
+        return memory.getAtIndex(JAVA_INT, index);
+    }
+
+    long collections() {
+        return collections;
+    }
+
+    long reclaimed() {
+        return reclaimed;
+    }
+
+    int liveArrays() {
+        return slots - freeTop;
+    }
+}
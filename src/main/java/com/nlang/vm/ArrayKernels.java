@@ -0,0 +1,88 @@
+package com.nlang.vm;
+
+import java.lang.foreign.MemorySegment;
+
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+/**
+ * Loops behind the bulk array instructions, over elements {@code [from, from + length)} of the
+ * {@link ArrayHeap} memory. This class is the scalar version; {@link VectorKernels} runs the same
+ * loops on SIMD lanes when the jdk.incubator.vector module is present
+ * ({@code --add-modules jdk.incubator.vector}) and -Dnvm.vector is not false.
+ * <p>
+ * Vector float sums and dot products add in a different order, so they can differ from the scalar
+ * result in the last bits. Int results are always identical.
+ */
+class ArrayKernels {
+
+    static final ArrayKernels SCALAR = new ArrayKernels();
+    static final ArrayKernels DEFAULT = vectorized() ? new VectorKernels() : SCALAR;
+
+    private static boolean vectorized() {
+        return Boolean.parseBoolean(System.getProperty("nvm.vector", "true"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    int intSum(MemorySegment m, long from, int length) {
+        int sum = 0;
+        for (long i = from; i < from + length; i++) {
+            sum += m.getAtIndex(JAVA_INT, i);
+        }
+        return sum;
+    }
+
+    float floatSum(MemorySegment m, long from, int length) {
+        float sum = 0;
+        for (long i = from; i < from + length; i++) {
+            sum += m.getAtIndex(JAVA_FLOAT, i);
+        }
+        return sum;
+    }
+
+    int intDot(MemorySegment m, long a, long b, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += m.getAtIndex(JAVA_INT, a + i) * m.getAtIndex(JAVA_INT, b + i);
+        }
+        return sum;
+    }
+
+    float floatDot(MemorySegment m, long a, long b, int length) {
+        float sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += m.getAtIndex(JAVA_FLOAT, a + i) * m.getAtIndex(JAVA_FLOAT, b + i);
+        }
+        return sum;
+    }
+
+    void intAdd(MemorySegment m, long dst, long a, long b, int length) {
+        for (int i = 0; i < length; i++) {
+            m.setAtIndex(JAVA_INT, dst + i, m.getAtIndex(JAVA_INT, a + i) + m.getAtIndex(JAVA_INT, b + i));
+        }
+    }
+
+    void intMul(MemorySegment m, long dst, long a, long b, int length) {
+        for (int i = 0; i < length; i++) {
+            m.setAtIndex(JAVA_INT, dst + i, m.getAtIndex(JAVA_INT, a + i) * m.getAtIndex(JAVA_INT, b + i));
+        }
+    }
+
+    void floatAdd(MemorySegment m, long dst, long a, long b, int length) {
+        for (int i = 0; i < length; i++) {
+            m.setAtIndex(JAVA_FLOAT, dst + i, m.getAtIndex(JAVA_FLOAT, a + i) + m.getAtIndex(JAVA_FLOAT, b + i));
+        }
+    }
+
+    void floatMul(MemorySegment m, long dst, long a, long b, int length) {
+        for (int i = 0; i < length; i++) {
+            m.setAtIndex(JAVA_FLOAT, dst + i, m.getAtIndex(JAVA_FLOAT, a + i) * m.getAtIndex(JAVA_FLOAT, b + i));
+        }
+    }
+
+    void fill(MemorySegment m, long from, int length, int value) {
+        for (long i = from; i < from + length; i++) {
+            m.setAtIndex(JAVA_INT, i, value);
+        }
+    }
+}
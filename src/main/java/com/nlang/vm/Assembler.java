@@ -0,0 +1,689 @@
+package com.nlang.vm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Single-pass assembler for .nbyte sources, accepting the same language as {@link BytecodeLexer}.
+ * <p>
+ * The input is scanned in chunks and each line is parsed in place, instructions go straight into a
+ * growable int[], and mnemonics and label names are looked up in a char-keyed symbol table, so
+ * nothing is allocated per instruction except for unusual float literals. Forward references are
+ * recorded as fixups and patched once the input is exhausted. The function table grows with the
+ * highest function index used.
+ */
+public class Assembler {
+
+    private static final int NO_SECTION = 0;
+    private static final int CODE_SECTION = 1;
+    private static final int CONSTANTS_SECTION = 2;
+
+    private static final SymbolTable MNEMONICS = new SymbolTable();
+    private static final int[] MNEMONIC_OPCODES = new int[STOI.size()];
+
+    static {
+        for (Map.Entry<String, Integer> entry : STOI.entrySet()) {
+            char[] name = entry.getKey().toCharArray();
+            MNEMONIC_OPCODES[MNEMONICS.intern(name, 0, name.length)] = entry.getValue();
+        }
+    }
+
+    private static final int CHUNK = 64 * 1024;
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10};
+
+    private int[] code;
+    private int codeLength;
+    private FunctionInfo[] functionTable = new FunctionInfo[16];
+    private int functionTableLength;
+    private final Map<Integer, String> stringPool = new HashMap<>();
+
+    private final SymbolTable symbols = new SymbolTable();
+    private int[] symbolAddress = new int[64];
+    private int[] symbolFunction = new int[64];
+
+    // CALL fixups have a negative symbol: -(symbol + 1)
+    private int[] fixupAddress = new int[64];
+    private int[] fixupSymbol = new int[64];
+    private int[] fixupLine = new int[64];
+    private int fixups;
+
+    // start of the previous instruction, for rewriting CALL f; RET into TAILCALL f; RET
+    private int lastInstruction = -1;
+
+    // the buffer the current line is read from, either the input chunk or carry
+    private char[] line;
+    private char[] carry = new char[256];
+    private int carryLength;
+    private int lineNumber;
+    private int section = NO_SECTION;
+
+    /**
+     * @param sizeHint expected number of source characters, used to presize the code array
+     */
+    private Assembler(long sizeHint) {
+        code = new int[(int) Math.min(Math.max(sizeHint / 6, 1024), 1 << 26)];
+    }
+
+    public static Program assemble(CharSequence source) {
+        try {
+            return assemble(new StringReader(source.toString()), source.length());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Program assemble(Reader reader) throws IOException {
+        return assemble(reader, 0);
+    }
+
+    private static Program assemble(Reader reader, long sizeHint) throws IOException {
+        Assembler assembler = new Assembler(sizeHint);
+        char[] chunk = new char[CHUNK];
+        int read;
+        while ((read = reader.read(chunk)) != -1) {
+            assembler.feed(chunk, read);
+        }
+        return assembler.finish();
+    }
+
+    /**
+     * Assembles a UTF-8 source file by mapping it into memory and decoding it chunk by chunk.
+     */
+    public static Program assemble(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             Arena arena = Arena.ofConfined()) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            long size = file.byteSize();
+            Assembler assembler = new Assembler(size);
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            // decoding from a heap buffer takes the decoder's array fast path, UTF-8 never yields
+            // more chars than bytes so one decode call always drains the output
+            ByteBuffer in = ByteBuffer.allocate(CHUNK);
+            CharBuffer out = CharBuffer.allocate(CHUNK);
+            long offset = 0;
+            boolean done = false;
+            while (!done) {
+                int count = (int) Math.min(in.remaining(), size - offset);
+                MemorySegment.copy(file, ValueLayout.JAVA_BYTE, offset, in.array(), in.position(), count);
+                in.position(in.position() + count);
+                offset += count;
+                done = offset == size;
+                in.flip();
+                decoder.decode(in, out, done);
+                if (done) {
+                    decoder.flush(out);
+                }
+                assembler.feed(out.array(), out.position());
+                out.clear();
+                in.compact();
+            }
+            return assembler.finish();
+        }
+    }
+
+    /**
+     * Assembles every complete line in {@code chunk}, carrying a trailing partial line over to the
+     * next call.
+     */
+    private void feed(char[] chunk, int length) {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (chunk[i] == '\n') {
+                if (carryLength > 0) {
+                    appendCarry(chunk, start, i);
+                    endCarry();
+                } else {
+                    line = chunk;
+                    endLine(start, i);
+                }
+                start = i + 1;
+            }
+        }
+        appendCarry(chunk, start, length);
+    }
+
+    private void appendCarry(char[] chunk, int from, int to) {
+        int count = to - from;
+        if (carryLength + count > carry.length) {
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + count));
+        }
+        System.arraycopy(chunk, from, carry, carryLength, count);
+        carryLength += count;
+    }
+
+    private void endCarry() {
+        line = carry;
+        int end = carryLength;
+        carryLength = 0;
+        endLine(0, end);
+    }
+
+    private void endLine(int start, int end) {
+        lineNumber++;
+        if (end > start && line[end - 1] == '\r') {
+            end--;
+        }
+        start = skipSpaces(start, end);
+        if (start == end) {
+            return;
+        }
+        if (line[start] == '#') {
+            section = startsWith(start + 1, end, "code") ? CODE_SECTION
+                    : startsWith(start + 1, end, "constants") ? CONSTANTS_SECTION : NO_SECTION;
+        } else if (section == CODE_SECTION) {
+            codeLine(start, end);
+        } else if (section == CONSTANTS_SECTION) {
+            constantLine(start, end);
+        }
+    }
+
+    private void codeLine(int start, int end) {
+        for (int i = start; i + 1 < end; i++) {
+            if (line[i] == '/' && line[i + 1] == '/') {
+                end = i;
+                break;
+            }
+        }
+        end = trimEnd(start, end);
+        if (start == end) {
+            return;
+        }
+        int colon = indexOf(':', start, end);
+        if (colon >= 0) {
+            definition(start, end, colon);
+        } else {
+            instruction(start, end);
+        }
+    }
+
+    /**
+     * {@code name:} declares a label, {@code name:index:args:} a function and
+     * {@code name:index:args:pure:} a function whose calls may be memoized.
+     */
+    private void definition(int start, int end, int colon) {
+        int symbol = symbol(start, colon);
+        symbolAddress[symbol] = codeLength;
+        int second = indexOf(':', colon + 1, end);
+        if (second < 0) {
+            return;
+        }
+        int third = indexOf(':', second + 1, end);
+        int index = parseInt(colon + 1, second);
+        int argCount = parseInt(second + 1, third < 0 ? end : third);
+        if (index >= functionTable.length) {
+            functionTable = Arrays.copyOf(functionTable, Math.max(index + 1, functionTable.length * 2));
+        }
+        FunctionInfo function = new FunctionInfo(new String(line, start, colon - start), argCount, codeLength);
+        if (third >= 0) {
+            int fourth = indexOf(':', third + 1, end);
+            int flagStart = skipSpaces(third + 1, end);
+            int flagEnd = trimEnd(flagStart, fourth < 0 ? end : fourth);
+            if (flagEnd - flagStart == 4 && startsWith(flagStart, flagEnd, "pure")) {
+                function.pure = true;
+            } else if (flagEnd > flagStart) {
+                throw error("Unknown function attribute: " + new String(line, flagStart, flagEnd - flagStart));
+            }
+        }
+        functionTable[index] = function;
+        functionTableLength = Math.max(functionTableLength, index + 1);
+        symbolFunction[symbol] = index;
+    }
+
+    private void instruction(int start, int end) {
+        int nameEnd = start;
+        while (nameEnd < end && !isSpace(line[nameEnd])) {
+            nameEnd++;
+        }
+        int mnemonic = MNEMONICS.find(line, start, nameEnd - start);
+        if (mnemonic < 0) {
+            throw error("Unknown instruction: " + new String(line, start, nameEnd - start));
+        }
+        int opcode = MNEMONIC_OPCODES[mnemonic];
+        if (opcode == RET && lastInstruction == codeLength - 2 && code[lastInstruction] == CALL) {
+            code[lastInstruction] = TAILCALL;
+        }
+        lastInstruction = codeLength;
+        emit(opcode);
+
+        int argStart = skipSpaces(nameEnd, end);
+        if (argStart == end) {
+            return;
+        }
+        int argEnd = argStart;
+        while (argEnd < end && !isSpace(line[argEnd])) {
+            argEnd++;
+        }
+        if (opcode == JZ || opcode == JNZ || opcode == JMP || opcode == CALL || opcode == SPAWN) {
+            if (isInteger(argStart, argEnd)) {
+                emit(parseInt(argStart, argEnd));
+            } else {
+                int symbol = symbol(argStart, argEnd);
+                addFixup(codeLength, opcode == CALL || opcode == SPAWN ? -(symbol + 1) : symbol);
+                emit(0);
+            }
+        } else if (isInteger(argStart, argEnd)) {
+            emit(parseInt(argStart, argEnd));
+        } else {
+            emit(Float.floatToIntBits(parseFloat(argStart, argEnd)));
+        }
+    }
+
+    /**
+     * Plain decimals with at most 7 significant digits are divided out in double, which is exact
+     * enough that rounding the quotient to float gives the correctly rounded result. Anything else
+     * goes through Float.parseFloat.
+     */
+    private float parseFloat(int start, int end) {
+        int i = start;
+        boolean negative = i < end && line[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; i < end; i++) {
+            char c = line[i];
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa >= 10_000_000) {
+                    break;
+                }
+                digits++;
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (c == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                break;
+            }
+        }
+        if (i == end && digits > 0 && scale < POWERS_OF_TEN.length) {
+            double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+            return (float) (negative ? -value : value);
+        }
+        try {
+            return Float.parseFloat(new String(line, start, end - start));
+        } catch (NumberFormatException e) {
+            throw error("Invalid operand: " + new String(line, start, end - start));
+        }
+    }
+
+    /**
+     * {@code index:"text"}
+     */
+    private void constantLine(int start, int end) {
+        end = trimEnd(start, end);
+        int colon = indexOf(':', start, end);
+        if (colon < 0) {
+            throw error("Invalid constant: " + new String(line, start, end - start));
+        }
+        int index = parseInt(start, colon);
+        int textStart = colon + 1;
+        int textEnd = end;
+        if (textEnd - textStart >= 2 && line[textStart] == '"' && line[textEnd - 1] == '"') {
+            textStart++;
+            textEnd--;
+        }
+        stringPool.put(index, new String(line, textStart, textEnd - textStart));
+    }
+
+    private Program finish() {
+        if (carryLength > 0) {
+            endCarry();
+        }
+        for (int i = 0; i < fixups; i++) {
+            int symbol = fixupSymbol[i];
+            if (symbol >= 0) {
+                int address = symbolAddress[symbol];
+                if (address < 0) {
+                    throw new RuntimeException("Undefined label: " + symbols.name(symbol) + " at line " + fixupLine[i]);
+                }
+                code[fixupAddress[i]] = address;
+            } else {
+                symbol = -symbol - 1;
+                int function = symbolFunction[symbol];
+                if (function < 0) {
+                    throw new RuntimeException("Undefined function label: " + symbols.name(symbol) + " at line " + fixupLine[i]);
+                }
+                code[fixupAddress[i]] = function;
+            }
+        }
+
+        checkPurity();
+        return new Program(Arrays.copyOf(code, codeLength), Arrays.copyOf(functionTable, Math.max(functionTableLength, 1)),
+                stringPool, new LabelMap(symbols, Arrays.copyOf(symbolAddress, symbols.size())));
+    }
+
+    /**
+     * A function declared pure may not print, use arrays or build strings and may only call pure
+     * functions. Its body is taken to run up to the next function's address.
+     */
+    private void checkPurity() {
+        int[] starts = new int[functionTableLength];
+        int count = 0;
+        for (int i = 0; i < functionTableLength; i++) {
+            if (functionTable[i] != null) {
+                starts[count++] = functionTable[i].address;
+            }
+        }
+        Arrays.sort(starts, 0, count);
+        for (int i = 0; i < functionTableLength; i++) {
+            FunctionInfo function = functionTable[i];
+            if (function == null || !function.pure) {
+                continue;
+            }
+            int end = codeLength;
+            for (int k = 0; k < count; k++) {
+                if (starts[k] > function.address) {
+                    end = starts[k];
+                    break;
+                }
+            }
+            int ip = function.address;
+            while (ip < end) {
+                int inst = code[ip];
+                if (inst == PRINT || inst == FPRINT || inst == SPRINT) {
+                    throw new RuntimeException("Function " + function.name + " is declared pure but prints");
+                }
+                if (inst == NEW_ARRAY || inst == ALOAD || inst == ASTORE || inst == IASTORE || inst == FASTORE
+                        || inst >= IASUM && inst <= AFILL) {
+                    throw new RuntimeException("Function " + function.name + " is declared pure but uses arrays");
+                }
+                if (inst == SCONCAT || inst == SSUB || inst == ITOS) {
+                    throw new RuntimeException("Function " + function.name + " is declared pure but builds strings");
+                }
+                if (inst == CALL || inst == TAILCALL || inst == SPAWN) {
+                    int callee = code[ip + 1];
+                    if (callee >= functionTableLength || functionTable[callee] == null || !functionTable[callee].pure) {
+                        throw new RuntimeException("Function " + function.name + " is declared pure but calls "
+                                + (callee < functionTableLength && functionTable[callee] != null
+                                ? functionTable[callee].name : "function " + callee) + ", which is not");
+                    }
+                }
+                InstInfo info = INFO_MAP.get(inst);
+                ip += info == null ? 1 : info.operandCount + 1;
+            }
+        }
+    }
+
+    private void emit(int value) {
+        if (codeLength == code.length) {
+            code = Arrays.copyOf(code, codeLength * 2);
+        }
+        code[codeLength++] = value;
+    }
+
+    private void addFixup(int address, int symbol) {
+        if (fixups == fixupAddress.length) {
+            fixupAddress = Arrays.copyOf(fixupAddress, fixups * 2);
+            fixupSymbol = Arrays.copyOf(fixupSymbol, fixups * 2);
+            fixupLine = Arrays.copyOf(fixupLine, fixups * 2);
+        }
+        fixupAddress[fixups] = address;
+        fixupSymbol[fixups] = symbol;
+        fixupLine[fixups] = lineNumber;
+        fixups++;
+    }
+
+    private int symbol(int start, int end) {
+        int known = symbols.size();
+        int symbol = symbols.intern(line, start, end - start);
+        if (symbol == known) {
+            if (symbol == symbolAddress.length) {
+                symbolAddress = Arrays.copyOf(symbolAddress, symbol * 2);
+                symbolFunction = Arrays.copyOf(symbolFunction, symbol * 2);
+            }
+            symbolAddress[symbol] = -1;
+            symbolFunction[symbol] = -1;
+        }
+        return symbol;
+    }
+
+    private boolean isInteger(int start, int end) {
+        int i = start;
+        if (i < end && line[i] == '-') {
+            i++;
+        }
+        if (i == end || end - i > 10) {
+            return false;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = line[i];
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return line[start] == '-' ? -value >= Integer.MIN_VALUE : value <= Integer.MAX_VALUE;
+    }
+
+    private int parseInt(int start, int end) {
+        start = skipSpaces(start, end);
+        end = trimEnd(start, end);
+        if (!isInteger(start, end)) {
+            throw error("Invalid number: " + new String(line, start, end - start));
+        }
+        boolean negative = line[start] == '-';
+        int value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 - (line[i] - '0');
+        }
+        return negative ? value : -value;
+    }
+
+    private RuntimeException error(String message) {
+        return new RuntimeException(message + " at line " + lineNumber);
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipSpaces(int start, int end) {
+        while (start < end && isSpace(line[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && isSpace(line[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Read-only view of the label addresses. Lookups go through the symbol table; label name strings
+     * are only created when the map is iterated.
+     */
+    private static final class LabelMap extends AbstractMap<String, Integer> {
+        private final SymbolTable symbols;
+        private final int[] addresses;
+        private final int size;
+        private Map<String, Integer> entries;
+
+        LabelMap(SymbolTable symbols, int[] addresses) {
+            this.symbols = symbols;
+            this.addresses = addresses;
+            int defined = 0;
+            for (int address : addresses) {
+                if (address >= 0) {
+                    defined++;
+                }
+            }
+            this.size = defined;
+        }
+
+        @Override
+        public Integer get(Object key) {
+            if (!(key instanceof String name)) {
+                return null;
+            }
+            int symbol = symbols.find(name.toCharArray(), 0, name.length());
+            return symbol < 0 || addresses[symbol] < 0 ? null : addresses[symbol];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Entry<String, Integer>> entrySet() {
+            if (entries == null) {
+                Map<String, Integer> map = new HashMap<>(size * 2);
+                for (int symbol = 0; symbol < addresses.length; symbol++) {
+                    if (addresses[symbol] >= 0) {
+                        map.put(symbols.name(symbol), addresses[symbol]);
+                    }
+                }
+                entries = Collections.unmodifiableMap(map);
+            }
+            return entries.entrySet();
+        }
+    }
+
+    /**
+     * Open-addressing table from names to dense ids. Names are copied into one char pool when first
+     * interned, lookups do not allocate.
+     */
+    static final class SymbolTable {
+        private char[] pool = new char[1024];
+        private int poolLength;
+        private int[] start = new int[64];
+        private int[] length = new int[64];
+        private int[] hashes = new int[64];
+        private int[] slots = new int[128]; // symbol + 1, 0 for empty
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        String name(int symbol) {
+            return new String(pool, start[symbol], length[symbol]);
+        }
+
+        int find(char[] chars, int from, int count) {
+            int hash = hash(chars, from, count);
+            int mask = slots.length - 1;
+            for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int symbol = slots[slot] - 1;
+                if (hashes[symbol] == hash && equals(symbol, chars, from, count)) {
+                    return symbol;
+                }
+            }
+            return -1;
+        }
+
+        int intern(char[] chars, int from, int count) {
+            int hash = hash(chars, from, count);
+            int mask = slots.length - 1;
+            int slot = hash & mask;
+            for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int symbol = slots[slot] - 1;
+                if (hashes[symbol] == hash && equals(symbol, chars, from, count)) {
+                    return symbol;
+                }
+            }
+            if (size == start.length) {
+                start = Arrays.copyOf(start, size * 2);
+                length = Arrays.copyOf(length, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            if (poolLength + count > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolLength + count));
+            }
+            System.arraycopy(chars, from, pool, poolLength, count);
+            start[size] = poolLength;
+            length[size] = count;
+            hashes[size] = hash;
+            poolLength += count;
+            slots[slot] = size + 1;
+            int symbol = size++;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+            return symbol;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int symbol = 0; symbol < size; symbol++) {
+                int slot = hashes[symbol] & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = symbol + 1;
+            }
+        }
+
+        private boolean equals(int symbol, char[] chars, int from, int count) {
+            if (length[symbol] != count) {
+                return false;
+            }
+            return Arrays.equals(pool, start[symbol], start[symbol] + count, chars, from, from + count);
+        }
+
+        private static int hash(char[] chars, int from, int count) {
+            int h = 0;
+            for (int i = from; i < from + count; i++) {
+                h = 31 * h + chars[i];
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.nlang.vm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Default sink: formats values straight into a byte buffer and writes it to the stream when the
+ * buffer is full or on {@link #flush()}. Ints are formatted digit by digit and floats through a
+ * reused StringBuilder, so printing does not create a String per value. Output is the same as
+ * {@code PrintStream.println}.
+ */
+public class BufferedOutputSink implements OutputSink {
+
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final OutputStream out;
+    private final Charset charset;
+    private final boolean asciiCompatible;
+    private final byte[] lineSeparator;
+    private final StringBuilder text = new StringBuilder(32);
+    private final byte[] buffer;
+    private int count;
+
+    public BufferedOutputSink(OutputStream out, Charset charset, int capacity) {
+        this.out = out;
+        this.charset = charset;
+        this.asciiCompatible = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+        this.lineSeparator = System.lineSeparator().getBytes(charset);
+        this.buffer = new byte[Math.max(capacity, 64)];
+    }
+
+    public BufferedOutputSink(OutputStream out, Charset charset) {
+        this(out, charset, DEFAULT_CAPACITY);
+    }
+
+    public BufferedOutputSink(PrintStream out) {
+        this(out, out.charset());
+    }
+
+    /**
+     * Sink for System.out as it is when called.
+     */
+    public static BufferedOutputSink stdout() {
+        return new BufferedOutputSink(System.out);
+    }
+
+    @Override
+    public void printInt(int value) {
+        ensure(11 + lineSeparator.length);
+        if (value == Integer.MIN_VALUE) {
+            writeAscii("-2147483648");
+        } else {
+            if (value < 0) {
+                buffer[count++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (int v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            int at = count + digits;
+            count = at;
+            do {
+                buffer[--at] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+        }
+        newLine();
+    }
+
+    @Override
+    public void printFloat(float value) {
+        text.setLength(0);
+        text.append(value);
+        writeAscii(text);
+        newLine();
+    }
+
+    @Override
+    public void printString(String value) {
+        String s = String.valueOf(value);
+        if (asciiCompatible && isAscii(s)) {
+            writeAscii(s);
+        } else {
+            write(s.getBytes(charset));
+        }
+        newLine();
+    }
+
+    @Override
+    public void printChars(char[] chars, int offset, int length) {
+        boolean ascii = asciiCompatible;
+        for (int i = offset; ascii && i < offset + length; i++) {
+            ascii = chars[i] < 0x80;
+        }
+        if (!ascii) {
+            write(new String(chars, offset, length).getBytes(charset));
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                if (count == buffer.length) {
+                    flushBuffer();
+                }
+                buffer[count++] = (byte) chars[i];
+            }
+        }
+        newLine();
+    }
+
+    @Override
+    public void flush() {
+        try {
+            out.write(buffer, 0, count);
+            out.flush();
+            count = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isAscii(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeAscii(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void write(byte[] bytes) {
+        if (bytes.length > buffer.length - count) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                writeThrough(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void newLine() {
+        ensure(lineSeparator.length);
+        for (byte b : lineSeparator) {
+            buffer[count++] = b;
+        }
+    }
+
+    private void ensure(int space) {
+        if (buffer.length - count < space) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() {
+        try {
+            out.write(buffer, 0, count);
+            count = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeThrough(byte[] bytes) {
+        try {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -115,7 +115,7 @@ class BytecodeLexer {
                 bytecode.add(0);
                 pendingJumps.add(new PendingJump(currentAddress - 1, argument));
                 currentAddress++;
-            } else if (opcode.equals(STOI.get("CALL"))) {
+            } else if (opcode.equals(STOI.get("CALL")) || opcode.equals(STOI.get("SPAWN"))) {
 
                 if (isLabel(argument)) {
                     bytecode.add(0);
@@ -193,6 +193,13 @@ class BytecodeLexer {
     public Map<Integer, String> getStringPool() {
         return stringPool;
     }
+
+    /**
+     * Label and function names with their addresses, kept as debug info.
+     */
+    public Map<String, Integer> getLabels() {
+        return labelAddresses;
+    }
 }
 
 
@@ -0,0 +1,10 @@
+package com.nlang.vm;
+
+/**
+ * A function translated to JVM bytecode by {@link JitCompiler}. The arguments are read from
+ * {@code args[offset..offset + argCount)} and the single return value is returned.
+ */
+interface CompiledFunction {
+
+    int invoke(NVM vm, int[] args, int offset);
+}
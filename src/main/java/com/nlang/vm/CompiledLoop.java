@@ -0,0 +1,11 @@
+package com.nlang.vm;
+
+/**
+ * A hot loop translated to JVM bytecode by {@link JitCompiler#compileLoop}, entered from the
+ * interpreter at the loop header with the locals of the frame at {@code fp}. Writes the locals back
+ * and returns the address to continue interpreting at.
+ */
+interface CompiledLoop {
+
+    int run(NVM vm, int fp);
+}
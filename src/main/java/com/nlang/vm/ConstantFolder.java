@@ -0,0 +1,402 @@
+package com.nlang.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Evaluates what the lexed bytecode computes from constants and drops the code that can never run.
+ * <p>
+ * The code is split into basic blocks at function entries and jump targets. Within a block, PUSHes
+ * are held back until something needs them on the stack, so that
+ * <pre>
+ * PUSH a; PUSH b; IADD          -> PUSH a+b      (ISUB, IMUL, IDIV, ILT, IGTE)
+ * PUSH a; PUSH b; FADD          -> PUSH a+b      (FSUB, FMUL, FDIV on the float bits)
+ * PUSH k; STORE x; ... LOAD x   -> ... PUSH k    (until x is written again)
+ * PUSH k; JZ t                  -> JMP t, or nothing when k is not 0 (JNZ jumps on 1)
+ * </pre>
+ * Division by a constant 0 is left to fail at run time. Then every instruction that no path from
+ * a function entry reaches is removed. Jump operands and {@link FunctionInfo#address} are
+ * relocated to the rewritten code; the input is left untouched.
+ */
+public class ConstantFolder {
+
+    public static class Result {
+        public final int[] code;
+        public final FunctionInfo[] functionTable;
+        public final int instructionsBefore;
+        public final int instructionsAfter;
+        public final int folded;
+        public final int propagated;
+        public final int branchesResolved;
+        public final int unreachable;
+        // new address of every input address, -1 for removed code
+        private final int[] relocation;
+
+        private Result(int[] code, FunctionInfo[] functionTable, int[] relocation, int instructionsBefore,
+                       int instructionsAfter, int folded, int propagated, int branchesResolved, int unreachable) {
+            this.code = code;
+            this.relocation = relocation;
+            this.functionTable = functionTable;
+            this.instructionsBefore = instructionsBefore;
+            this.instructionsAfter = instructionsAfter;
+            this.folded = folded;
+            this.propagated = propagated;
+            this.branchesResolved = branchesResolved;
+            this.unreachable = unreachable;
+        }
+
+        public int instructionsRemoved() {
+            return instructionsBefore - instructionsAfter;
+        }
+
+        /**
+         * The labels of the input, such as {@link Program#labels}, moved to the rewritten code.
+         * Labels of removed code are dropped.
+         */
+        public Map<String, Integer> relocate(Map<String, Integer> labels) {
+            return relocateLabels(labels, relocation);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Instructions: %d -> %d, code size: %d, folded: %d, propagated: %d, "
+                            + "branches resolved: %d, unreachable: %d",
+                    instructionsBefore, instructionsAfter, code.length, folded, propagated, branchesResolved,
+                    unreachable);
+        }
+    }
+
+    private final int[] code;
+    private final FunctionInfo[] functionTable;
+    private final boolean[] leader;
+
+    // constants pushed in the current block but not emitted yet, bottom first
+    private final int[] pending;
+    private int pendingTop;
+    // value of each local, valid while knownIn[local] is the current block
+    private int[] localValue = new int[16];
+    private int[] knownIn = new int[16];
+    private int block = 1;
+
+    private int[] out;
+    private int length;
+    private int folded;
+    private int propagated;
+    private int branchesResolved;
+
+    private ConstantFolder(int[] code, FunctionInfo[] functionTable) {
+        this.code = code;
+        this.functionTable = functionTable;
+        this.leader = new boolean[code.length + 1];
+        this.pending = new int[code.length];
+    }
+
+    public static Result optimize(int[] code, FunctionInfo[] functionTable) {
+        return new ConstantFolder(code, functionTable).optimize();
+    }
+
+    private Result optimize() {
+        int instructionsBefore = markLeaders();
+        int[] relocation = new int[code.length + 1];
+        Arrays.fill(relocation, -1);
+        out = new int[code.length];
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            if (leader[ip]) {
+                flush();
+                block++;
+            }
+            relocation[ip] = length;
+            fold(ip);
+        }
+        flush();
+        relocation[code.length] = length;
+
+        int[] foldedCode = Arrays.copyOf(out, length);
+        relocateJumps(foldedCode, relocation);
+        FunctionInfo[] table = relocate(functionTable, relocation);
+
+        int[] kept = reachable(foldedCode, table);
+        int[] reachable = compact(foldedCode, kept);
+        for (int ip = 0; ip < relocation.length; ip++) {
+            relocation[ip] = relocation[ip] < 0 ? -1 : kept[relocation[ip]];
+        }
+        int instructionsAfter = count(reachable);
+        return new Result(reachable, relocate(table, kept), relocation, instructionsBefore, instructionsAfter,
+                folded, propagated, branchesResolved, count(foldedCode) - instructionsAfter);
+    }
+
+    /**
+     * Marks where blocks start: function entries and jump targets. Returns the instruction count.
+     */
+    private int markLeaders() {
+        int count = 0;
+        int maxLocal = 0;
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            int inst = code[ip];
+            if (PeepholeOptimizer.isJump(inst) && ip + PeepholeOptimizer.jumpOperand(inst) < code.length) {
+                markLeader(code[ip + PeepholeOptimizer.jumpOperand(inst)]);
+            }
+            if ((inst == STORE || inst == IINC || inst == MOVE) && ip + 1 < code.length) {
+                maxLocal = Math.max(maxLocal, code[ip + (inst == MOVE ? 2 : 1)]);
+            }
+            count++;
+        }
+        for (FunctionInfo f : functionTable) {
+            if (f != null) {
+                markLeader(f.address);
+            }
+        }
+        if (maxLocal >= localValue.length) {
+            localValue = new int[maxLocal + 1];
+            knownIn = new int[maxLocal + 1];
+        }
+        return count;
+    }
+
+    private void markLeader(int address) {
+        if (address >= 0 && address < leader.length) {
+            leader[address] = true;
+        }
+    }
+
+    private void fold(int ip) {
+        int inst = code[ip];
+        if (size(code, ip) > 1 && ip + size(code, ip) > code.length) {
+            copy(ip);
+            return;
+        }
+        switch (inst) {
+            case PUSH -> pending[pendingTop++] = code[ip + 1];
+            case LOAD -> {
+                int local = code[ip + 1];
+                if (isKnown(local)) {
+                    pending[pendingTop++] = localValue[local];
+                    propagated++;
+                } else {
+                    copy(ip);
+                }
+            }
+            case STORE -> {
+                int local = code[ip + 1];
+                if (pendingTop > 0) {
+                    // the constants below stay held back, PUSH; STORE leaves the stack as it was
+                    int value = pending[--pendingTop];
+                    setKnown(local, value);
+                    emit(PUSH, value);
+                    emit(STORE, local);
+                } else {
+                    copy(ip);
+                    forget(local);
+                }
+            }
+            case IADD, ISUB, IMUL, IDIV, FADD, FSUB, FMUL, FDIV, ILT, IGTE -> {
+                if (pendingTop >= 2 && !(inst == IDIV && pending[pendingTop - 1] == 0)) {
+                    int first = pending[--pendingTop];
+                    int second = pending[--pendingTop];
+                    pending[pendingTop++] = evaluate(inst, second, first);
+                    folded++;
+                } else {
+                    copy(ip);
+                }
+            }
+            case JZ, JNZ -> {
+                if (pendingTop > 0) {
+                    int value = pending[--pendingTop];
+                    if (inst == JZ ? value == 0 : value == 1) {
+                        flush();
+                        emit(JMP, code[ip + 1]);
+                    }
+                    branchesResolved++;
+                } else {
+                    copy(ip);
+                }
+            }
+            case IINC -> {
+                int local = code[ip + 1];
+                copy(ip);
+                if (isKnown(local)) {
+                    setKnown(local, localValue[local] + code[ip + 2]);
+                }
+            }
+            case MOVE -> {
+                copy(ip);
+                if (isKnown(code[ip + 1])) {
+                    setKnown(code[ip + 2], localValue[code[ip + 1]]);
+                } else {
+                    forget(code[ip + 2]);
+                }
+            }
+            case IADD_LLS, ISUB_LLS, IMUL_LLS -> {
+                copy(ip);
+                forget(code[ip + 3]);
+            }
+            default -> copy(ip);
+        }
+    }
+
+    private static int evaluate(int inst, int second, int first) {
+        float a = Float.intBitsToFloat(second);
+        float b = Float.intBitsToFloat(first);
+        return switch (inst) {
+            case IADD -> second + first;
+            case ISUB -> second - first;
+            case IMUL -> second * first;
+            case IDIV -> second / first;
+            case ILT -> second < first ? 1 : 0;
+            case IGTE -> second >= first ? 1 : 0;
+            case FADD -> Float.floatToIntBits(a + b);
+            case FSUB -> Float.floatToIntBits(a - b);
+            case FMUL -> Float.floatToIntBits(a * b);
+            case FDIV -> Float.floatToIntBits(a / b);
+            default -> throw NVM.unsupported(inst);
+        };
+    }
+
+    private boolean isKnown(int local) {
+        return local >= 0 && local < knownIn.length && knownIn[local] == block;
+    }
+
+    private void setKnown(int local, int value) {
+        if (local >= 0 && local < knownIn.length) {
+            localValue[local] = value;
+            knownIn[local] = block;
+        }
+    }
+
+    private void forget(int local) {
+        if (local >= 0 && local < knownIn.length) {
+            knownIn[local] = 0;
+        }
+    }
+
+    /**
+     * Emits the held back constants, then the instruction at {@code ip} unchanged.
+     */
+    private void copy(int ip) {
+        flush();
+        int size = Math.min(size(code, ip), code.length - ip);
+        System.arraycopy(code, ip, out, length, size);
+        length += size;
+    }
+
+    private void flush() {
+        for (int i = 0; i < pendingTop; i++) {
+            emit(PUSH, pending[i]);
+        }
+        pendingTop = 0;
+    }
+
+    private void emit(int inst, int operand) {
+        out[length++] = inst;
+        out[length++] = operand;
+    }
+
+    /**
+     * The new address of every instruction reachable from a function entry once the others are
+     * removed, -1 for the others.
+     */
+    private static int[] reachable(int[] code, FunctionInfo[] table) {
+        boolean[] reached = new boolean[code.length + 1];
+        int[] work = new int[code.length + 1];
+        int top = 0;
+        for (FunctionInfo f : table) {
+            if (f != null && f.address >= 0 && f.address < code.length && !reached[f.address]) {
+                reached[f.address] = true;
+                work[top++] = f.address;
+            }
+        }
+        while (top > 0) {
+            int ip = work[--top];
+            int inst = code[ip];
+            int next = ip + size(code, ip);
+            int[] successors = {-1, -1};
+            if (PeepholeOptimizer.isJump(inst) && ip + PeepholeOptimizer.jumpOperand(inst) < code.length) {
+                successors[0] = code[ip + PeepholeOptimizer.jumpOperand(inst)];
+            }
+            if (inst != JMP && inst != RET && inst != STOP) {
+                successors[1] = next;
+            }
+            for (int target : successors) {
+                if (target >= 0 && target < code.length && !reached[target]) {
+                    reached[target] = true;
+                    work[top++] = target;
+                }
+            }
+        }
+
+        int[] relocation = new int[code.length + 1];
+        Arrays.fill(relocation, -1);
+        int length = 0;
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            if (reached[ip]) {
+                relocation[ip] = length;
+                length += Math.min(size(code, ip), code.length - ip);
+            }
+        }
+        relocation[code.length] = length;
+        return relocation;
+    }
+
+    private static int[] compact(int[] code, int[] relocation) {
+        int[] kept = new int[relocation[code.length]];
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            if (relocation[ip] >= 0) {
+                System.arraycopy(code, ip, kept, relocation[ip], Math.min(size(code, ip), code.length - ip));
+            }
+        }
+        relocateJumps(kept, relocation);
+        return kept;
+    }
+
+    private static void relocateJumps(int[] code, int[] relocation) {
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            int inst = code[ip];
+            int operand = ip + PeepholeOptimizer.jumpOperand(inst);
+            if (PeepholeOptimizer.isJump(inst) && operand < code.length) {
+                int target = code[operand];
+                if (target >= 0 && target < relocation.length && relocation[target] >= 0) {
+                    code[operand] = relocation[target];
+                }
+            }
+        }
+    }
+
+    private static FunctionInfo[] relocate(FunctionInfo[] functionTable, int[] relocation) {
+        FunctionInfo[] table = new FunctionInfo[functionTable.length];
+        for (int i = 0; i < functionTable.length; i++) {
+            FunctionInfo f = functionTable[i];
+            if (f != null) {
+                boolean valid = f.address >= 0 && f.address < relocation.length && relocation[f.address] >= 0;
+                table[i] = f.withAddress(valid ? relocation[f.address] : f.address);
+            }
+        }
+        return table;
+    }
+
+    static Map<String, Integer> relocateLabels(Map<String, Integer> labels, int[] relocation) {
+        Map<String, Integer> relocated = new HashMap<>();
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            int address = label.getValue();
+            if (address >= 0 && address < relocation.length && relocation[address] >= 0) {
+                relocated.put(label.getKey(), relocation[address]);
+            }
+        }
+        return relocated;
+    }
+
+    private static int count(int[] code) {
+        int count = 0;
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int size(int[] code, int ip) {
+        InstInfo info = INFO_MAP.get(code[ip]);
+        return info == null ? 1 : info.operandCount + 1;
+    }
+}
@@ -1,15 +1,18 @@
 package com.nlang.vm;
 
+/**
+ * Snapshot of one call frame, built from the frame stack by {@link NVM#context()} for diagnostics.
+ */
 public class Context {
     Context parent;
     FunctionInfo info;
     int[] memory;
     int returnAddress;
 
-    public Context(Context parent, FunctionInfo info, int returnAddress) {
+    public Context(Context parent, FunctionInfo info, int[] memory, int returnAddress) {
         this.parent = parent;
         this.info = info;
-        memory = new int[info.argCount * 10 + 10];
+        this.memory = memory;
         this.returnAddress = returnAddress;
     }
 }
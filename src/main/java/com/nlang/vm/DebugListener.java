@@ -0,0 +1,32 @@
+package com.nlang.vm;
+
+/**
+ * The debug mode output: every instruction, followed by the operand stack and the call memory once
+ * it ran, printed to stdout through {@link Diagnostic}.
+ */
+final class DebugListener implements ExecutionListener {
+
+    private final NVM vm;
+    private int[] code;
+
+    DebugListener(NVM vm) {
+        this.vm = vm;
+    }
+
+    @Override
+    public void start(int[] code, FunctionInfo[] functionTable) {
+        this.code = code;
+    }
+
+    @Override
+    public void instruction(int ip, int opcode, int sp, int fp) {
+        Diagnostic.printInstruction(opcode, code, ip);
+    }
+
+    @Override
+    public void executed(int[] stack, int sp) {
+        vm.flushOutput();
+        Diagnostic.printStack(stack, sp);
+        Diagnostic.printCallMemory(vm.context());
+    }
+}
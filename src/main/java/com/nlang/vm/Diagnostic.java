@@ -13,15 +13,11 @@ public class Diagnostic {
 
     public static void printInstruction(int inst, int[] code, int ip) {
         InstInfo instInfo = INFO_MAP.get(inst);
-        String name = instInfo.name;
-        String format;
-        if (instInfo.operandCount > 0) {
-            format = String.format("%s %d", name, code[ip + 1]);
-
-        } else {
-            format = String.format("%s", name);
+        StringBuilder sb = new StringBuilder(instInfo.name);
+        for (int i = 1; i <= instInfo.operandCount; i++) {
+            sb.append(' ').append(code[ip + i]);
         }
-        System.out.println(format);
+        System.out.println(sb);
     }
 
     public static void printStack(int[] stack, int sp) {
@@ -0,0 +1,54 @@
+package com.nlang.vm;
+
+/**
+ * Events of a traced execution, see {@link NVM#setListener(ExecutionListener)}. Every method does
+ * nothing by default.
+ */
+public interface ExecutionListener {
+
+    /**
+     * Once per execution, before the first instruction.
+     */
+    default void start(int[] code, FunctionInfo[] functionTable) {
+    }
+
+    /**
+     * Before the instruction at {@code ip} runs. {@code sp} indexes the top of the operand stack, -1
+     * when it is empty, and {@code fp} is local 0 of the current frame.
+     */
+    default void instruction(int ip, int opcode, int sp, int fp) {
+    }
+
+    /**
+     * After an instruction that pushed or popped, with the operand stack in {@code stack[0..sp]}.
+     * The array is the VM's own and must not be modified.
+     */
+    default void stackChanged(int[] stack, int sp) {
+    }
+
+    /**
+     * After every instruction, once its other events are reported, with the operand stack in
+     * {@code stack[0..sp]}.
+     */
+    default void executed(int[] stack, int sp) {
+    }
+
+    /**
+     * After a CALL or TAILCALL of {@code function}. {@code fp} is the callee's frame, or still the
+     * caller's when the result came from the memo cache or compiled code.
+     */
+    default void call(int function, int fp) {
+    }
+
+    /**
+     * After {@code function} returned to {@code returnAddress}.
+     */
+    default void ret(int function, int returnAddress) {
+    }
+
+    /**
+     * The execution failed with {@code e}, which is rethrown when this returns.
+     */
+    default void error(RuntimeException e) {
+    }
+}
@@ -5,10 +5,42 @@ public class FunctionInfo {
     String name;
     int argCount;
     int address;
+    int frameSize;
+
+    // set by Verifier, maxStack is -1 until the function is verified against verifiedCode; written
+    // once, before the table is shared, see Program
+    int maxStack = -1;
+    int maxLocals;
+    int[] verifiedCode;
+
+    // declared with a "pure" header, CALL results are memoized, see MemoCache
+    boolean pure;
+
+    /*
+     * JIT tier state, see JitCompiler, shared by every execution of the program. invocations is a
+     * best-effort count: executions on other threads may lose increments, which only delays
+     * compiling, and two may compile at once, which only wastes one of the results.
+     */
+    int invocations;
+    volatile CompiledFunction compiled;
+    // JitCompiler returned null, so calls stop trying
+    boolean uncompilable;
 
     public FunctionInfo(String name, int argCount, int address) {
         this.name = name;
         this.argCount = argCount;
         this.address = address;
+        this.frameSize = argCount * 10 + 10;
+    }
+
+    /**
+     * Copy of this function's declaration moved to {@code address}, without JIT state and not
+     * verified.
+     */
+    FunctionInfo withAddress(int address) {
+        FunctionInfo copy = new FunctionInfo(name, argCount, address);
+        copy.frameSize = frameSize;
+        copy.pure = pure;
+        return copy;
     }
 }
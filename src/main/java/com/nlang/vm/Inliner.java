@@ -0,0 +1,266 @@
+package com.nlang.vm;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Replaces CALLs of small leaf functions with a copy of the callee's body, saving the frame push,
+ * the argument copy and the return.
+ * <p>
+ * A function is inlined if it is not main, makes no calls, so it can never be part of a recursive
+ * cycle, and its body has at most {@code budget} instructions. At each call site the arguments are
+ * stored into locals past the caller's own, the callee's other locals are cleared as a new frame's
+ * would be, and the body follows with its locals moved to that range. Every RET but a final one
+ * becomes a JMP past the copy. The caller's frame grows by the largest callee it inlines; call
+ * sites share that range, as an inlined body has finished before the next one starts.
+ * <p>
+ * Only verified programs are inlined, as the verifier tells which function each instruction
+ * belongs to. Jump operands and {@link FunctionInfo#address} are relocated to the rewritten code;
+ * the input is left untouched and the callees are kept for the calls that remain.
+ */
+public class Inliner {
+
+    static final int DEFAULT_BUDGET = Integer.getInteger("nvm.inline.budget", 12);
+
+    public static class Result {
+        public final int[] code;
+        public final FunctionInfo[] functionTable;
+        public final int instructionsBefore;
+        public final int instructionsAfter;
+        public final int inlined;
+        private final int[] relocation;
+
+        private Result(int[] code, FunctionInfo[] functionTable, int[] relocation, int instructionsBefore,
+                       int instructionsAfter, int inlined) {
+            this.code = code;
+            this.functionTable = functionTable;
+            this.relocation = relocation;
+            this.instructionsBefore = instructionsBefore;
+            this.instructionsAfter = instructionsAfter;
+            this.inlined = inlined;
+        }
+
+        /**
+         * The labels of the input, such as {@link Program#labels}, moved to the rewritten code.
+         */
+        public Map<String, Integer> relocate(Map<String, Integer> labels) {
+            return ConstantFolder.relocateLabels(labels, relocation);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Instructions: %d -> %d, code size: %d, call sites inlined: %d",
+                    instructionsBefore, instructionsAfter, code.length, inlined);
+        }
+    }
+
+    private final int[] code;
+    private final FunctionInfo[] functionTable;
+    private final int budget;
+    private final int[] owners;
+    // per function: instruction count, locals used and whether it calls anything
+    private final int[] sizes;
+    private final int[] locals;
+    private final boolean[] calls;
+
+    private int[] out;
+    private int length;
+    // out positions of jump operands that already hold their final target
+    private boolean[] resolved;
+
+    private Inliner(int[] code, FunctionInfo[] functionTable, int budget) {
+        this.code = code;
+        this.functionTable = functionTable;
+        this.budget = budget;
+        this.owners = new int[code.length];
+        this.sizes = new int[functionTable.length];
+        this.locals = new int[functionTable.length];
+        this.calls = new boolean[functionTable.length];
+    }
+
+    public static Result optimize(int[] code, FunctionInfo[] functionTable) {
+        return optimize(code, functionTable, DEFAULT_BUDGET);
+    }
+
+    public static Result optimize(int[] code, FunctionInfo[] functionTable, int budget) {
+        return new Inliner(code, functionTable, budget).optimize();
+    }
+
+    private Result optimize() {
+        int instructionsBefore = count(code);
+        int[] relocation = new int[code.length + 1];
+        for (int ip = 0; ip <= code.length; ip++) {
+            relocation[ip] = ip;
+        }
+        if (Verifier.stackDepths(code, functionTable, owners) == null) {
+            FunctionInfo[] table = new FunctionInfo[functionTable.length];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = functionTable[i] == null ? null : functionTable[i].withAddress(functionTable[i].address);
+            }
+            return new Result(code.clone(), table, relocation, instructionsBefore, instructionsBefore, 0);
+        }
+        measure();
+
+        out = new int[code.length * 2];
+        resolved = new boolean[out.length];
+        int[] extraLocals = new int[functionTable.length];
+        int inlined = 0;
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            relocation[ip] = length;
+            int inst = code[ip];
+            int caller = owners[ip];
+            if ((inst == CALL || inst == TAILCALL) && caller >= 0 && isInlinable(code[ip + 1])) {
+                int callee = code[ip + 1];
+                inline(callee, caller);
+                extraLocals[caller] = Math.max(extraLocals[caller], locals[callee]);
+                inlined++;
+            } else {
+                copy(ip, -1);
+            }
+        }
+        relocation[code.length] = length;
+
+        int[] inlinedCode = Arrays.copyOf(out, length);
+        for (int ip = 0; ip < inlinedCode.length; ip += size(inlinedCode, ip)) {
+            int inst = inlinedCode[ip];
+            int operand = ip + PeepholeOptimizer.jumpOperand(inst);
+            if (PeepholeOptimizer.isJump(inst) && !resolved[operand]) {
+                inlinedCode[operand] = relocation[inlinedCode[operand]];
+            }
+        }
+        FunctionInfo[] table = new FunctionInfo[functionTable.length];
+        for (int f = 0; f < functionTable.length; f++) {
+            FunctionInfo function = functionTable[f];
+            if (function != null) {
+                table[f] = function.withAddress(relocation[function.address]);
+                table[f].frameSize = Math.max(function.frameSize, locals[f] + extraLocals[f]);
+            }
+        }
+        return new Result(inlinedCode, table, relocation, instructionsBefore, count(inlinedCode), inlined);
+    }
+
+    /**
+     * Sizes every function from the instructions the verifier found it owns.
+     */
+    private void measure() {
+        for (int f = 0; f < functionTable.length; f++) {
+            if (functionTable[f] != null) {
+                locals[f] = functionTable[f].argCount;
+            }
+        }
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            int f = owners[ip];
+            if (f < 0) {
+                continue;
+            }
+            int inst = code[ip];
+            sizes[f]++;
+            calls[f] |= inst == CALL || inst == TAILCALL || inst == SPAWN;
+            for (int i = 1; i <= Verifier.localOperands(inst); i++) {
+                locals[f] = Math.max(locals[f], code[ip + i] + 1);
+            }
+        }
+    }
+
+    private boolean isInlinable(int callee) {
+        return callee > 0 && !calls[callee] && sizes[callee] <= budget;
+    }
+
+    /**
+     * Emits the body of {@code callee} with its locals moved past those of {@code caller}.
+     */
+    private void inline(int callee, int caller) {
+        FunctionInfo function = functionTable[callee];
+        int base = locals[caller];
+        for (int i = function.argCount - 1; i >= 0; i--) {
+            emit(STORE, base + i);
+        }
+        for (int i = function.argCount; i < locals[callee]; i++) {
+            emit(PUSH, 0);
+            emit(STORE, base + i);
+        }
+
+        int[] bodyAt = new int[code.length];
+        int[] returnJumps = new int[sizes[callee]];
+        int returns = 0;
+        int last = -1;
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            if (owners[ip] == callee) {
+                last = ip;
+            }
+        }
+        int start = length;
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            if (owners[ip] != callee) {
+                continue;
+            }
+            bodyAt[ip] = length;
+            if (code[ip] == RET) {
+                if (ip != last) {
+                    emit(JMP, 0);
+                    returnJumps[returns++] = length - 1;
+                }
+            } else {
+                copy(ip, base);
+            }
+        }
+        int end = length;
+        for (int at = start; at < end; at += size(out, at)) {
+            int inst = out[at];
+            int operand = at + PeepholeOptimizer.jumpOperand(inst);
+            if (PeepholeOptimizer.isJump(inst)) {
+                out[operand] = bodyAt[out[operand]];
+                resolved[operand] = true;
+            }
+        }
+        for (int i = 0; i < returns; i++) {
+            out[returnJumps[i]] = end;
+            resolved[returnJumps[i]] = true;
+        }
+    }
+
+    /**
+     * Copies the instruction at {@code ip}, adding {@code base} to its local operands unless it is
+     * negative.
+     */
+    private void copy(int ip, int base) {
+        int inst = code[ip];
+        int size = Math.min(size(code, ip), code.length - ip);
+        ensure(size);
+        System.arraycopy(code, ip, out, length, size);
+        if (base >= 0) {
+            for (int i = 1; i <= Verifier.localOperands(inst); i++) {
+                out[length + i] += base;
+            }
+        }
+        length += size;
+    }
+
+    private void emit(int inst, int operand) {
+        ensure(2);
+        out[length++] = inst;
+        out[length++] = operand;
+    }
+
+    private void ensure(int size) {
+        if (length + size > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, length + size));
+            resolved = Arrays.copyOf(resolved, out.length);
+        }
+    }
+
+    private static int count(int[] code) {
+        int count = 0;
+        for (int ip = 0; ip < code.length; ip += size(code, ip)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int size(int[] code, int ip) {
+        InstInfo info = INFO_MAP.get(code[ip]);
+        return info == null ? 1 : info.operandCount + 1;
+    }
+}
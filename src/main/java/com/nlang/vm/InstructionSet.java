@@ -26,24 +26,56 @@ public class InstructionSet {
     static final int FLT = 33;
     static final int FGTE = 34;
 
+    // Strings are constant pool indexes or StringHeap handles
+    static final int SCONCAT = 35;      // a b -> a + b
+    static final int SLEN = 36;         // s -> length
+    static final int SSUB = 37;         // s begin end -> substring
+    static final int SCMP = 38;         // a b -> -1, 0 or 1
+    static final int ITOS = 39;         // int -> string
+
     static final int PRINT = 12;
     static final int FPRINT = 42;
     static final int SPRINT = 49;
 
     static final int LOAD = 13;
     static final int STORE = 14;
-    static final int ALOAD = 29;
-    static final int ASTORE = 30;
+    static final int ALOAD = 29;        // array index -> value
+    static final int ASTORE = 30;       // array index value ->
     static final int LDC = 44;
 
     static final int CALL = 15;
     static final int RET = 16;
+    static final int TAILCALL = 17;     // a CALL directly followed by RET, only produced by Assembler
+    static final int SPAWN = 69;        // SPAWN f: args -> task, runs f(args) in parallel, see SpawnTask
+    static final int JOIN = 70;         // task -> f(args)
 
 
     static final int COPY = 27;
-    static final int NEW_ARRAY = 28;
-    static final int IASTORE = 31;
-    static final int FASTORE = 32;
+    static final int NEW_ARRAY = 28;    // length -> array, see ArrayHeap
+    static final int IASTORE = 31;      // ASTORE of an int
+    static final int FASTORE = 32;      // ASTORE of a float
+
+    // Bulk array instructions, run by ArrayKernels
+    static final int IASUM = 60;        // array -> sum
+    static final int FASUM = 61;
+    static final int IADOT = 62;        // a b -> dot product
+    static final int FADOT = 63;
+    static final int IAADD = 64;        // dst a b ->, dst[i] = a[i] + b[i]
+    static final int IAMUL = 65;
+    static final int FAADD = 66;
+    static final int FAMUL = 67;
+    static final int AFILL = 68;        // array value ->
+
+    // Superinstructions, only produced by PeepholeOptimizer
+    static final int IINC = 50;         // IINC local delta
+    static final int MOVE = 51;         // MOVE from to
+    static final int IADD_LLS = 52;     // IADD_LLS a b dst
+    static final int ISUB_LLS = 53;
+    static final int IMUL_LLS = 54;
+    static final int ILT_JZ_LL = 55;    // ILT_JZ_LL a b target
+    static final int ILT_JZ_LC = 56;    // ILT_JZ_LC a constant target
+    static final int IGTE_JZ_LL = 57;
+    static final int IGTE_JZ_LC = 58;
 
 
     static class InstInfo {
@@ -86,12 +118,46 @@ public class InstructionSet {
         INFO_MAP.put(FPRINT, new InstInfo(FPRINT, 0, "FPRINT"));
         INFO_MAP.put(SPRINT, new InstInfo(SPRINT, 0, "SPRINT"));
 
+        INFO_MAP.put(NEW_ARRAY, new InstInfo(NEW_ARRAY, 0, "NEW_ARRAY"));
+        INFO_MAP.put(ALOAD, new InstInfo(ALOAD, 0, "ALOAD"));
+        INFO_MAP.put(ASTORE, new InstInfo(ASTORE, 0, "ASTORE"));
+        INFO_MAP.put(IASTORE, new InstInfo(IASTORE, 0, "IASTORE"));
+        INFO_MAP.put(FASTORE, new InstInfo(FASTORE, 0, "FASTORE"));
+
+        INFO_MAP.put(IASUM, new InstInfo(IASUM, 0, "IASUM"));
+        INFO_MAP.put(FASUM, new InstInfo(FASUM, 0, "FASUM"));
+        INFO_MAP.put(IADOT, new InstInfo(IADOT, 0, "IADOT"));
+        INFO_MAP.put(FADOT, new InstInfo(FADOT, 0, "FADOT"));
+        INFO_MAP.put(IAADD, new InstInfo(IAADD, 0, "IAADD"));
+        INFO_MAP.put(IAMUL, new InstInfo(IAMUL, 0, "IAMUL"));
+        INFO_MAP.put(FAADD, new InstInfo(FAADD, 0, "FAADD"));
+        INFO_MAP.put(FAMUL, new InstInfo(FAMUL, 0, "FAMUL"));
+        INFO_MAP.put(AFILL, new InstInfo(AFILL, 0, "AFILL"));
+
+        INFO_MAP.put(SCONCAT, new InstInfo(SCONCAT, 0, "SCONCAT"));
+        INFO_MAP.put(SLEN, new InstInfo(SLEN, 0, "SLEN"));
+        INFO_MAP.put(SSUB, new InstInfo(SSUB, 0, "SSUB"));
+        INFO_MAP.put(SCMP, new InstInfo(SCMP, 0, "SCMP"));
+        INFO_MAP.put(ITOS, new InstInfo(ITOS, 0, "ITOS"));
+
         INFO_MAP.put(LOAD, new InstInfo(LOAD, 1, "LOAD"));
         INFO_MAP.put(LDC, new InstInfo(LDC, 1, "LDC"));
         INFO_MAP.put(STORE, new InstInfo(STORE, 1, "STORE"));
         INFO_MAP.put(CALL, new InstInfo(CALL, 1, "CALL"));
         INFO_MAP.put(RET, new InstInfo(RET, 0, "RET"));
-
+        INFO_MAP.put(TAILCALL, new InstInfo(TAILCALL, 1, "TAILCALL"));
+        INFO_MAP.put(SPAWN, new InstInfo(SPAWN, 1, "SPAWN"));
+        INFO_MAP.put(JOIN, new InstInfo(JOIN, 0, "JOIN"));
+
+        INFO_MAP.put(IINC, new InstInfo(IINC, 2, "IINC"));
+        INFO_MAP.put(MOVE, new InstInfo(MOVE, 2, "MOVE"));
+        INFO_MAP.put(IADD_LLS, new InstInfo(IADD_LLS, 3, "IADD_LLS"));
+        INFO_MAP.put(ISUB_LLS, new InstInfo(ISUB_LLS, 3, "ISUB_LLS"));
+        INFO_MAP.put(IMUL_LLS, new InstInfo(IMUL_LLS, 3, "IMUL_LLS"));
+        INFO_MAP.put(ILT_JZ_LL, new InstInfo(ILT_JZ_LL, 3, "ILT_JZ_LL"));
+        INFO_MAP.put(ILT_JZ_LC, new InstInfo(ILT_JZ_LC, 3, "ILT_JZ_LC"));
+        INFO_MAP.put(IGTE_JZ_LL, new InstInfo(IGTE_JZ_LL, 3, "IGE_JZ_LL"));
+        INFO_MAP.put(IGTE_JZ_LC, new InstInfo(IGTE_JZ_LC, 3, "IGE_JZ_LC"));
     }
 
     static {
@@ -118,13 +184,35 @@ public class InstructionSet {
         STOI.put("FPRINT", FPRINT);
         STOI.put("SPRINT", SPRINT);
 
+        STOI.put("SCONCAT", SCONCAT);
+        STOI.put("SLEN", SLEN);
+        STOI.put("SSUB", SSUB);
+        STOI.put("SCMP", SCMP);
+        STOI.put("ITOS", ITOS);
+
         STOI.put("LOAD", LOAD);
         STOI.put("LDC", LDC);
         STOI.put("STORE", STORE);
 
+        STOI.put("NEW_ARRAY", NEW_ARRAY);
+        STOI.put("ALOAD", ALOAD);
+        STOI.put("ASTORE", ASTORE);
+        STOI.put("IASTORE", IASTORE);
+        STOI.put("FASTORE", FASTORE);
+        STOI.put("IASUM", IASUM);
+        STOI.put("FASUM", FASUM);
+        STOI.put("IADOT", IADOT);
+        STOI.put("FADOT", FADOT);
+        STOI.put("IAADD", IAADD);
+        STOI.put("IAMUL", IAMUL);
+        STOI.put("FAADD", FAADD);
+        STOI.put("FAMUL", FAMUL);
+        STOI.put("AFILL", AFILL);
 
         STOI.put("CALL", CALL);
         STOI.put("RET", RET);
+        STOI.put("SPAWN", SPAWN);
+        STOI.put("JOIN", JOIN);
     }
 
 }
@@ -0,0 +1,671 @@
+package com.nlang.vm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Translates a function into a hidden JVM class so HotSpot can compile it.
+ * <p>
+ * The NVM operand stack of the function becomes the JVM operand stack and local {@code i} becomes
+ * JVM local {@code i + 1} of a static {@code run(NVM, int...)} method. Recursive calls are direct
+ * {@code invokestatic}s until {@link NVM#compiledDepthLimit} compiled calls are nested, and from
+ * there run interpreted; recursive tail calls jump back to the start. Calls to other functions
+ * go through {@link NVM#invokeFromCompiled(int)} so they can land in the interpreter or in another
+ * compiled function.
+ * <p>
+ * Only functions whose stack depth is the same on every path, that return exactly one value and
+ * only call such functions are compiled; {@link #compile} returns null for the rest.
+ * <p>
+ * {@link #compileLoop} translates a single loop the same way for on-stack replacement, so a loop
+ * that runs long inside one call gets compiled without waiting for the function to be called often.
+ */
+class JitCompiler {
+
+    private static final String NVM_TYPE = Type.getInternalName(NVM.class);
+    private static final String JIT_TYPE = Type.getInternalName(JitCompiler.class);
+    private static final String BINARY_INT = "(II)I";
+
+    private final int[] code;
+    private final FunctionInfo[] functionTable;
+    private final Map<Integer, Boolean> returnsOneValue = new HashMap<>();
+    // JVM slot of NVM local 0
+    private int firstLocal = 1;
+
+    private JitCompiler(int[] code, FunctionInfo[] functionTable) {
+        this.code = code;
+        this.functionTable = functionTable;
+    }
+
+    static CompiledFunction compile(int[] code, FunctionInfo[] functionTable, int functionIndex) {
+        JitCompiler compiler = new JitCompiler(code, functionTable);
+        int[] depths = compiler.analyze(functionIndex);
+        if (depths == null) {
+            return null;
+        }
+        byte[] bytes = compiler.generate(functionIndex, depths);
+        return (CompiledFunction) load(bytes, "function " + functionTable[functionIndex].name);
+    }
+
+    /**
+     * Translates the loop of the function whose back edges jump to {@code header} into a
+     * {@link CompiledLoop} to enter in the middle of an interpreted call, or returns null if it
+     * cannot be compiled. The loop is every instruction on a path from the header back to it. It
+     * is entered with an empty operand stack at the header, as far as the loop can see, and may only
+     * leave it empty, so nothing but the locals moves between the interpreter and the compiled loop.
+     */
+    static CompiledLoop compileLoop(int[] code, FunctionInfo[] functionTable, int functionIndex, int header) {
+        JitCompiler compiler = new JitCompiler(code, functionTable);
+        compiler.firstLocal = 2;
+        int[] depths = compiler.analyzeLoop(functionIndex, header);
+        if (depths == null) {
+            return null;
+        }
+        byte[] bytes = compiler.generateLoop(functionIndex, header, depths);
+        return (CompiledLoop) load(bytes, "loop at " + header + " in " + functionTable[functionIndex].name);
+    }
+
+    private static Object load(byte[] bytes, String what) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to load compiled " + what, e);
+        }
+    }
+
+    /**
+     * Computes the stack depth before each reachable instruction of the function, or returns null
+     * if the function cannot be compiled.
+     */
+    private int[] analyze(int functionIndex) {
+        // assume it does while analyzing, so (mutual) recursion terminates
+        returnsOneValue.put(functionIndex, true);
+        FunctionInfo function = functionTable[functionIndex];
+        int frameSize = function.frameSize;
+        int[] depths = new int[code.length];
+        Arrays.fill(depths, -1);
+        int[] worklist = new int[code.length + 1];
+        int pending = 0;
+        depths[function.address] = 0;
+        worklist[pending++] = function.address;
+
+        while (pending > 0) {
+            int ip = worklist[--pending];
+            int depth = depths[ip];
+            int inst = code[ip];
+            InstInfo info = INFO_MAP.get(inst);
+            if (info == null || ip + info.operandCount >= code.length) {
+                return null;
+            }
+            int next = ip + info.operandCount + 1;
+            int after = depthAfter(ip, depth, frameSize);
+            if (after < 0) {
+                return null;
+            }
+
+            if (inst == RET) {
+                if (depth != 1) {
+                    return null;
+                }
+                continue;
+            }
+            if (PeepholeOptimizer.isJump(inst)) {
+                int target = code[ip + PeepholeOptimizer.jumpOperand(inst)];
+                int reached = merge(depths, target, after);
+                if (reached < 0) {
+                    return null;
+                }
+                if (reached > 0) {
+                    worklist[pending++] = target;
+                }
+                if (inst == JMP) {
+                    continue;
+                }
+            }
+            int reached = merge(depths, next, after);
+            if (reached < 0) {
+                return null;
+            }
+            if (reached > 0) {
+                worklist[pending++] = next;
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * Computes the stack depth, relative to the header, before each instruction of the loop at
+     * {@code header}, or returns null if the loop cannot be compiled. Addresses outside the loop
+     * stay -1.
+     */
+    private int[] analyzeLoop(int functionIndex, int header) {
+        boolean[] inLoop = loopBody(header);
+        if (inLoop == null) {
+            return null;
+        }
+        int frameSize = functionTable[functionIndex].frameSize;
+        int[] depths = new int[code.length];
+        Arrays.fill(depths, -1);
+        int[] worklist = new int[code.length + 1];
+        int pending = 0;
+        depths[header] = 0;
+        worklist[pending++] = header;
+
+        while (pending > 0) {
+            int ip = worklist[--pending];
+            int after = depthAfter(ip, depths[ip], frameSize);
+            if (after < 0) {
+                return null;
+            }
+            for (int target : successors(ip)) {
+                if (!inLoop[target]) {
+                    // an exit hands the frame back to the interpreter
+                    if (after != 0) {
+                        return null;
+                    }
+                    continue;
+                }
+                int reached = merge(depths, target, after);
+                if (reached < 0) {
+                    return null;
+                }
+                if (reached > 0) {
+                    worklist[pending++] = target;
+                }
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * Marks the instructions reachable from {@code header} that can get back to it, or returns null
+     * if the code around it cannot be decoded.
+     */
+    private boolean[] loopBody(int header) {
+        boolean[] reached = new boolean[code.length];
+        int[] worklist = new int[code.length + 1];
+        int pending = 0;
+        reached[header] = true;
+        worklist[pending++] = header;
+        while (pending > 0) {
+            int ip = worklist[--pending];
+            InstInfo info = INFO_MAP.get(code[ip]);
+            if (info == null || ip + info.operandCount >= code.length) {
+                return null;
+            }
+            for (int target : successors(ip)) {
+                if (target < 0 || target >= code.length) {
+                    return null;
+                }
+                if (!reached[target]) {
+                    reached[target] = true;
+                    worklist[pending++] = target;
+                }
+            }
+        }
+
+        boolean[] inLoop = new boolean[code.length];
+        inLoop[header] = true;
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int ip = 0; ip < code.length; ip++) {
+                if (reached[ip] && !inLoop[ip]) {
+                    for (int target : successors(ip)) {
+                        if (inLoop[target]) {
+                            inLoop[ip] = true;
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return inLoop;
+    }
+
+    /**
+     * The addresses control can go to from {@code ip} without leaving the function's frame.
+     */
+    private int[] successors(int ip) {
+        int inst = code[ip];
+        if (inst == RET || inst == TAILCALL || inst == STOP) {
+            return new int[0];
+        }
+        int next = ip + INFO_MAP.get(inst).operandCount + 1;
+        if (!PeepholeOptimizer.isJump(inst)) {
+            return new int[]{next};
+        }
+        int target = code[ip + PeepholeOptimizer.jumpOperand(inst)];
+        return inst == JMP ? new int[]{target} : new int[]{target, next};
+    }
+
+    /**
+     * The stack depth after the instruction at {@code ip} runs at {@code depth}, or -1 if it cannot
+     * be compiled there.
+     */
+    private int depthAfter(int ip, int depth, int frameSize) {
+        int inst = code[ip];
+        int pops;
+        int pushes;
+        switch (inst) {
+            case PUSH, LDC -> { pops = 0; pushes = 1; }
+            case IADD, ISUB, IMUL, IDIV, FADD, FSUB, FMUL, FDIV, ILT, IGTE -> { pops = 2; pushes = 1; }
+            case JZ, JNZ, STORE, PRINT, FPRINT, SPRINT -> { pops = 1; pushes = 0; }
+            case LOAD -> { pops = 0; pushes = 1; }
+            case JMP, RET, IINC, MOVE, IADD_LLS, ISUB_LLS, IMUL_LLS,
+                 ILT_JZ_LL, ILT_JZ_LC, IGTE_JZ_LL, IGTE_JZ_LC -> { pops = 0; pushes = 0; }
+            case CALL, TAILCALL -> {
+                int callee = code[ip + 1];
+                if (callee < 0 || callee >= functionTable.length || functionTable[callee] == null
+                        || !returnsOneValue(callee)) {
+                    return -1;
+                }
+                pops = functionTable[callee].argCount;
+                pushes = 1;
+            }
+            default -> {
+                return -1;
+            }
+        }
+        if (depth < pops || !localsInFrame(inst, ip, frameSize)) {
+            return -1;
+        }
+        return depth - pops + pushes;
+    }
+
+    /**
+     * Records the stack depth at {@code target}: returns 1 if the address is reached for the first
+     * time, 0 if the depth matches an earlier path and -1 if it does not.
+     */
+    private static int merge(int[] depths, int target, int depth) {
+        if (target < 0 || target >= depths.length) {
+            return -1;
+        }
+        if (depths[target] == -1) {
+            depths[target] = depth;
+            return 1;
+        }
+        return depths[target] == depth ? 0 : -1;
+    }
+
+    private boolean localsInFrame(int inst, int ip, int frameSize) {
+        return switch (inst) {
+            case LOAD, STORE, IINC, ILT_JZ_LC, IGTE_JZ_LC -> inFrame(ip, 1, frameSize);
+            case MOVE, ILT_JZ_LL, IGTE_JZ_LL -> inFrame(ip, 2, frameSize);
+            case IADD_LLS, ISUB_LLS, IMUL_LLS -> inFrame(ip, 3, frameSize);
+            default -> true;
+        };
+    }
+
+    private boolean inFrame(int ip, int operands, int frameSize) {
+        for (int i = 1; i <= operands; i++) {
+            if (code[ip + i] < 0 || code[ip + i] >= frameSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean returnsOneValue(int functionIndex) {
+        Boolean known = returnsOneValue.get(functionIndex);
+        if (known != null) {
+            return known;
+        }
+        boolean result = analyze(functionIndex) != null;
+        returnsOneValue.put(functionIndex, result);
+        return result;
+    }
+
+    private byte[] generate(int functionIndex, int[] depths) {
+        FunctionInfo function = functionTable[functionIndex];
+        String className = "com/nlang/vm/Compiled$" + function.name.replaceAll("[^A-Za-z0-9_]", "_");
+        String runDescriptor = "(L" + NVM_TYPE + ";" + "I".repeat(function.argCount) + ")I";
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V17, Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null, "java/lang/Object",
+                new String[]{Type.getInternalName(CompiledFunction.class)});
+
+        visitConstructor(cw);
+
+        MethodVisitor invoke = cw.visitMethod(Opcodes.ACC_PUBLIC, "invoke", "(L" + NVM_TYPE + ";[II)I", null, null);
+        invoke.visitCode();
+        invoke.visitVarInsn(Opcodes.ALOAD, 1);
+        for (int i = 0; i < function.argCount; i++) {
+            invoke.visitVarInsn(Opcodes.ALOAD, 2);
+            invoke.visitVarInsn(Opcodes.ILOAD, 3);
+            invoke.visitLdcInsn(i);
+            invoke.visitInsn(Opcodes.IADD);
+            invoke.visitInsn(Opcodes.IALOAD);
+        }
+        invoke.visitMethodInsn(Opcodes.INVOKESTATIC, className, "run", runDescriptor, false);
+        invoke.visitInsn(Opcodes.IRETURN);
+        invoke.visitMaxs(0, 0);
+        invoke.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "run", runDescriptor, null, null);
+        mv.visitCode();
+        generateBody(mv, function, functionIndex, className, runDescriptor, depths);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private byte[] generateLoop(int functionIndex, int header, int[] depths) {
+        FunctionInfo function = functionTable[functionIndex];
+        String className = "com/nlang/vm/CompiledLoop$" + function.name.replaceAll("[^A-Za-z0-9_]", "_") + "$" + header;
+        String loopDescriptor = "(L" + NVM_TYPE + ";I)I";
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V17, Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null, "java/lang/Object",
+                new String[]{Type.getInternalName(CompiledLoop.class)});
+        visitConstructor(cw);
+
+        MethodVisitor run = cw.visitMethod(Opcodes.ACC_PUBLIC, "run", loopDescriptor, null, null);
+        run.visitCode();
+        run.visitVarInsn(Opcodes.ALOAD, 1);
+        run.visitVarInsn(Opcodes.ILOAD, 2);
+        run.visitMethodInsn(Opcodes.INVOKESTATIC, className, "loop", loopDescriptor, false);
+        run.visitInsn(Opcodes.IRETURN);
+        run.visitMaxs(0, 0);
+        run.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "loop", loopDescriptor, null, null);
+        mv.visitCode();
+        generateLoopBody(mv, function, header, depths);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * loop(NVM vm, int fp) copies the frame's locals into JVM locals, runs from the header and, at an
+     * exit or when a pause is requested at the header, copies them back and returns the address the
+     * interpreter continues at.
+     */
+    private void generateLoopBody(MethodVisitor mv, FunctionInfo function, int header, int[] depths) {
+        int locals = function.frameSize;
+        int scratch = firstLocal + locals;
+        for (int i = 0; i < locals; i++) {
+            loadFrameSlot(mv, i);
+            mv.visitInsn(Opcodes.IALOAD);
+            mv.visitVarInsn(Opcodes.ISTORE, firstLocal + i);
+        }
+
+        Label[] labels = new Label[code.length];
+        int[] exits = new int[code.length];
+        int exitCount = 0;
+        for (int ip = 0; ip < code.length; ip++) {
+            if (depths[ip] >= 0) {
+                labels[ip] = new Label();
+            }
+        }
+        for (int ip = 0; ip < code.length; ip++) {
+            if (depths[ip] < 0) {
+                continue;
+            }
+            for (int target : successors(ip)) {
+                if (labels[target] == null) {
+                    labels[target] = new Label();
+                    exits[exitCount++] = target;
+                }
+            }
+        }
+        Label pause = new Label();
+
+        mv.visitJumpInsn(Opcodes.GOTO, labels[header]);
+        for (int ip = 0; ip < code.length; ip++) {
+            if (depths[ip] < 0) {
+                continue;
+            }
+            mv.visitLabel(labels[ip]);
+            if (ip == header) {
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitFieldInsn(Opcodes.GETFIELD, NVM_TYPE, "pauseRequested", "Z");
+                mv.visitJumpInsn(Opcodes.IFNE, pause);
+            }
+            emitInstruction(mv, ip, labels, function, -1, null, null, depths, scratch);
+            int next = ip + INFO_MAP.get(code[ip]).operandCount + 1;
+            if (code[ip] != JMP && depths[next] < 0) {
+                mv.visitJumpInsn(Opcodes.GOTO, labels[next]);
+            }
+        }
+
+        for (int i = 0; i <= exitCount; i++) {
+            mv.visitLabel(i < exitCount ? labels[exits[i]] : pause);
+            for (int local = 0; local < locals; local++) {
+                loadFrameSlot(mv, local);
+                mv.visitVarInsn(Opcodes.ILOAD, firstLocal + local);
+                mv.visitInsn(Opcodes.IASTORE);
+            }
+            mv.visitLdcInsn(i < exitCount ? exits[i] : header);
+            mv.visitInsn(Opcodes.IRETURN);
+        }
+    }
+
+    /**
+     * Pushes vm.frames and the index of local {@code i} of the frame at fp. The array is read from
+     * the VM every time, as a call from the loop may have grown it.
+     */
+    private static void loadFrameSlot(MethodVisitor mv, int i) {
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETFIELD, NVM_TYPE, "frames", "[I");
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitLdcInsn(i);
+        mv.visitInsn(Opcodes.IADD);
+    }
+
+    /**
+     * vm.compiledDepth += 1, or -= 1 with ISUB, leaving the stack as it was.
+     */
+    private static void addCompiledDepth(MethodVisitor mv, int opcode) {
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitFieldInsn(Opcodes.GETFIELD, NVM_TYPE, "compiledDepth", "I");
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(opcode);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, NVM_TYPE, "compiledDepth", "I");
+    }
+
+    /**
+     * Calls {@code fIndex} with the arguments in the JVM locals from {@code scratch} through
+     * {@link NVM#invokeFromCompiled(int)}, leaving its result.
+     */
+    private static void invokeFromCompiled(MethodVisitor mv, int fIndex, int argCount, int scratch) {
+        for (int i = 0; i < argCount; i++) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitVarInsn(Opcodes.ILOAD, scratch + i);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, NVM_TYPE, "push", "(I)V", false);
+        }
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitLdcInsn(fIndex);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, NVM_TYPE, "invokeFromCompiled", "(I)I", false);
+    }
+
+    private static void visitConstructor(ClassWriter cw) {
+        MethodVisitor init = cw.visitMethod(0, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+    }
+
+    private void generateBody(MethodVisitor mv, FunctionInfo function, int functionIndex, String className,
+                              String runDescriptor, int[] depths) {
+        int locals = function.frameSize;
+        int scratch = firstLocal + locals;
+        for (int i = function.argCount; i < locals; i++) {
+            mv.visitInsn(Opcodes.ICONST_0);
+            mv.visitVarInsn(Opcodes.ISTORE, firstLocal + i);
+        }
+
+        Label[] labels = new Label[code.length];
+        for (int ip = 0; ip < code.length; ip++) {
+            if (depths[ip] >= 0) {
+                labels[ip] = new Label();
+            }
+        }
+
+        for (int ip = 0; ip < code.length; ip++) {
+            if (depths[ip] < 0) {
+                continue;
+            }
+            mv.visitLabel(labels[ip]);
+            emitInstruction(mv, ip, labels, function, functionIndex, className, runDescriptor, depths, scratch);
+        }
+    }
+
+    /**
+     * Emits the instruction at {@code ip}. Jumps go to {@code labels} of their targets and NVM local
+     * {@code i} is JVM local {@code firstLocal + i}.
+     */
+    private void emitInstruction(MethodVisitor mv, int ip, Label[] labels, FunctionInfo function, int functionIndex,
+                                 String className, String runDescriptor, int[] depths, int scratch) {
+        int locals = function.frameSize;
+        int inst = code[ip];
+        int a = ip + 1 < code.length ? code[ip + 1] : 0;
+        int b = ip + 2 < code.length ? code[ip + 2] : 0;
+        int c = ip + 3 < code.length ? code[ip + 3] : 0;
+        switch (inst) {
+            case PUSH, LDC -> mv.visitLdcInsn(a);
+            case IADD -> mv.visitInsn(Opcodes.IADD);
+            case ISUB -> mv.visitInsn(Opcodes.ISUB);
+            case IMUL -> mv.visitInsn(Opcodes.IMUL);
+            case IDIV -> mv.visitInsn(Opcodes.IDIV);
+            case FADD -> mv.visitMethodInsn(Opcodes.INVOKESTATIC, JIT_TYPE, "fadd", BINARY_INT, false);
+            case FSUB -> mv.visitMethodInsn(Opcodes.INVOKESTATIC, JIT_TYPE, "fsub", BINARY_INT, false);
+            case FMUL -> mv.visitMethodInsn(Opcodes.INVOKESTATIC, JIT_TYPE, "fmul", BINARY_INT, false);
+            case FDIV -> mv.visitMethodInsn(Opcodes.INVOKESTATIC, JIT_TYPE, "fdiv", BINARY_INT, false);
+            case ILT -> mv.visitMethodInsn(Opcodes.INVOKESTATIC, JIT_TYPE, "ilt", BINARY_INT, false);
+            case IGTE -> mv.visitMethodInsn(Opcodes.INVOKESTATIC, JIT_TYPE, "igte", BINARY_INT, false);
+            case JZ -> mv.visitJumpInsn(Opcodes.IFEQ, labels[a]);
+            case JNZ -> {
+                mv.visitInsn(Opcodes.ICONST_1);
+                mv.visitJumpInsn(Opcodes.IF_ICMPEQ, labels[a]);
+            }
+            case JMP -> mv.visitJumpInsn(Opcodes.GOTO, labels[a]);
+            case LOAD -> mv.visitVarInsn(Opcodes.ILOAD, firstLocal + a);
+            case STORE -> mv.visitVarInsn(Opcodes.ISTORE, firstLocal + a);
+            case CALL, TAILCALL -> {
+                int argCount = functionTable[a].argCount;
+                for (int i = argCount - 1; i >= 0; i--) {
+                    mv.visitVarInsn(Opcodes.ISTORE, scratch + i);
+                }
+                if (inst == TAILCALL && a == functionIndex && depths[ip] == argCount) {
+                    // self tail call with nothing else on the stack: rebind the arguments and loop
+                    for (int i = argCount - 1; i >= 0; i--) {
+                        mv.visitVarInsn(Opcodes.ILOAD, scratch + i);
+                        mv.visitVarInsn(Opcodes.ISTORE, firstLocal + i);
+                    }
+                    for (int i = argCount; i < locals; i++) {
+                        mv.visitInsn(Opcodes.ICONST_0);
+                        mv.visitVarInsn(Opcodes.ISTORE, firstLocal + i);
+                    }
+                    mv.visitJumpInsn(Opcodes.GOTO, labels[function.address]);
+                } else if (a == functionIndex && !functionTable[a].pure) {
+                    // pure functions recurse through the interpreter's call so the memo cache is consulted;
+                    // the others directly until compiledDepthLimit, then interpreted on the frame stack
+                    Label interpreted = new Label();
+                    Label done = new Label();
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitFieldInsn(Opcodes.GETFIELD, NVM_TYPE, "compiledDepth", "I");
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitFieldInsn(Opcodes.GETFIELD, NVM_TYPE, "compiledDepthLimit", "I");
+                    mv.visitJumpInsn(Opcodes.IF_ICMPGE, interpreted);
+                    addCompiledDepth(mv, Opcodes.IADD);
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    for (int i = 0; i < argCount; i++) {
+                        mv.visitVarInsn(Opcodes.ILOAD, scratch + i);
+                    }
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, className, "run", runDescriptor, false);
+                    addCompiledDepth(mv, Opcodes.ISUB);
+                    mv.visitJumpInsn(Opcodes.GOTO, done);
+                    mv.visitLabel(interpreted);
+                    invokeFromCompiled(mv, a, argCount, scratch);
+                    mv.visitLabel(done);
+                } else {
+                    invokeFromCompiled(mv, a, argCount, scratch);
+                }
+            }
+            case RET -> mv.visitInsn(Opcodes.IRETURN);
+            case PRINT -> {
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitInsn(Opcodes.SWAP);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, NVM_TYPE, "print", "(I)V", false);
+            }
+            case FPRINT -> {
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitInsn(Opcodes.SWAP);
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Float", "intBitsToFloat", "(I)F", false);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, NVM_TYPE, "printFloat", "(F)V", false);
+            }
+            case SPRINT -> {
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitInsn(Opcodes.SWAP);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, NVM_TYPE, "printString", "(I)V", false);
+            }
+            case IINC -> mv.visitIincInsn(firstLocal + a, b);
+            case MOVE -> {
+                mv.visitVarInsn(Opcodes.ILOAD, firstLocal + a);
+                mv.visitVarInsn(Opcodes.ISTORE, firstLocal + b);
+            }
+            case IADD_LLS, ISUB_LLS, IMUL_LLS -> {
+                mv.visitVarInsn(Opcodes.ILOAD, firstLocal + a);
+                mv.visitVarInsn(Opcodes.ILOAD, firstLocal + b);
+                mv.visitInsn(inst == IADD_LLS ? Opcodes.IADD : inst == ISUB_LLS ? Opcodes.ISUB : Opcodes.IMUL);
+                mv.visitVarInsn(Opcodes.ISTORE, firstLocal + c);
+            }
+            case ILT_JZ_LL, IGTE_JZ_LL -> {
+                mv.visitVarInsn(Opcodes.ILOAD, firstLocal + a);
+                mv.visitVarInsn(Opcodes.ILOAD, firstLocal + b);
+                mv.visitJumpInsn(inst == ILT_JZ_LL ? Opcodes.IF_ICMPGE : Opcodes.IF_ICMPLT, labels[c]);
+            }
+            case ILT_JZ_LC, IGTE_JZ_LC -> {
+                mv.visitVarInsn(Opcodes.ILOAD, firstLocal + a);
+                mv.visitLdcInsn(b);
+                mv.visitJumpInsn(inst == ILT_JZ_LC ? Opcodes.IF_ICMPGE : Opcodes.IF_ICMPLT, labels[c]);
+            }
+            default -> throw new IllegalStateException("Unexpected instruction " + inst);
+        }
+    }
+
+    static int fadd(int second, int first) {
+        return Float.floatToIntBits(Float.intBitsToFloat(second) + Float.intBitsToFloat(first));
+    }
+
+    static int fsub(int second, int first) {
+        return Float.floatToIntBits(Float.intBitsToFloat(second) - Float.intBitsToFloat(first));
+    }
+
+    static int fmul(int second, int first) {
+        return Float.floatToIntBits(Float.intBitsToFloat(second) * Float.intBitsToFloat(first));
+    }
+
+    static int fdiv(int second, int first) {
+        return Float.floatToIntBits(Float.intBitsToFloat(second) / Float.intBitsToFloat(first));
+    }
+
+    static int ilt(int second, int first) {
+        return second < first ? 1 : 0;
+    }
+
+    static int igte(int second, int first) {
+        return second >= first ? 1 : 0;
+    }
+}
@@ -6,13 +6,55 @@ import java.nio.file.Path;
 
 public class Main {
 
+    /**
+     * Usage: Main [program.nbyte | program.nbc] [output.nbc]
+     * <p>
+     * Runs the program, or with a second argument assembles it into a binary .nbc file instead.
+     * With -Dnvm.profile=true a profile report is printed to stderr after the run, and
+     * -Dnvm.profile.collapsed=file also writes the sampled stacks for a flame graph. With
+     * -Dnvm.verify=true a program that fails the {@link Verifier} is rejected instead of run with
+     * checks. With -Dnvm.optimize=true small functions are inlined, see {@link Inliner}, constants
+     * folded, see {@link ConstantFolder}, and common sequences fused into superinstructions, see
+     * {@link PeepholeOptimizer}, before the program runs or is written.
+     */
     public static void main(String[] args) throws IOException {
-        String s = Files.readString(Path.of("./examples/average.nbyte"));
-        BytecodeLexer lexer = new BytecodeLexer();
-        lexer.parseCode(s);
+        Path source = Path.of(args.length > 0 ? args[0] : "./examples/average.nbyte");
+        Program program = source.toString().endsWith(".nbc")
+                ? NbcFormat.load(source)
+                : Assembler.assemble(source);
+        if (Boolean.getBoolean("nvm.verify")) {
+            program.verify();
+        }
+        if (Boolean.getBoolean("nvm.optimize")) {
+            program = optimize(program);
+        }
 
-        int[] bytecode = lexer.getBytecode();
-        NVM vm = new NVM(bytecode, lexer.functionTable, false, lexer.getStringPool());
-        vm.execute();
+        if (args.length > 1) {
+            NbcFormat.write(program, Path.of(args[1]));
+            return;
+        }
+        NVM vm = new NVM(program, NVM.Engine.SWITCH, BufferedOutputSink.stdout());
+        if (!Boolean.getBoolean("nvm.profile")) {
+            vm.execute();
+            return;
+        }
+        try (Profiler profiler = new Profiler()) {
+            vm.setProfiler(profiler);
+            vm.execute();
+            System.err.print(profiler.report());
+            String collapsed = System.getProperty("nvm.profile.collapsed");
+            if (collapsed != null) {
+                Files.writeString(Path.of(collapsed), profiler.collapsedStacks());
+            }
+        }
+    }
+
+    private static Program optimize(Program program) {
+        Inliner.Result inlined = Inliner.optimize(program.code, program.functionTable);
+        ConstantFolder.Result folded = ConstantFolder.optimize(inlined.code, inlined.functionTable);
+        // last, so the inlined and folded code gets fused too
+        PeepholeOptimizer.Result fused = PeepholeOptimizer.optimize(folded.code, folded.functionTable);
+        return new Program(fused.code, fused.functionTable, program.stringPool,
+                fused.relocate(folded.relocate(inlined.relocate(program.labels))));
     }
 }
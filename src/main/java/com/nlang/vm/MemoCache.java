@@ -0,0 +1,119 @@
+package com.nlang.vm;
+
+import java.util.Arrays;
+
+/**
+ * Results of pure functions keyed by function index and int arguments, held in flat int arrays.
+ * <p>
+ * The cache is set associative: a key hashes to a set of {@link #WAYS} entries and a full set
+ * evicts with CLOCK, skipping (and clearing) entries that were hit since the hand last passed them.
+ */
+final class MemoCache {
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("nvm.memo.capacity", 4096);
+    static final int WAYS = 4;
+
+    private final int width;
+    private final int setMask;
+    // entry e owns keys[e * width .. e * width + width), keys[e * width] is function index + 1, 0 when empty
+    private final int[] keys;
+    private final int[] values;
+    private final boolean[] referenced;
+    private final byte[] hands;
+
+    long hits;
+    long misses;
+    long evictions;
+
+    /**
+     * @param capacity number of entries, rounded up to a power of two number of sets
+     * @param maxArgs  largest argument count of a function that will be cached
+     */
+    MemoCache(int capacity, int maxArgs) {
+        int needed = Math.max(1, (capacity + WAYS - 1) / WAYS);
+        int sets = Integer.highestOneBit(needed);
+        if (sets < needed) {
+            sets <<= 1;
+        }
+        this.width = maxArgs + 1;
+        this.setMask = sets - 1;
+        this.keys = new int[sets * WAYS * width];
+        this.values = new int[sets * WAYS];
+        this.referenced = new boolean[sets * WAYS];
+        this.hands = new byte[sets];
+    }
+
+    int capacity() {
+        return values.length;
+    }
+
+    /**
+     * Looks up {@code function} applied to {@code args[from .. from + argCount)}. Returns the entry
+     * holding the result, or -1 on a miss.
+     */
+    int find(int function, int[] args, int from, int argCount) {
+        int first = set(function, args, from, argCount) * WAYS;
+        for (int entry = first; entry < first + WAYS; entry++) {
+            if (matches(entry, function, args, from, argCount)) {
+                referenced[entry] = true;
+                hits++;
+                return entry;
+            }
+        }
+        misses++;
+        return -1;
+    }
+
+    int value(int entry) {
+        return values[entry];
+    }
+
+    void put(int function, int[] args, int from, int argCount, int value) {
+        int set = set(function, args, from, argCount);
+        int first = set * WAYS;
+        int entry = -1;
+        for (int e = first; e < first + WAYS; e++) {
+            if (keys[e * width] == 0 || matches(e, function, args, from, argCount)) {
+                entry = e;
+                break;
+            }
+        }
+        if (entry < 0) {
+            int hand = hands[set];
+            while (referenced[first + hand]) {
+                referenced[first + hand] = false;
+                hand = (hand + 1) % WAYS;
+            }
+            entry = first + hand;
+            hands[set] = (byte) ((hand + 1) % WAYS);
+            evictions++;
+        }
+        int key = entry * width;
+        keys[key] = function + 1;
+        System.arraycopy(args, from, keys, key + 1, argCount);
+        Arrays.fill(keys, key + 1 + argCount, key + width, 0);
+        values[entry] = value;
+        referenced[entry] = false;
+    }
+
+    private boolean matches(int entry, int function, int[] args, int from, int argCount) {
+        int key = entry * width;
+        if (keys[key] != function + 1) {
+            return false;
+        }
+        for (int i = 0; i < argCount; i++) {
+            if (keys[key + 1 + i] != args[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int set(int function, int[] args, int from, int argCount) {
+        int h = function * 0x9E3779B9;
+        for (int i = 0; i < argCount; i++) {
+            h = (h ^ args[from + i]) * 0x9E3779B9;
+        }
+        return (h ^ h >>> 16) & setMask;
+    }
+}
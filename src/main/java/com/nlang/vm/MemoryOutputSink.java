@@ -0,0 +1,44 @@
+package com.nlang.vm;
+
+/**
+ * Collects the output in memory, one line per printed value. Mainly for tests.
+ */
+public class MemoryOutputSink implements OutputSink {
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final StringBuilder output = new StringBuilder();
+
+    @Override
+    public void printInt(int value) {
+        output.append(value).append(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void printFloat(float value) {
+        output.append(value).append(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void printString(String value) {
+        output.append(value).append(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void printChars(char[] chars, int offset, int length) {
+        output.append(chars, offset, length).append(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    public void reset() {
+        output.setLength(0);
+    }
+
+    @Override
+    public String toString() {
+        return output.toString();
+    }
+}
@@ -1,33 +1,254 @@
 package com.nlang.vm;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.nlang.vm.InstructionSet.*;
+import static com.nlang.vm.RegisterCode.*;
 
 
 public class NVM {
 
-    private final boolean debugMode;
+    /**
+     * SWITCH is the reference interpreter. THREADED runs the code pre-decoded by {@link ThreadedCode},
+     * one handler object per instruction with its operands already resolved. JIT runs the switch
+     * interpreter and hands functions called more than the JIT threshold to {@link JitCompiler}.
+     * REGISTER runs the code translated to {@link RegisterCode}; programs that fail verification
+     * run on the switch interpreter instead.
+     */
+    public enum Engine {
+        SWITCH,
+        THREADED,
+        JIT,
+        REGISTER
+    }
+
+    static final int DEFAULT_JIT_THRESHOLD = Integer.getInteger("nvm.jit.threshold", 1000);
+    static final int DEFAULT_COMPILED_DEPTH = Integer.getInteger("nvm.jit.depth", 1000);
+    static final int DEFAULT_OSR_THRESHOLD = Integer.getInteger("nvm.osr.threshold", 10000);
+    static final int DEFAULT_SPAWN_DEPTH = Integer.getInteger("nvm.spawn.depth",
+            35 - Integer.numberOfLeadingZeros(ForkJoinPool.getCommonPoolParallelism()));
+    static final int DEFAULT_STACK_LIMIT = Integer.getInteger("nvm.stack.limit", 1 << 20);
+    static final int DEFAULT_FRAME_LIMIT = Integer.getInteger("nvm.frames.limit", 1 << 24);
+
+    private static final int INITIAL_STACK = 1024;
+    private static final int INITIAL_FRAMES = 256;
+
     private final int[] code;
-    private final int[] stack;
-    private final Map<Integer, String> stingPools;
+    int[] stack;
+    private final String[] constants;
+    private final OutputSink out;
+    private final ThreadedCode.Op[] threadedCode;
+    private final RegisterCode registerCode;
+    private final boolean jit;
+    // passed the Verifier: overflow is checked once per frame against maxStack, see executeVerified
+    private final boolean verified;
+    int jitThreshold = DEFAULT_JIT_THRESHOLD;
+    private Profiler profiler;
+    private ExecutionListener listener;
+
+    /*
+     * See pause(); a paused execution continues at ip instead of at main. The loops only look at
+     * the request at backward jumps and calls, where a pause returns PAUSED for the next address,
+     * which ends them, and leaves the address to continue at in pausedAt.
+     */
+    volatile boolean pauseRequested;
+    private boolean paused;
+    private static final int PAUSED = -1;
+    private int pausedAt;
+    private boolean started;
+
+    /*
+     * Instruction budget of execute(long). It is charged at backward jumps, with the words the jump
+     * goes back over, and at calls, with the words of the callee up to the next function, so the
+     * straight-line code in between is paid for up front. The jump or call that exhausts the
+     * budget pauses right there.
+     */
+    private boolean budgeted;
+    private long budget;
+    private int[] callCosts;
 
-    private int sp = -1;
-    private int ip = 0;
+    int sp = -1;
+    int ip = 0;
 
-    private Context context;
+    /*
+     * Both stacks start small and grow on demand, taking bigger arrays from StackPool, up to
+     * stackLimit operand slots and frameLimit frame ints. The fast paths compare against the
+     * reserved depths, which only grow when a stack goes deeper than ever before in this execution,
+     * so they pay nothing for growing. The high-water marks survive handing grown arrays back.
+     */
+    int stackLimit = DEFAULT_STACK_LIMIT;
+    int frameLimit = DEFAULT_FRAME_LIMIT;
+    private int stackReserved;
+    private int frameReserved;
+    private int stackHighWater;
+    private int frameHighWater;
+
+    /*
+     * Call frames live back to back in one array. A frame is a three slot header
+     * [return address, function index, caller fp] followed by the function's locals; fp points
+     * at local 0 of the current frame and frameTop just past its last local.
+     */
+    private static final int FRAME_HEADER = 3;
+    int[] frames;
+    int fp;
+    private int frameTop;
+    // REGISTER: stack slots in use below the current frame, as the stack engines would count them
+    private int registerDepth;
 
     private final FunctionInfo[] functionTable;
 
+    /*
+     * Memoization of functions declared pure. While a pure call runs interpreted its key waits on
+     * memoPending as [args..., function index, arg count, fp] and its result is cached by the RET
+     * that pops the frame at fp. Both are created on the first pure call. Only verified code is
+     * memoized, the Verifier proves that a pure function returns exactly the one value cached.
+     */
+    int memoCapacity = MemoCache.DEFAULT_CAPACITY;
+    private MemoCache memo;
+    private int[] memoPending;
+    private int memoPendingTop;
 
-    public NVM(int[] code, FunctionInfo[] functionTable, boolean debugMode, Map<Integer, String> stringPools) {
-        this.debugMode = debugMode;
+    /*
+     * Arrays live in heap, created on the first NEW_ARRAY. Its collector only sees the stack and the
+     * interpreter frames, so it is held off while compiled code, whose locals it cannot see, runs.
+     */
+    int heapCapacity = ArrayHeap.DEFAULT_CAPACITY;
+    private ArrayHeap heap;
+
+    /*
+     * Compiled calls nested on the Java stack, counted by call() and by the direct recursive calls
+     * of compiled code. Java stacks are much shallower than the frame stack, so from
+     * compiledDepthLimit on calls run interpreted, on frames that grow up to frameLimit.
+     */
+    int compiledDepth;
+    int compiledDepthLimit = DEFAULT_COMPILED_DEPTH;
+
+    /*
+     * On-stack replacement, JIT engine on verified code only. Backward jumps count per target
+     * address; once a loop header has taken osrThreshold back edges the rest of the loop runs as a
+     * CompiledLoop from the next back edge on, handing the frame back when the loop exits. Created
+     * on the first back edge.
+     */
+    int osrThreshold = DEFAULT_OSR_THRESHOLD;
+    private long[] backEdges;
+    private CompiledLoop[] loops;
+    private int[] loopFunctions;
+    private int[] loopEntries;
+    private long osrEntries;
+    private long osrExits;
+    private static final CompiledLoop NOT_COMPILED = (vm, fp) -> {
+        throw new IllegalStateException("Loop not compiled");
+    };
+
+    // strings built at run time, created on first use, see StringHeap
+    int stringCapacity = StringHeap.DEFAULT_CAPACITY;
+    private StringHeap strings;
+
+    /*
+     * SPAWN and JOIN. The cutoff is the logical call depth of the frame they run in: the depth
+     * this execution's base frame was spawned at, spawnLevel, plus the frames above it. Less than
+     * spawnDepth deep, SPAWN forks a SpawnTask into the common ForkJoinPool, so a recursion forks
+     * about 2^spawnDepth tasks in all. Deeper, SPAWN runs as a plain call, so the many small spawns
+     * near the leaves cost about what a call costs: its frame is recorded in spawnPending as
+     * [handle, fp] and the RET of it completes the task with the result. Either way the handle is a
+     * slot of tasks, the output is kept in the task until JOIN, and a handle can be joined at any
+     * depth.
+     */
+    int spawnDepth = DEFAULT_SPAWN_DEPTH;
+    private int spawnLevel;
+    private int baseFp = FRAME_HEADER;
+    // tasks forked by this execution and by those it joined, see spawnedTasks()
+    private long spawnedTasks;
+    private SpawnTask[] tasks;
+    private int taskCount;
+    private int[] spawnPending;
+    private int spawnPendingTop;
+    // out, or the task of the innermost spawn running as a call
+    private OutputSink printTo;
+    // a STOP a spawned call returns to, so the engine loops end with it
+    private int stopAddress = -1;
+
+
+    public NVM(int[] code, FunctionInfo[] functionTable, boolean debugMode, Map<Integer, String> stringPools, Engine engine,
+               OutputSink out) {
+        this(code, functionTable, debugMode, Program.constants(stringPools), engine, out,
+                Verifier.verify(code, functionTable));
+    }
+
+    private NVM(int[] code, FunctionInfo[] functionTable, boolean debugMode, String[] constants, Engine engine,
+                OutputSink out, boolean verified) {
+        this(code, functionTable, debugMode, constants, engine, out, verified,
+                engine == Engine.THREADED ? ThreadedCode.decode(code, verified) : null,
+                engine == Engine.REGISTER && verified ? RegisterCode.translate(code, functionTable) : null);
+    }
+
+    private NVM(int[] code, FunctionInfo[] functionTable, boolean debugMode, String[] constants, Engine engine,
+                OutputSink out, boolean verified, ThreadedCode.Op[] threadedCode, RegisterCode registerCode) {
+        this.out = out;
+        this.printTo = out;
         this.code = code;
-        this.stack = new int[1024];
+        this.stack = StackPool.SHARED.take(INITIAL_STACK);
         this.functionTable = functionTable;
-        this.context = new Context(null, functionTable[0], code.length - 1);
-        this.stingPools = stringPools;
+        this.frames = StackPool.SHARED.take(INITIAL_FRAMES);
+        this.verified = verified;
+        this.registerCode = registerCode;
+        pushFrame(0, functionTable[0], code.length - 1,
+                registerCode != null ? registerCode.registers[0] : functionTable[0].frameSize);
+        this.constants = constants;
+        this.threadedCode = threadedCode;
+        this.jit = engine == Engine.JIT && !debugMode;
+        this.listener = debugMode ? new DebugListener(this) : null;
+    }
+
+    /**
+     * The execution a SpawnTask runs its call in: same program, engine and limits, own stacks,
+     * heaps and output.
+     */
+    NVM child(OutputSink out, int spawnLevel) {
+        NVM child = new NVM(code, functionTable, false, constants, jit ? Engine.JIT : Engine.SWITCH, out, verified,
+                threadedCode, registerCode);
+        child.jitThreshold = jitThreshold;
+        child.compiledDepthLimit = compiledDepthLimit;
+        child.osrThreshold = osrThreshold;
+        child.stackLimit = stackLimit;
+        child.frameLimit = frameLimit;
+        child.memoCapacity = memoCapacity;
+        child.heapCapacity = heapCapacity;
+        child.stringCapacity = stringCapacity;
+        child.spawnDepth = spawnDepth;
+        child.spawnLevel = spawnLevel;
+        child.stopAddress = stopAddress;
+        return child;
+    }
+
+    public NVM(int[] code, FunctionInfo[] functionTable, boolean debugMode, Map<Integer, String> stringPools, Engine engine) {
+        this(code, functionTable, debugMode, stringPools, engine, BufferedOutputSink.stdout());
+    }
+
+    public NVM(int[] code, FunctionInfo[] functionTable, Map<Integer, String> stringPool, Engine engine, OutputSink out) {
+        this(code, functionTable, false, stringPool, engine, out);
+    }
+
+    /**
+     * A new execution of {@code program}. Creating one is cheap, the program is shared and not
+     * copied.
+     */
+    public NVM(Program program, Engine engine, OutputSink out) {
+        this(program.code, program.functionTable, false, program.constants, engine, out, program.verified,
+                engine == Engine.THREADED ? program.threadedCode() : null,
+                engine == Engine.REGISTER ? program.registerCode() : null);
+    }
+
+    public NVM(int[] code, FunctionInfo[] functionTable, boolean debugMode, Map<Integer, String> stringPools) {
+        this(code, functionTable, debugMode, stringPools, Engine.SWITCH);
+    }
+
+    public NVM(int[] code, FunctionInfo[] functionTable, Map<Integer, String> stringPool, Engine engine) {
+        this(code, functionTable, false, stringPool, engine);
     }
 
     public NVM(int[] code, FunctionInfo[] functionTable, Map<Integer, String> stringPool) {
@@ -41,20 +262,555 @@ public class NVM {
     }
 
 
+    /**
+     * Profiles the following executions, see {@link Profiler}. Null turns profiling off again.
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Runs the following executions in the tracing loop, reporting to {@code listener}. Null goes
+     * back to the plain loops, which never look at a listener. Replaces the debug mode listener.
+     */
+    public void setListener(ExecutionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Asks a running {@link #execute()} to return at the next backward jump or call, so within one
+     * loop iteration; safe to call from any thread. Compiled code pauses at its loop headers, code
+     * it calls runs to its return. The REGISTER engine runs to the end.
+     */
+    public void pause() {
+        pauseRequested = true;
+    }
+
+    /**
+     * True if the last execute() returned because of {@link #pause()}. The next execute() continues
+     * where it stopped.
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Saves the execution state to {@code file}, see {@link Snapshot}. Call it while execute() is
+     * not running, typically after a pause.
+     */
+    public void checkpoint(Path file) throws IOException {
+        if (registerCode != null) {
+            throw new UnsupportedOperationException("The REGISTER engine does not support checkpoints");
+        }
+        if (started && !paused) {
+            throw new IllegalStateException("Checkpoints are taken before execute() or while paused");
+        }
+        if (taskCount > 0) {
+            throw new UnsupportedOperationException("Spawned tasks cannot be checkpointed");
+        }
+        Snapshot.write(this, code, file);
+    }
+
+    /**
+     * A new execution of {@code program} that continues from a checkpoint of it on the next
+     * execute(). Any engine but REGISTER can resume, whatever engine took the checkpoint.
+     */
+    public static NVM resume(Program program, Path file, Engine engine, OutputSink out) throws IOException {
+        if (engine == Engine.REGISTER) {
+            throw new UnsupportedOperationException("The REGISTER engine does not support checkpoints");
+        }
+        NVM vm = new NVM(program, engine, out);
+        Snapshot.read(vm, program.code, file);
+        return vm;
+    }
+
+    long snapshotBytes() {
+        long bytes = 20 + (sp + 1) * 4L + frameTop * 4L;
+        bytes += heap == null ? 0 : heap.snapshotBytes();
+        return bytes + (strings == null ? 0 : strings.snapshotBytes());
+    }
+
+    void save(Snapshot.Cursor out) {
+        out.putInt(paused ? ip : functionTable[frames[fp - 2]].address);
+        out.putInt(sp);
+        out.putInt(fp);
+        out.putInt(frameTop);
+        out.putInts(stack, sp + 1);
+        out.putInts(frames, frameTop);
+        out.putInt((heap != null ? 1 : 0) | (strings != null ? 2 : 0));
+        if (heap != null) {
+            heap.save(out);
+        }
+        if (strings != null) {
+            strings.save(out);
+        }
+    }
+
+    void restore(Snapshot.Cursor in) {
+        ip = in.getInt();
+        int sp = in.getInt();
+        int fp = in.getInt();
+        int frameTop = in.getInt();
+        if (frameTop > frameReserved) {
+            reserveFrames(frameTop);
+        }
+        in.getInts(frames, frameTop);
+        this.fp = fp;
+        this.frameTop = frameTop;
+        // verified code on the restored frames relies on their maxStack fitting above the stack
+        int maxStack = 0;
+        for (int frame = fp; frame >= FRAME_HEADER; frame = frames[frame - 1]) {
+            maxStack = Math.max(maxStack, functionTable[frames[frame - 2]].maxStack);
+        }
+        if (sp + 1 + maxStack > stackReserved) {
+            reserveStack(sp + 1 + maxStack);
+        }
+        in.getInts(stack, sp + 1);
+        this.sp = sp;
+        int flags = in.getInt();
+        if ((flags & 1) != 0) {
+            heap = ArrayHeap.restore(in, heapCapacity);
+        }
+        if ((flags & 2) != 0) {
+            strings = StringHeap.restore(in, stringCapacity, constants);
+        }
+        paused = true;
+    }
+
+    /**
+     * Runs for about {@code instructions} instructions and yields: returns paused, see
+     * {@link #isPaused()}, and the next execute continues where it stopped. The budget is checked
+     * only at backward jumps and calls, so a slice can run past it by the straight-line code up to
+     * the next check. The JIT engine interprets everything while a budget is set, as compiled code
+     * cannot yield, and the REGISTER engine is not supported.
+     */
+    public void execute(long instructions) {
+        if (registerCode != null) {
+            throw new UnsupportedOperationException("The REGISTER engine does not support instruction budgets");
+        }
+        if (callCosts == null) {
+            callCosts = callCosts();
+        }
+        budget = instructions;
+        budgeted = true;
+        try {
+            execute();
+        } finally {
+            budgeted = false;
+        }
+    }
+
+    /**
+     * What is left of the budget of the last {@link #execute(long)}; negative if the slice ran past
+     * it.
+     */
+    public long remainingBudget() {
+        return budget;
+    }
+
+    /**
+     * Per function, the words from its address to the next function's or the end of the code.
+     */
+    private int[] callCosts() {
+        int[] costs = new int[functionTable.length];
+        for (int f = 0; f < functionTable.length; f++) {
+            if (functionTable[f] == null) {
+                continue;
+            }
+            int address = functionTable[f].address;
+            int end = code.length;
+            for (FunctionInfo other : functionTable) {
+                if (other != null && other.address > address) {
+                    end = Math.min(end, other.address);
+                }
+            }
+            costs[f] = Math.max(1, end - address);
+        }
+        return costs;
+    }
+
     public void execute() {
-        ip = context.info.address;
+        if (!paused) {
+            ip = functionTable[frames[fp - 2]].address;
+        }
+        paused = false;
+        started = true;
+        try {
+            run();
+            if (paused) {
+                ip = pausedAt;
+            } else {
+                releaseStacks();
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    private void run() {
+        if (listener != null) {
+            executeTraced();
+        } else if (profiler != null) {
+            executeProfiled();
+        } else if (threadedCode != null) {
+            executeThreaded();
+        } else if (registerCode != null) {
+            executeRegisters();
+        } else if (verified) {
+            executeVerified();
+        } else {
+            executeSwitch();
+        }
+    }
+
+    /**
+     * The threaded loop over the profiler's handlers, which count blocks and take stack samples.
+     * Kept separate so the plain loops pay nothing for profiling.
+     */
+    private void executeProfiled() {
+        ThreadedCode.Op[] ops = profiler.start(code, functionTable);
+        try {
+            while (ip >= 0) {
+                ip = ops[ip].execute(this);
+            }
+        } finally {
+            profiler.stop();
+        }
+    }
+
+    private void executeSwitch() {
+        while (ip != PAUSED) {
+            int inst = code[ip];
+            if (inst == STOP) {
+                return;
+            }
+            execute(inst);
+        }
+    }
+
+    /**
+     * The switch loop for verified code. The most common instructions are inlined here without
+     * stack checks: the verifier proved they cannot underflow and pushFrame that the frame's
+     * maxStack fits. Everything else goes through the checked {@link #execute(int)}.
+     */
+    private void executeVerified() {
+        int[] code = this.code;
+        int[] stack = this.stack;
         int inst = code[ip];
         while (inst != STOP) {
-            if (debugMode) {
-                Diagnostic.printInstruction(inst, code, ip);
-                execute(inst);
-                Diagnostic.printStack(stack, sp);
-                Diagnostic.printCallMemory(context);
+            switch (inst) {
+                case PUSH, LDC -> {
+                    stack[++sp] = code[ip + 1];
+                    ip += 2;
+                }
+                case LOAD -> {
+                    stack[++sp] = frames[fp + code[ip + 1]];
+                    ip += 2;
+                }
+                case STORE -> {
+                    frames[fp + code[ip + 1]] = stack[sp--];
+                    ip += 2;
+                }
+                case IADD -> {
+                    sp--;
+                    stack[sp] += stack[sp + 1];
+                    ip++;
+                }
+                case ISUB -> {
+                    sp--;
+                    stack[sp] -= stack[sp + 1];
+                    ip++;
+                }
+                case IMUL -> {
+                    sp--;
+                    stack[sp] *= stack[sp + 1];
+                    ip++;
+                }
+                case ILT -> {
+                    sp--;
+                    stack[sp] = stack[sp] < stack[sp + 1] ? 1 : 0;
+                    ip++;
+                }
+                case IGTE -> {
+                    sp--;
+                    stack[sp] = stack[sp] >= stack[sp + 1] ? 1 : 0;
+                    ip++;
+                }
+                case JZ, JNZ, JMP -> {
+                    int target = inst == JMP || stack[sp--] == (inst == JZ ? 0 : 1) ? code[ip + 1] : ip + 2;
+                    if (target <= ip) {
+                        target = backEdge(target, ip);
+                        if (target == PAUSED) {
+                            return;
+                        }
+                        // a compiled loop's calls may have grown the stack
+                        stack = this.stack;
+                    }
+                    ip = target;
+                }
+                case CALL, TAILCALL, SPAWN -> {
+                    execute(inst);
+                    if (ip == PAUSED) {
+                        return;
+                    }
+                    stack = this.stack;
+                }
+                default -> {
+                    execute(inst);
+                    // a call may have grown the stack
+                    stack = this.stack;
+                }
+            }
+            inst = code[ip];
+        }
+    }
+
+    /**
+     * The loop over {@link RegisterCode}. Registers are frame slots, so the operand stack is only
+     * used by R_STACK instructions.
+     */
+    private void executeRegisters() {
+        int[] ir = registerCode.code;
+        int pc = registerCode.entry[frames[fp - 2]];
+        int[] r = frames;
+        int fp = this.fp;
+        while (true) {
+            switch (ir[pc]) {
+                case R_CONST -> {
+                    r[fp + ir[pc + 1]] = ir[pc + 2];
+                    pc += 3;
+                }
+                case R_MOVE -> {
+                    r[fp + ir[pc + 1]] = r[fp + ir[pc + 2]];
+                    pc += 3;
+                }
+                case R_IADD -> {
+                    r[fp + ir[pc + 1]] = r[fp + ir[pc + 2]] + r[fp + ir[pc + 3]];
+                    pc += 4;
+                }
+                case R_ISUB -> {
+                    r[fp + ir[pc + 1]] = r[fp + ir[pc + 2]] - r[fp + ir[pc + 3]];
+                    pc += 4;
+                }
+                case R_IMUL -> {
+                    r[fp + ir[pc + 1]] = r[fp + ir[pc + 2]] * r[fp + ir[pc + 3]];
+                    pc += 4;
+                }
+                case R_ILT -> {
+                    r[fp + ir[pc + 1]] = r[fp + ir[pc + 2]] < r[fp + ir[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                }
+                case R_IGTE -> {
+                    r[fp + ir[pc + 1]] = r[fp + ir[pc + 2]] >= r[fp + ir[pc + 3]] ? 1 : 0;
+                    pc += 4;
+                }
+                case R_IADDI -> {
+                    r[fp + ir[pc + 1]] = r[fp + ir[pc + 2]] + ir[pc + 3];
+                    pc += 4;
+                }
+                case R_IINC -> {
+                    r[fp + ir[pc + 1]] += ir[pc + 2];
+                    pc += 3;
+                }
+                case R_JMP -> pc = ir[pc + 1];
+                case R_JZ -> pc = r[fp + ir[pc + 1]] == 0 ? ir[pc + 2] : pc + 3;
+                case R_JNZ -> pc = r[fp + ir[pc + 1]] == 1 ? ir[pc + 2] : pc + 3;
+                case R_ILT_JZ -> pc = r[fp + ir[pc + 1]] < r[fp + ir[pc + 2]] ? pc + 4 : ir[pc + 3];
+                case R_IGTE_JZ -> pc = r[fp + ir[pc + 1]] >= r[fp + ir[pc + 2]] ? pc + 4 : ir[pc + 3];
+                case R_ILT_JZ_C -> pc = r[fp + ir[pc + 1]] < ir[pc + 2] ? pc + 4 : ir[pc + 3];
+                case R_IGTE_JZ_C -> pc = r[fp + ir[pc + 1]] >= ir[pc + 2] ? pc + 4 : ir[pc + 3];
+                case R_CALL, R_TAILCALL, R_RET -> {
+                    if (ir[pc] == R_CALL) {
+                        pc = registerCall(ir[pc + 1], fp + ir[pc + 2], pc + 3);
+                    } else if (ir[pc] == R_TAILCALL) {
+                        pc = registerTailCall(ir[pc + 1], fp + ir[pc + 2]);
+                    } else if (fp == FRAME_HEADER) {
+                        // the bottom frame, main or a spawned call, leaves its result on the stack
+                        if (ir[pc + 2] > 0) {
+                            push(r[fp + ir[pc + 1] + ir[pc + 2] - 1]);
+                        }
+                        return;
+                    } else {
+                        pc = registerReturn(fp + ir[pc + 1], ir[pc + 2]);
+                    }
+                    r = frames;
+                    fp = this.fp;
+                }
+                case R_SPAWN -> {
+                    pc = registerSpawn(ir[pc + 1], fp + ir[pc + 2], pc + 3);
+                    r = frames;
+                    fp = this.fp;
+                }
+                case R_PRINT -> {
+                    print(r[fp + ir[pc + 1]]);
+                    pc += 2;
+                }
+                case R_STACK -> {
+                    registerStackOp(ir[pc + 1], fp + ir[pc + 2], ir[pc + 3]);
+                    pc += 4;
+                }
+                case R_STOP -> {
+                    return;
+                }
+                default -> throw unsupported(ir[pc]);
+            }
+        }
+    }
+
+    /**
+     * R_CALL with the arguments at frame index {@code args}; the callee's results are copied back
+     * there by {@link #registerReturn}.
+     */
+    private int registerCall(int fIndex, int args, int returnPc) {
+        FunctionInfo functionInfo = functionTable[fIndex];
+        if (functionInfo.pure && memoCapacity > 0) {
+            MemoCache cache = memo();
+            int entry = cache.find(fIndex, frames, args, functionInfo.argCount);
+            if (entry >= 0) {
+                frames[args] = cache.value(entry);
+                return returnPc;
+            }
+            deferMemo(fIndex, functionInfo.argCount, frameTop + FRAME_HEADER, frames, args);
+        }
+        int depth = registerDepth + args - fp - functionTable[frames[fp - 2]].maxLocals;
+        if (depth + functionInfo.maxStack > stackReserved) {
+            reserveStack(depth + functionInfo.maxStack);
+        }
+        registerDepth = depth;
+        pushFrame(fIndex, functionInfo, returnPc, registerCode.registers[fIndex]);
+        System.arraycopy(frames, args, frames, fp, functionInfo.argCount);
+        return registerCode.entry[fIndex];
+    }
+
+    /**
+     * R_SPAWN with the arguments at frame index {@code args}, see {@link #spawn}.
+     */
+    private int registerSpawn(int fIndex, int args, int returnPc) {
+        int depth = callDepth();
+        if (depth >= spawnDepth) {
+            int handle = spawnAsCall(depth + 1);
+            int callerFp = fp;
+            int pc = registerCall(fIndex, args, returnPc);
+            if (fp == callerFp) {
+                frames[args] = completeSpawn(handle, frames[args]);
             } else {
+                deferSpawn(handle);
+            }
+            return pc;
+        }
+        frames[args] = fork(fIndex, Arrays.copyOfRange(frames, args, args + functionTable[fIndex].argCount), depth + 1);
+        return returnPc;
+    }
+
+    /**
+     * R_TAILCALL, only emitted when the arguments are all the current function has on its stack.
+     */
+    private int registerTailCall(int fIndex, int args) {
+        FunctionInfo functionInfo = functionTable[fIndex];
+        if (registerDepth + functionInfo.maxStack > stackReserved) {
+            reserveStack(registerDepth + functionInfo.maxStack);
+        }
+        int returnPc = frames[fp - 3];
+        int callerFp = frames[fp - 1];
+        System.arraycopy(frames, args, frames, fp, functionInfo.argCount);
+        frameTop = fp - FRAME_HEADER;
+        fp = callerFp;
+        pushFrame(fIndex, functionInfo, returnPc, registerCode.registers[fIndex]);
+        return registerCode.entry[fIndex];
+    }
+
+    /**
+     * R_RET: copies {@code count} results from frame index {@code src} to the base register of the
+     * R_CALL that returns here.
+     */
+    private int registerReturn(int src, int count) {
+        if (memoPendingTop > 0 && memoPending[memoPendingTop - 1] == fp) {
+            completeMemo(frames, count > 0 ? src + count - 1 : -1);
+        }
+        int returnPc = frames[fp - 3];
+        frameTop = fp - FRAME_HEADER;
+        fp = frames[fp - 1];
+        int base = registerCode.code[returnPc - 1];
+        System.arraycopy(frames, src, frames, fp + base, count);
+        if (spawnPendingTop > 0 && spawnPending[spawnPendingTop - 1] == frameTop + FRAME_HEADER) {
+            spawnPendingTop -= 2;
+            frames[fp + base] = completeSpawn(spawnPending[spawnPendingTop], frames[fp + base]);
+        }
+        registerDepth -= base - functionTable[frames[fp - 2]].maxLocals;
+        return returnPc;
+    }
+
+    /**
+     * R_STACK: runs {@code inst} on the operand stack with its operands taken from frame index
+     * {@code at} and its result, if any, stored back there.
+     */
+    private void registerStackOp(int inst, int at, int pops) {
+        for (int i = 0; i < pops; i++) {
+            push(frames[at + i]);
+        }
+        execute(inst);
+        if (sp >= 0) {
+            frames[at] = pop();
+        }
+    }
+
+    /**
+     * The switch loop with listener events around every instruction.
+     */
+    private void executeTraced() {
+        ExecutionListener listener = this.listener;
+        listener.start(code, functionTable);
+        try {
+            int inst = code[ip];
+            while (inst != STOP) {
+                int at = ip;
+                int before = sp;
+                int function = frames[fp - 2];
+                listener.instruction(at, inst, sp, fp);
                 execute(inst);
+                if (sp != before) {
+                    listener.stackChanged(stack, sp);
+                }
+                if (inst == CALL || inst == TAILCALL) {
+                    listener.call(code[at + 1], fp);
+                } else if (inst == RET) {
+                    listener.ret(function, ip);
+                }
+                listener.executed(stack, sp);
+                if (ip == PAUSED) {
+                    return;
+                }
+                inst = code[ip];
             }
-            inst = code[ip];
+        } catch (RuntimeException e) {
+            listener.error(e);
+            throw e;
+        }
+    }
+
+    private void executeThreaded() {
+        ThreadedCode.Op[] ops = threadedCode;
+        while (ip >= 0) {
+            ip = ops[ip].execute(this);
+        }
+    }
+
+    /**
+     * Where to continue after a backward jump or a call to {@code address}: PAUSED if a pause was
+     * asked for, see pause(). Compiled code cannot yield, so the calls it makes run on.
+     */
+    private int yieldAt(int address) {
+        if (!pauseRequested || compiledDepth > 0) {
+            return address;
         }
+        pauseRequested = false;
+        return pauseAt(address);
+    }
+
+    private int pauseAt(int address) {
+        paused = true;
+        pausedAt = address;
+        return PAUSED;
     }
 
     private void execute(int inst) {
@@ -125,22 +881,23 @@ public class NVM {
                 second = pop();
                 push(second >= first ? 1 : 0);
                 ip++;
+                break;
             case JZ:
                 address = getOperand();
                 result = pop();
-                ip = result == 0 ? address : ip + 1;
+                ip = result == 0 ? jump(address) : ip + 1;
                 break;
             case JNZ:
                 address = getOperand();
                 result = pop();
-                ip = result == 1 ? address : ip + 1;
+                ip = result == 1 ? jump(address) : ip + 1;
                 break;
             case JMP:
-                ip = code[ip + 1];
+                ip = jump(code[++ip]);
                 break;
             case LOAD:
                 index = getOperand();
-                push(context.memory[index]);
+                push(frames[local(index)]);
                 ip++;
                 break;
             case LDC:
@@ -150,65 +907,828 @@ public class NVM {
                 break;
             case STORE:
                 index = getOperand();
-                context.memory[index] = pop();
+                frames[local(index)] = pop();
                 ip++;
                 break;
             case CALL:
                 int fIndex = getOperand();
-                FunctionInfo functionInfo = functionTable[fIndex];
-                context = new Context(context, functionInfo, ip + 1);
-                int srcPosition = sp - (functionInfo.argCount - 1);
-                if (functionInfo.argCount >= 0)
-                    System.arraycopy(stack, srcPosition, context.memory, 0, functionInfo.argCount);
-                sp -= functionInfo.argCount;
-                ip = functionInfo.address;
+                ip = call(fIndex, ip + 1);
+                break;
+            case TAILCALL:
+                fIndex = getOperand();
+                ip = tailCall(fIndex, ip + 1);
+                break;
+            case SPAWN:
+                fIndex = getOperand();
+                ip = spawn(fIndex, ip + 1);
+                break;
+            case JOIN:
+                push(join(pop()));
+                ip++;
                 break;
             case RET:
-                ip = context.returnAddress;
-                context = context.parent;
+                ip = ret();
+                break;
+            case IINC:
+                index = getOperand();
+                frames[local(index)] += getOperand();
+                ip++;
+                break;
+            case MOVE:
+                index = getOperand();
+                frames[local(getOperand())] = frames[local(index)];
+                ip++;
+                break;
+            case IADD_LLS:
+                first = frames[local(getOperand())];
+                second = frames[local(getOperand())];
+                frames[local(getOperand())] = first + second;
+                ip++;
+                break;
+            case ISUB_LLS:
+                first = frames[local(getOperand())];
+                second = frames[local(getOperand())];
+                frames[local(getOperand())] = first - second;
+                ip++;
+                break;
+            case IMUL_LLS:
+                first = frames[local(getOperand())];
+                second = frames[local(getOperand())];
+                frames[local(getOperand())] = first * second;
+                ip++;
+                break;
+            case ILT_JZ_LL:
+                first = frames[local(getOperand())];
+                second = frames[local(getOperand())];
+                address = getOperand();
+                ip = first < second ? ip + 1 : address;
+                break;
+            case ILT_JZ_LC:
+                first = frames[local(getOperand())];
+                second = getOperand();
+                address = getOperand();
+                ip = first < second ? ip + 1 : address;
+                break;
+            case IGTE_JZ_LL:
+                first = frames[local(getOperand())];
+                second = frames[local(getOperand())];
+                address = getOperand();
+                ip = first >= second ? ip + 1 : address;
+                break;
+            case IGTE_JZ_LC:
+                first = frames[local(getOperand())];
+                second = getOperand();
+                address = getOperand();
+                ip = first >= second ? ip + 1 : address;
+                break;
+            case NEW_ARRAY:
+                push(newArray(pop()));
+                ip++;
+                break;
+            case ALOAD:
+                index = pop();
+                push(heap().load(pop(), index));
+                ip++;
+                break;
+            case ASTORE:
+            case IASTORE:
+                result = pop();
+                index = pop();
+                heap().store(pop(), index, result);
+                ip++;
+                break;
+            case FASTORE:
+                fFirst = popFloat();
+                index = pop();
+                heap().storeFloat(pop(), index, fFirst);
+                ip++;
+                break;
+            case IASUM:
+            case FASUM:
+            case IADOT:
+            case FADOT:
+            case IAADD:
+            case IAMUL:
+            case FAADD:
+            case FAMUL:
+            case AFILL:
+                bulk(inst);
+                ip++;
+                break;
+            case SCONCAT:
+            case SLEN:
+            case SSUB:
+            case SCMP:
+            case ITOS:
+                stringOp(inst);
+                ip++;
                 break;
             case PRINT:
-                System.out.println(pop());
+                print(pop());
                 ip++;
                 break;
             case FPRINT:
-                System.out.println(popFloat());
+                printFloat(popFloat());
                 ip++;
                 break;
             case SPRINT:
-                System.out.println(stingPools.get(pop()));
+                printString(pop());
                 ip++;
                 break;
             default:
-                throw new UnsupportedOperationException(String.format("INST %s is not supported", inst));
+                throw unsupported(inst);
         }
     }
 
+    /**
+     * Opens a frame for function {@code fIndex}, moves its arguments off the stack and returns the
+     * address to continue at. With the JIT on, a compiled function is run right away instead and
+     * its result pushed.
+     */
+    int call(int fIndex, int returnAddress) {
+        FunctionInfo functionInfo = functionTable[fIndex];
+        boolean memoize = functionInfo.pure && verified && memoCapacity > 0;
+        if (memoize) {
+            MemoCache cache = memo();
+            int entry = cache.find(fIndex, stack, sp - functionInfo.argCount + 1, functionInfo.argCount);
+            if (entry >= 0) {
+                sp -= functionInfo.argCount;
+                push(cache.value(entry));
+                return returnAddress;
+            }
+        }
+        // compiled code cannot yield, so budgeted executions stay interpreted
+        if (jit && !budgeted) {
+            CompiledFunction compiled = functionInfo.compiled;
+            // >=, as the count is shared with executions that may have a higher threshold
+            if (compiled == null && ++functionInfo.invocations >= jitThreshold && !functionInfo.uncompilable) {
+                compiled = JitCompiler.compile(code, functionTable, fIndex);
+                functionInfo.compiled = compiled;
+                functionInfo.uncompilable = compiled == null;
+            }
+            if (compiled != null && compiledDepth < compiledDepthLimit) {
+                int args = sp - functionInfo.argCount + 1;
+                int result;
+                int depth = compiledDepth++;
+                try {
+                    result = compiled.invoke(this, stack, args);
+                } catch (StackOverflowError e) {
+                    // a Java stack too small even for compiledDepthLimit compiled calls
+                    throw new UnsupportedOperationException("Stackoverflow");
+                } finally {
+                    // also undoes the counts of recursive calls an exception unwound
+                    compiledDepth = depth;
+                }
+                if (memoize) {
+                    memo.put(fIndex, stack, args, functionInfo.argCount, result);
+                }
+                sp -= functionInfo.argCount;
+                push(result);
+                return yieldAt(returnAddress);
+            }
+        }
+        if (memoize) {
+            deferMemo(fIndex, functionInfo.argCount, frameTop + FRAME_HEADER, stack, sp - functionInfo.argCount + 1);
+        }
+        pushFrame(fIndex, functionInfo, returnAddress);
+        int srcPosition = sp - (functionInfo.argCount - 1);
+        if (functionInfo.argCount >= 0)
+            System.arraycopy(stack, srcPosition, frames, fp, functionInfo.argCount);
+        sp -= functionInfo.argCount;
+        return budgeted ? charge(callCosts[fIndex], functionInfo.address) : yieldAt(functionInfo.address);
+    }
+
+    /**
+     * Replaces the current frame with a frame for {@code fIndex} that returns to the same caller,
+     * so recursion in tail position runs in constant frame space. {@code retAddress} is the RET
+     * that still follows the TAILCALL; with the JIT on this is a plain call returning there, so
+     * compiled code and invocation counting see every call.
+     */
+    int tailCall(int fIndex, int retAddress) {
+        if (jit && !budgeted) {
+            return call(fIndex, retAddress);
+        }
+        FunctionInfo functionInfo = functionTable[fIndex];
+        int returnAddress = frames[fp - 3];
+        frameTop = fp - FRAME_HEADER;
+        fp = frames[fp - 1];
+        pushFrame(fIndex, functionInfo, returnAddress);
+        System.arraycopy(stack, sp - functionInfo.argCount + 1, frames, fp, functionInfo.argCount);
+        sp -= functionInfo.argCount;
+        return budgeted ? charge(callCosts[fIndex], functionInfo.address) : yieldAt(functionInfo.address);
+    }
+
+    int ret() {
+        if (memoPendingTop > 0 && memoPending[memoPendingTop - 1] == fp) {
+            completeMemo(stack, sp);
+        }
+        if (spawnPendingTop > 0 && spawnPending[spawnPendingTop - 1] == fp) {
+            spawnPendingTop -= 2;
+            push(completeSpawn(spawnPending[spawnPendingTop], pop()));
+        }
+        int returnAddress = frames[fp - 3];
+        frameTop = fp - FRAME_HEADER;
+        fp = frames[fp - 1];
+        return returnAddress;
+    }
+
+    private MemoCache memo() {
+        if (memo == null) {
+            int maxArgs = 0;
+            for (FunctionInfo f : functionTable) {
+                if (f != null && f.pure) {
+                    maxArgs = Math.max(maxArgs, f.argCount);
+                }
+            }
+            memo = new MemoCache(memoCapacity, maxArgs);
+            memoPending = new int[64];
+        }
+        return memo;
+    }
+
+    private void deferMemo(int fIndex, int argCount, int calleeFp, int[] args, int from) {
+        if (memoPendingTop + argCount + 3 > memoPending.length) {
+            memoPending = Arrays.copyOf(memoPending, Math.max(memoPending.length * 2, memoPendingTop + argCount + 3));
+        }
+        System.arraycopy(args, from, memoPending, memoPendingTop, argCount);
+        memoPendingTop += argCount;
+        memoPending[memoPendingTop++] = fIndex;
+        memoPending[memoPendingTop++] = argCount;
+        memoPending[memoPendingTop++] = calleeFp;
+    }
+
+    /**
+     * Caches the value a returning pure function leaves on top of the stack, {@code values[top]},
+     * if there is one.
+     */
+    private void completeMemo(int[] values, int top) {
+        int argCount = memoPending[memoPendingTop - 2];
+        int fIndex = memoPending[memoPendingTop - 3];
+        memoPendingTop -= argCount + 3;
+        if (top >= 0) {
+            memo.put(fIndex, memoPending, memoPendingTop, argCount, values[top]);
+        }
+    }
+
+    public long memoHits() {
+        return memo == null ? 0 : memo.hits;
+    }
+
+    public long memoMisses() {
+        return memo == null ? 0 : memo.misses;
+    }
+
+    int newArray(int length) {
+        ArrayHeap heap = heap();
+        if (compiledDepth == 0 && heap.shouldCollect(length)) {
+            heap.collect(stack, sp, frames, frameTop);
+        }
+        return heap.allocate(length);
+    }
+
+    /**
+     * One bulk array instruction, see the stack effects in {@link InstructionSet}.
+     */
+    void bulk(int inst) {
+        ArrayHeap heap = heap();
+        int first = pop();
+        switch (inst) {
+            case IASUM -> push(heap.intSum(first));
+            case FASUM -> pushFloat(heap.floatSum(first));
+            case IADOT -> push(heap.intDot(pop(), first));
+            case FADOT -> pushFloat(heap.floatDot(pop(), first));
+            case IAADD, IAMUL, FAADD, FAMUL -> {
+                int second = pop();
+                heap.elementWise(inst, pop(), second, first);
+            }
+            case AFILL -> heap.fill(pop(), first);
+            default -> throw unsupported(inst);
+        }
+    }
+
+    /**
+     * One string instruction, see the stack effects in {@link InstructionSet}. Instructions that make
+     * a string collect first when due, keeping their popped operands alive.
+     */
+    void stringOp(int inst) {
+        StringHeap strings = strings();
+        int first = pop();
+        switch (inst) {
+            case SCONCAT -> {
+                int second = pop();
+                int length = strings.length(second) + strings.length(first);
+                if (compiledDepth == 0 && strings.shouldCollect(length)) {
+                    strings.collect(stack, sp, frames, frameTop, heap, second, first);
+                }
+                push(strings.concat(second, first));
+            }
+            case SLEN -> push(strings.length(first));
+            case SSUB -> {
+                int begin = pop();
+                int s = pop();
+                if (compiledDepth == 0 && strings.shouldCollect(s >= 0 ? first - begin : 0)) {
+                    strings.collect(stack, sp, frames, frameTop, heap, s);
+                }
+                push(strings.substring(s, begin, first));
+            }
+            case SCMP -> push(strings.compare(pop(), first));
+            case ITOS -> {
+                if (compiledDepth == 0 && strings.shouldCollect(11)) {
+                    strings.collect(stack, sp, frames, frameTop, heap);
+                }
+                push(strings.fromInt(first));
+            }
+            default -> throw unsupported(inst);
+        }
+    }
+
+    StringHeap strings() {
+        if (strings == null) {
+            strings = new StringHeap(stringCapacity, constants);
+        }
+        return strings;
+    }
+
+    ArrayHeap heap() {
+        if (heap == null) {
+            heap = new ArrayHeap(heapCapacity);
+        }
+        return heap;
+    }
+
+    private void pushFrame(int fIndex, FunctionInfo functionInfo, int returnAddress) {
+        pushFrame(fIndex, functionInfo, returnAddress, functionInfo.frameSize);
+    }
+
+    private void pushFrame(int fIndex, FunctionInfo functionInfo, int returnAddress, int frameSize) {
+        // the arguments are still on the stack
+        if (verified) {
+            int depth = sp + 1 - functionInfo.argCount + functionInfo.maxStack;
+            if (depth > stackReserved) {
+                reserveStack(depth);
+            }
+        }
+        int newFp = frameTop + FRAME_HEADER;
+        int newTop = newFp + frameSize;
+        if (newTop > frameReserved) {
+            reserveFrames(newTop);
+        }
+        frames[newFp - 3] = returnAddress;
+        frames[newFp - 2] = fIndex;
+        frames[newFp - 1] = fp;
+        Arrays.fill(frames, newFp + functionInfo.argCount, newTop, 0);
+        fp = newFp;
+        frameTop = newTop;
+    }
+
+    /**
+     * Makes room for an operand stack {@code depth} slots deep, see stackLimit.
+     */
+    private void reserveStack(int depth) {
+        if (depth > stackLimit) {
+            throw new UnsupportedOperationException("Stackoverflow");
+        }
+        if (depth > stack.length) {
+            stack = grow(stack, depth, stackLimit);
+        }
+        stackReserved = depth;
+        stackHighWater = Math.max(stackHighWater, depth);
+    }
+
+    /**
+     * Makes room for frames up to {@code top}, see frameLimit.
+     */
+    private void reserveFrames(int top) {
+        if (top > frameLimit) {
+            throw new UnsupportedOperationException("Call stack overflow");
+        }
+        if (top > frames.length) {
+            frames = grow(frames, top, frameLimit);
+        }
+        frameReserved = top;
+        frameHighWater = Math.max(frameHighWater, top);
+    }
+
+    /**
+     * Copies all of {@code array}: a tail call can have moved arguments above frameTop already.
+     */
+    private static int[] grow(int[] array, int size, int limit) {
+        int[] grown = StackPool.SHARED.take(Math.max(size, (int) Math.min(array.length * 2L, limit)));
+        System.arraycopy(array, 0, grown, 0, array.length);
+        StackPool.SHARED.give(array);
+        return grown;
+    }
+
+    /**
+     * Once an execution is done, swaps stacks that grew for arrays of the initial size and hands
+     * the big ones back to the pool, if what is left on them fits. Room for main's maxStack stays
+     * reserved in case it is executed again.
+     */
+    private void releaseStacks() {
+        int depth = sp + 1 + Math.max(0, functionTable[frames[fp - 2]].maxStack);
+        if (stack.length > INITIAL_STACK && depth <= INITIAL_STACK) {
+            int[] grown = stack;
+            stack = StackPool.SHARED.take(INITIAL_STACK);
+            System.arraycopy(grown, 0, stack, 0, sp + 1);
+            StackPool.SHARED.give(grown);
+            stackReserved = depth;
+        }
+        if (frames.length > INITIAL_FRAMES && frameTop <= INITIAL_FRAMES) {
+            int[] grown = frames;
+            frames = StackPool.SHARED.take(INITIAL_FRAMES);
+            System.arraycopy(grown, 0, frames, 0, frameTop);
+            StackPool.SHARED.give(grown);
+            frameReserved = frameTop;
+        }
+    }
+
+    /**
+     * The deepest the operand stack has been, in slots. Verified code reserves its maxStack when a
+     * frame is pushed, which counts as reached.
+     */
+    public int stackHighWater() {
+        return stackHighWater;
+    }
+
+    /**
+     * The most ints the frame stack has held, headers included.
+     */
+    public int frameHighWater() {
+        return frameHighWater;
+    }
+
+    /**
+     * Debug view of the frame stack, current frame first. Copies every frame, so it is only meant
+     * for diagnostics.
+     */
+    Context context() {
+        // built from main up, without recursion, as the frame stack can be deep
+        int depth = 0;
+        for (int frame = fp; frame >= FRAME_HEADER; frame = frames[frame - 1]) {
+            depth++;
+        }
+        int[] pointers = new int[depth];
+        for (int frame = fp, i = 0; frame >= FRAME_HEADER; frame = frames[frame - 1]) {
+            pointers[i++] = frame;
+        }
+        Context context = null;
+        for (int i = depth - 1; i >= 0; i--) {
+            int framePointer = pointers[i];
+            FunctionInfo info = functionTable[frames[framePointer - 2]];
+            int[] memory = Arrays.copyOfRange(frames, framePointer, framePointer + info.frameSize);
+            context = new Context(context, info, memory, frames[framePointer - 3]);
+        }
+        return context;
+    }
+
+    /**
+     * The address a jump to {@code target} from the operand at ip continues at, see backEdge.
+     */
+    private int jump(int target) {
+        return target < ip ? backEdge(target, ip - 1) : target;
+    }
+
+    /**
+     * A backward jump from {@code from} to {@code header}. Charges the budget of execute(long) or,
+     * in a verified JIT execution, counts the back edge and once the loop is hot runs it compiled
+     * from here until it exits. Returns the address to continue at, or PAUSED.
+     */
+    int backEdge(int header, int from) {
+        if (budgeted) {
+            return charge(from + 1 - header, header);
+        }
+        if (jit && verified) {
+            header = osr(header);
+        }
+        return yieldAt(header);
+    }
+
+    /**
+     * Counts a back edge to {@code header} and runs the loop compiled once it is hot; returns the
+     * address to continue at.
+     */
+    private int osr(int header) {
+        if (backEdges == null) {
+            backEdges = new long[code.length];
+            loops = new CompiledLoop[code.length];
+            loopFunctions = new int[code.length];
+            loopEntries = new int[code.length];
+        }
+        long count = ++backEdges[header];
+        if (count == 1) {
+            loopFunctions[header] = frames[fp - 2];
+        }
+        if (count < osrThreshold) {
+            return header;
+        }
+        CompiledLoop loop = loops[header];
+        if (loop == null) {
+            loop = JitCompiler.compileLoop(code, functionTable, loopFunctions[header], header);
+            if (loop == null) {
+                loop = NOT_COMPILED;
+            }
+            loops[header] = loop;
+        }
+        if (loop == NOT_COMPILED) {
+            return header;
+        }
+        loopEntries[header]++;
+        osrEntries++;
+        int exit;
+        compiledDepth++;
+        try {
+            exit = loop.run(this, fp);
+        } catch (StackOverflowError e) {
+            throw new UnsupportedOperationException("Stackoverflow");
+        } finally {
+            compiledDepth--;
+        }
+        osrExits++;
+        return exit;
+    }
+
+    /**
+     * Charges {@code cost} to the budget on the way to {@code address}; PAUSED once it is used up.
+     */
+    private int charge(int cost, int address) {
+        budget -= cost;
+        return budget > 0 ? yieldAt(address) : pauseAt(address);
+    }
+
+    /**
+     * Backward jumps to {@code header} the interpreter has taken; those of a loop running compiled
+     * are not counted.
+     */
+    public long backEdges(int header) {
+        return backEdges == null ? 0 : backEdges[header];
+    }
+
+    /**
+     * How often a hot loop was entered compiled in the middle of a call, see osrThreshold.
+     */
+    public long osrEntries() {
+        return osrEntries;
+    }
+
+    /**
+     * How often a compiled loop handed its frame back to the interpreter, at a loop exit or a pause.
+     */
+    public long osrExits() {
+        return osrExits;
+    }
+
+    /**
+     * One line per loop header that took a back edge: its function, the back edges counted and
+     * whether it was replaced on the stack.
+     */
+    public String loopReport() {
+        StringBuilder sb = new StringBuilder();
+        for (int header = 0; backEdges != null && header < backEdges.length; header++) {
+            if (backEdges[header] == 0) {
+                continue;
+            }
+            String state = loops[header] == null ? "interpreted"
+                    : loops[header] == NOT_COMPILED ? "not compilable"
+                    : "compiled, entered " + loopEntries[header] + " times";
+            sb.append(String.format("Loop at %d in %s: %d back edges, %s%n", header,
+                    functionTable[loopFunctions[header]].name, backEdges[header], state));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * SPAWN of {@code fIndex} with its arguments on the stack; returns the address to continue at.
+     */
+    int spawn(int fIndex, int returnAddress) {
+        int depth = callDepth();
+        if (depth >= spawnDepth) {
+            int handle = spawnAsCall(depth + 1);
+            int callerFp = fp;
+            int address = call(fIndex, returnAddress);
+            if (fp == callerFp) {
+                // compiled or found in the memo, so it has returned already
+                push(completeSpawn(handle, pop()));
+            } else {
+                deferSpawn(handle);
+            }
+            return address;
+        }
+        int argCount = functionTable[fIndex].argCount;
+        if (sp + 1 < argCount) {
+            throw new UnsupportedOperationException("Trying to pop from empty stack");
+        }
+        int[] args = Arrays.copyOfRange(stack, sp - argCount + 1, sp + 1);
+        sp -= argCount;
+        push(fork(fIndex, args, depth + 1));
+        return returnAddress;
+    }
+
+    /**
+     * The logical call depth of the current frame, see spawnDepth; only counted up to spawnDepth,
+     * as anything deeper is sequential.
+     */
+    private int callDepth() {
+        int depth = spawnLevel;
+        for (int frame = fp; frame != baseFp && depth < spawnDepth; frame = frames[frame - 1]) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Forks {@code fIndex(args)} as a task whose base frame is {@code depth} deep and returns its
+     * handle.
+     */
+    private int fork(int fIndex, int[] args, int depth) {
+        if (stopAddress < 0 && registerCode == null) {
+            stopAddress = findStop();
+        }
+        SpawnTask task = new SpawnTask(this, fIndex, args, depth);
+        task.fork();
+        spawnedTasks++;
+        return track(task);
+    }
+
+    /**
+     * A SPAWN run as a call whose base frame is {@code depth} deep: returns the handle of a task
+     * that keeps what the call prints until completeSpawn.
+     */
+    private int spawnAsCall(int depth) {
+        SpawnTask task = new SpawnTask(this, -1, null, depth);
+        printTo = task;
+        return track(task);
+    }
+
+    private void deferSpawn(int handle) {
+        if (spawnPending == null) {
+            spawnPending = new int[16];
+        } else if (spawnPendingTop + 2 > spawnPending.length) {
+            spawnPending = Arrays.copyOf(spawnPending, spawnPending.length * 2);
+        }
+        spawnPending[spawnPendingTop++] = handle;
+        spawnPending[spawnPendingTop++] = fp;
+    }
+
+    /**
+     * Completes the task of a SPAWN run as a call with its {@code result} and returns its handle.
+     */
+    private int completeSpawn(int handle, int result) {
+        tasks[handle].complete(result);
+        printTo = spawnPendingTop > 0 ? tasks[spawnPending[spawnPendingTop - 2]] : out;
+        return handle;
+    }
+
+    private int track(SpawnTask task) {
+        if (tasks == null) {
+            tasks = new SpawnTask[8];
+        } else if (taskCount == tasks.length) {
+            tasks = Arrays.copyOf(tasks, taskCount * 2);
+        }
+        tasks[taskCount] = task;
+        return taskCount++;
+    }
+
+    /**
+     * JOIN of {@code handle}: waits for the spawned call, helping the pool meanwhile, prints what it
+     * printed and returns its result.
+     */
+    int join(int handle) {
+        if (handle < 0 || handle >= taskCount || tasks[handle] == null
+                || tasks[handle].runsAsCall() && !tasks[handle].isDone()) {
+            throw new IllegalArgumentException("Invalid task: " + handle);
+        }
+        SpawnTask task = tasks[handle];
+        tasks[handle] = null;
+        while (taskCount > 0 && tasks[taskCount - 1] == null) {
+            taskCount--;
+        }
+        int result = task.join();
+        task.replay(out);
+        spawnedTasks += task.spawnedTasks();
+        return result;
+    }
+
+    /**
+     * Tasks forked by SPAWNs of this execution, and of the tasks it has joined.
+     */
+    long spawnedTasks() {
+        return spawnedTasks;
+    }
+
+    /**
+     * Runs {@code fIndex(args)} in this fresh execution and returns its result, see SpawnTask.
+     */
+    int runSpawned(int fIndex, int[] args) {
+        started = true;
+        if (registerCode != null) {
+            // the call replaces main as the bottom frame, so its R_RET ends the loop
+            FunctionInfo functionInfo = functionTable[fIndex];
+            if (functionInfo.maxStack > stackReserved) {
+                reserveStack(functionInfo.maxStack);
+            }
+            frameTop = 0;
+            pushFrame(fIndex, functionInfo, -1, registerCode.registers[fIndex]);
+            System.arraycopy(args, 0, frames, fp, args.length);
+            executeRegisters();
+        } else {
+            for (int arg : args) {
+                push(arg);
+            }
+            ip = call(fIndex, stopAddress);
+            baseFp = fp;
+            run();
+        }
+        int result = pop();
+        releaseStacks();
+        return result;
+    }
+
+    private int findStop() {
+        for (int ip = 0; ip < code.length; ip++) {
+            if (code[ip] == STOP) {
+                return ip;
+            }
+            InstInfo info = INFO_MAP.get(code[ip]);
+            ip += info == null ? 0 : info.operandCount;
+        }
+        throw new UnsupportedOperationException("SPAWN needs a STOP in the program");
+    }
+
+    /**
+     * CALL from compiled code: the arguments are already pushed. Runs the callee, compiled or
+     * interpreted, until it returns and pops its result.
+     */
+    int invokeFromCompiled(int fIndex) {
+        int callerIp = ip;
+        int callerFp = fp;
+        ip = call(fIndex, callerIp);
+        while (fp != callerFp) {
+            execute(code[ip]);
+        }
+        ip = callerIp;
+        return pop();
+    }
+
+    void flushOutput() {
+        out.flush();
+    }
+
+    void print(int value) {
+        printTo.printInt(value);
+    }
+
+    void printFloat(float value) {
+        printTo.printFloat(value);
+    }
+
+    void printString(int value) {
+        if (value >= 0 && value < constants.length) {
+            printTo.printString(constants[value]);
+        } else {
+            strings().print(value, printTo);
+        }
+    }
+
+    static UnsupportedOperationException unsupported(int inst) {
+        return new UnsupportedOperationException(String.format("INST %s is not supported", inst));
+    }
+
     private int getOperand() {
         return code[++ip];
     }
 
-    private int pop() {
+    /**
+     * The frame index of local {@code index} of the current frame, which ends at frameTop. In
+     * unverified code it is checked, so a bad operand cannot reach the frame header or another
+     * frame.
+     */
+    int local(int index) {
+        if (!verified && (index < 0 || index >= frameTop - fp)) {
+            throw new ArrayIndexOutOfBoundsException(
+                    String.format("Local %d out of bounds for frame size %d", index, frameTop - fp));
+        }
+        return fp + index;
+    }
+
+    int pop() {
         if (sp == -1) {
-            Diagnostic.printInstruction(code[ip], code, ip);
             throw new UnsupportedOperationException("Trying to pop from empty stack");
         }
         return stack[sp--];
     }
 
-    private void push(int value) {
-        if (sp >= stack.length - 1) {
-            Diagnostic.printInstruction(code[ip], code, ip);
-            throw new UnsupportedOperationException("Stackoverflow");
+    void push(int value) {
+        if (sp + 1 >= stackReserved) {
+            reserveStack(sp + 2);
         }
         stack[++sp] = value;
     }
 
-    private float popFloat() {
+    float popFloat() {
         return Float.intBitsToFloat(pop());
     }
 
-    private void pushFloat(float value) {
+    void pushFloat(float value) {
         push(Float.floatToIntBits(value));
     }
 }
@@ -0,0 +1,209 @@
+package com.nlang.vm;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary program container (.nbc). All values are little-endian ints and every section is 4-byte
+ * aligned, so the code section can be copied out of the mapped file in one bulk copy:
+ * <pre>
+ * header    magic "NBC1", version, code length, function table length, function count,
+ *           label count, string count, reserved
+ * code      int[code length]
+ * functions index, argCount, address, flags, name byte length, UTF-8 name, padding
+ * labels    address, name byte length, UTF-8 name, padding
+ * strings   pool index, byte length, UTF-8 text, padding
+ * </pre>
+ * Version 1 files, whose function entries have no flags, are still read.
+ */
+public class NbcFormat {
+
+    static final int MAGIC = 0x3143424E; // "NBC1" read little-endian
+    static final int VERSION = 2;
+    static final int FLAG_PURE = 1;
+    private static final int HEADER_INTS = 8;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private NbcFormat() {
+    }
+
+    public static void write(Program program, Path path) throws IOException {
+        int functionCount = 0;
+        long size = (HEADER_INTS + program.code.length) * 4L;
+        for (FunctionInfo f : program.functionTable) {
+            if (f != null) {
+                functionCount++;
+                size += 20 + padded(utf8(f.name).length);
+            }
+        }
+        for (String label : program.labels.keySet()) {
+            size += 8 + padded(utf8(label).length);
+        }
+        for (String value : program.stringPool.values()) {
+            size += 8 + padded(utf8(value).length);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Program too large for the .nbc format: " + size + " bytes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(program.code.length).putInt(program.functionTable.length)
+                .putInt(functionCount).putInt(program.labels.size()).putInt(program.stringPool.size()).putInt(0);
+        buffer.asIntBuffer().put(program.code);
+        buffer.position(buffer.position() + program.code.length * 4);
+        for (int i = 0; i < program.functionTable.length; i++) {
+            FunctionInfo f = program.functionTable[i];
+            if (f != null) {
+                buffer.putInt(i).putInt(f.argCount).putInt(f.address).putInt(f.pure ? FLAG_PURE : 0);
+                putString(buffer, f.name);
+            }
+        }
+        for (Map.Entry<String, Integer> label : program.labels.entrySet()) {
+            buffer.putInt(label.getValue());
+            putString(buffer, label.getKey());
+        }
+        for (Map.Entry<Integer, String> constant : program.stringPool.entrySet()) {
+            buffer.putInt(constant.getKey());
+            putString(buffer, constant.getValue());
+        }
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Maps the file and copies the code section out in bulk; only the function table, labels and
+     * string pool are decoded entry by entry. Every count, index, length and address is checked
+     * against the file and the table first, so a truncated or corrupt file fails with an
+     * IOException.
+     */
+    public static Program load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             Arena arena = Arena.ofConfined()) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            if (file.byteSize() < HEADER_INTS * 4L || file.get(INT, 0) != MAGIC) {
+                throw new IOException("Not an NVM binary: " + path);
+            }
+            int version = file.get(INT, 4);
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported .nbc version " + version + ": " + path);
+            }
+            int codeLength = file.get(INT, 8);
+            int tableLength = file.get(INT, 12);
+            int functionCount = file.get(INT, 16);
+            int labelCount = file.get(INT, 20);
+            int stringCount = file.get(INT, 24);
+
+            long offset = HEADER_INTS * 4L;
+            // a table is never longer than the file, whatever gaps it has
+            if (codeLength < 0 || offset + codeLength * 4L > file.byteSize() || tableLength < 0
+                    || tableLength > file.byteSize() || functionCount < 0 || functionCount > tableLength
+                    || labelCount < 0 || stringCount < 0) {
+                throw corrupt(path, "bad header", 8);
+            }
+            int[] code = new int[codeLength];
+            MemorySegment.copy(file, INT, offset, code, 0, codeLength);
+            offset += codeLength * 4L;
+
+            FunctionInfo[] functionTable = new FunctionInfo[tableLength];
+            for (int i = 0; i < functionCount; i++) {
+                long entry = offset;
+                int fixed = version > 1 ? 20 : 16;
+                require(file, offset, fixed, path);
+                int index = file.get(INT, offset);
+                int argCount = file.get(INT, offset + 4);
+                int address = file.get(INT, offset + 8);
+                int flags = 0;
+                if (version > 1) {
+                    flags = file.get(INT, offset + 12);
+                    offset += 4;
+                }
+                int length = file.get(INT, offset + 12);
+                if (index < 0 || index >= tableLength || functionTable[index] != null || argCount < 0
+                        || address < 0 || address >= codeLength) {
+                    throw corrupt(path, "bad function entry", entry);
+                }
+                require(file, offset + 16, length, path);
+                FunctionInfo function = new FunctionInfo(getString(file, offset + 16, length), argCount, address);
+                function.pure = (flags & FLAG_PURE) != 0;
+                functionTable[index] = function;
+                offset += 16 + padded(length);
+            }
+
+            Map<String, Integer> labels = new HashMap<>();
+            for (int i = 0; i < labelCount; i++) {
+                require(file, offset, 8, path);
+                int address = file.get(INT, offset);
+                int length = file.get(INT, offset + 4);
+                if (address < 0 || address > codeLength) {
+                    throw corrupt(path, "bad label entry", offset);
+                }
+                require(file, offset + 8, length, path);
+                labels.put(getString(file, offset + 8, length), address);
+                offset += 8 + padded(length);
+            }
+
+            Map<Integer, String> stringPool = new HashMap<>();
+            for (int i = 0; i < stringCount; i++) {
+                require(file, offset, 8, path);
+                int index = file.get(INT, offset);
+                int length = file.get(INT, offset + 4);
+                if (index < 0) {
+                    throw corrupt(path, "bad string entry", offset);
+                }
+                require(file, offset + 8, length, path);
+                stringPool.put(index, getString(file, offset + 8, length));
+                offset += 8 + padded(length);
+            }
+            return new Program(code, functionTable, stringPool, labels);
+        }
+    }
+
+    /**
+     * Throws unless {@code bytes} bytes from {@code offset} are within the file.
+     */
+    private static void require(MemorySegment file, long offset, long bytes, Path path) throws IOException {
+        if (bytes < 0 || offset + bytes > file.byteSize()) {
+            throw corrupt(path, "truncated", offset);
+        }
+    }
+
+    private static IOException corrupt(Path path, String problem, long offset) {
+        return new IOException("Not an NVM binary, " + problem + " at byte " + offset + ": " + path);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = utf8(s);
+        buffer.putInt(bytes.length).put(bytes);
+        buffer.position(buffer.position() + padded(bytes.length) - bytes.length);
+    }
+
+    private static String getString(MemorySegment file, long offset, int length) {
+        byte[] bytes = new byte[length];
+        MemorySegment.copy(file, ValueLayout.JAVA_BYTE, offset, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
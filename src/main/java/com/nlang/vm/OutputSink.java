@@ -0,0 +1,24 @@
+package com.nlang.vm;
+
+/**
+ * Destination of PRINT, FPRINT and SPRINT. Every value is written on its own line; NVM flushes the
+ * sink when execution stops.
+ */
+public interface OutputSink {
+
+    void printInt(int value);
+
+    void printFloat(float value);
+
+    void printString(String value);
+
+    /**
+     * Prints {@code chars[offset, offset + length)} as a string. Sinks that can write chars directly
+     * override this to skip the String.
+     */
+    default void printChars(char[] chars, int offset, int length) {
+        printString(new String(chars, offset, length));
+    }
+
+    void flush();
+}
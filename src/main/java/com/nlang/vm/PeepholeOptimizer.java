@@ -0,0 +1,249 @@
+package com.nlang.vm;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Rewrites common instruction sequences of the lexed bytecode into superinstructions:
+ * <pre>
+ * LOAD a; PUSH k; IADD; STORE a   -> IINC a k       (ISUB gives IINC a -k)
+ * LOAD a; LOAD b; IADD; STORE c   -> IADD_LLS a b c (ISUB, IMUL)
+ * LOAD a; LOAD b; ILT; JZ t       -> ILT_JZ_LL a b t (IGE)
+ * LOAD a; PUSH k; ILT; JZ t       -> ILT_JZ_LC a k t (IGE)
+ * LOAD a; STORE b                 -> MOVE a b
+ * </pre>
+ * A sequence is only fused when no jump, call or return lands inside it. Jump operands and
+ * {@link FunctionInfo#address} are relocated to the rewritten code; the input is left untouched.
+ */
+public class PeepholeOptimizer {
+
+    public static class Result {
+        public final int[] code;
+        public final FunctionInfo[] functionTable;
+        public final int instructionsBefore;
+        public final int instructionsAfter;
+        private final Map<String, Integer> fused;
+        private final int[] relocation;
+
+        private Result(int[] code, FunctionInfo[] functionTable, int[] relocation, int instructionsBefore,
+                       int instructionsAfter, Map<String, Integer> fused) {
+            this.code = code;
+            this.functionTable = functionTable;
+            this.relocation = relocation;
+            this.instructionsBefore = instructionsBefore;
+            this.instructionsAfter = instructionsAfter;
+            this.fused = fused;
+        }
+
+        /**
+         * The labels of the input, such as {@link Program#labels}, moved to the rewritten code.
+         * Labels inside a fused sequence are dropped.
+         */
+        public Map<String, Integer> relocate(Map<String, Integer> labels) {
+            return ConstantFolder.relocateLabels(labels, relocation);
+        }
+
+        /**
+         * Number of times the given superinstruction was emitted.
+         */
+        public int fusedCount(int opcode) {
+            return fused.getOrDefault(INFO_MAP.get(opcode).name, 0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Instructions: %d -> %d, code size: %d, fused: %s",
+                    instructionsBefore, instructionsAfter, code.length, fused);
+        }
+    }
+
+    private final int[] code;
+    private final FunctionInfo[] functionTable;
+    private final boolean[] instructionStart;
+    private final boolean[] branchTarget;
+    private final Map<String, Integer> fused = new TreeMap<>();
+
+    private PeepholeOptimizer(int[] code, FunctionInfo[] functionTable) {
+        this.code = code;
+        this.functionTable = functionTable;
+        this.instructionStart = new boolean[code.length + 1];
+        this.branchTarget = new boolean[code.length + 1];
+    }
+
+    public static Result optimize(int[] code, FunctionInfo[] functionTable) {
+        return new PeepholeOptimizer(code, functionTable).optimize();
+    }
+
+    private Result optimize() {
+        int instructionsBefore = markTargets();
+
+        int[] out = new int[code.length];
+        int[] relocation = new int[code.length + 1];
+        Arrays.fill(relocation, -1);
+        int length = 0;
+        int instructionsAfter = 0;
+        int ip = 0;
+        while (ip < code.length) {
+            relocation[ip] = length;
+            int consumed = fuse(ip, out, length);
+            if (consumed > 0) {
+                length += INFO_MAP.get(out[length]).operandCount + 1;
+                ip += consumed;
+            } else {
+                int size = size(ip);
+                System.arraycopy(code, ip, out, length, size);
+                length += size;
+                ip += size;
+            }
+            instructionsAfter++;
+        }
+        relocation[code.length] = length;
+
+        int[] optimized = Arrays.copyOf(out, length);
+        relocateJumps(optimized, relocation);
+
+        FunctionInfo[] table = new FunctionInfo[functionTable.length];
+        for (int i = 0; i < functionTable.length; i++) {
+            FunctionInfo f = functionTable[i];
+            if (f != null) {
+                table[i] = f.withAddress(relocation[f.address]);
+            }
+        }
+        return new Result(optimized, table, relocation, instructionsBefore, instructionsAfter, fused);
+    }
+
+    /**
+     * Records instruction boundaries and every address control can arrive at other than by falling
+     * through: jump targets, function entries and the return address of each CALL, TAILCALL and SPAWN.
+     */
+    private int markTargets() {
+        int count = 0;
+        int ip = 0;
+        while (ip < code.length) {
+            instructionStart[ip] = true;
+            int inst = code[ip];
+            if (isJump(inst)) {
+                markTarget(code[ip + jumpOperand(inst)]);
+            }
+            int size = size(ip);
+            if (inst == CALL || inst == TAILCALL || inst == SPAWN) {
+                markTarget(ip + size);
+            }
+            ip += size;
+            count++;
+        }
+        for (FunctionInfo f : functionTable) {
+            if (f != null) {
+                markTarget(f.address);
+            }
+        }
+        return count;
+    }
+
+    private void markTarget(int address) {
+        if (address >= 0 && address < branchTarget.length) {
+            branchTarget[address] = true;
+        }
+    }
+
+    /**
+     * Tries to fuse the sequence starting at {@code ip}, writing the superinstruction at
+     * {@code out[at]}. Returns the number of code slots consumed, 0 when nothing matched.
+     */
+    private int fuse(int ip, int[] out, int at) {
+        int length;
+        if ((length = match(ip, LOAD, PUSH, IADD, STORE)) > 0 && code[ip + 1] == code[ip + 6]) {
+            return emit(out, at, length, IINC, code[ip + 1], code[ip + 3]);
+        }
+        if ((length = match(ip, LOAD, PUSH, ISUB, STORE)) > 0 && code[ip + 1] == code[ip + 6]) {
+            return emit(out, at, length, IINC, code[ip + 1], -code[ip + 3]);
+        }
+        if ((length = match(ip, LOAD, LOAD, IADD, STORE)) > 0) {
+            return emit(out, at, length, IADD_LLS, code[ip + 1], code[ip + 3], code[ip + 6]);
+        }
+        if ((length = match(ip, LOAD, LOAD, ISUB, STORE)) > 0) {
+            return emit(out, at, length, ISUB_LLS, code[ip + 1], code[ip + 3], code[ip + 6]);
+        }
+        if ((length = match(ip, LOAD, LOAD, IMUL, STORE)) > 0) {
+            return emit(out, at, length, IMUL_LLS, code[ip + 1], code[ip + 3], code[ip + 6]);
+        }
+        if ((length = match(ip, LOAD, LOAD, ILT, JZ)) > 0) {
+            return emit(out, at, length, ILT_JZ_LL, code[ip + 1], code[ip + 3], code[ip + 6]);
+        }
+        if ((length = match(ip, LOAD, PUSH, ILT, JZ)) > 0) {
+            return emit(out, at, length, ILT_JZ_LC, code[ip + 1], code[ip + 3], code[ip + 6]);
+        }
+        if ((length = match(ip, LOAD, LOAD, IGTE, JZ)) > 0) {
+            return emit(out, at, length, IGTE_JZ_LL, code[ip + 1], code[ip + 3], code[ip + 6]);
+        }
+        if ((length = match(ip, LOAD, PUSH, IGTE, JZ)) > 0) {
+            return emit(out, at, length, IGTE_JZ_LC, code[ip + 1], code[ip + 3], code[ip + 6]);
+        }
+        if ((length = match(ip, LOAD, STORE)) > 0) {
+            return emit(out, at, length, MOVE, code[ip + 1], code[ip + 3]);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of code slots covered when the instructions at {@code ip} are exactly
+     * {@code pattern} and nothing but the first one is a branch target, 0 otherwise.
+     */
+    private int match(int ip, int... pattern) {
+        int at = ip;
+        for (int i = 0; i < pattern.length; i++) {
+            if (at >= code.length || !instructionStart[at] || code[at] != pattern[i]) {
+                return 0;
+            }
+            if (i > 0 && branchTarget[at]) {
+                return 0;
+            }
+            at += size(at);
+        }
+        return at <= code.length ? at - ip : 0;
+    }
+
+    private int emit(int[] out, int at, int length, int opcode, int... operands) {
+        out[at] = opcode;
+        System.arraycopy(operands, 0, out, at + 1, operands.length);
+        fused.merge(INFO_MAP.get(opcode).name, 1, Integer::sum);
+        return length;
+    }
+
+    private void relocateJumps(int[] optimized, int[] relocation) {
+        int ip = 0;
+        while (ip < optimized.length) {
+            int inst = optimized[ip];
+            if (isJump(inst)) {
+                int operand = ip + jumpOperand(inst);
+                int target = relocation[optimized[operand]];
+                if (target < 0) {
+                    throw new IllegalStateException("Jump into the middle of a fused instruction at " + ip);
+                }
+                optimized[operand] = target;
+            }
+            InstInfo info = INFO_MAP.get(inst);
+            ip += info == null ? 1 : info.operandCount + 1;
+        }
+    }
+
+    private int size(int ip) {
+        InstInfo info = INFO_MAP.get(code[ip]);
+        return info == null ? 1 : info.operandCount + 1;
+    }
+
+    static boolean isJump(int inst) {
+        return inst == JMP || inst == JZ || inst == JNZ
+                || inst == ILT_JZ_LL || inst == ILT_JZ_LC || inst == IGTE_JZ_LL || inst == IGTE_JZ_LC;
+    }
+
+    /**
+     * Offset of the target address operand from the start of a jump instruction.
+     */
+    static int jumpOperand(int inst) {
+        return inst == JMP || inst == JZ || inst == JNZ ? 1 : 3;
+    }
+}
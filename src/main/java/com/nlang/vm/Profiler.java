@@ -0,0 +1,330 @@
+package com.nlang.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Sampling profiler for the interpreters, attached with {@link NVM#setProfiler(Profiler)}.
+ * <p>
+ * A profiled execution runs the {@link ThreadedCode} handlers with a counter wrapped around the
+ * first handler of every basic block. Blocks always run to their end, so opcode counts and call
+ * counts follow exactly from the block counts while only one counter is bumped per block.
+ * <p>
+ * Time is sampled: a daemon thread raises {@link #sampleDue} every interval and the interpreter
+ * records its own call stack at the next block start, so a sample never sees a half-built frame
+ * and no clock is read per instruction. Self time of a function is the share of samples with it
+ * on top of the stack, total time the share with it anywhere on the stack.
+ * <p>
+ * A profiler accumulates over executions of one program, one execution at a time, and keeps its
+ * sampler thread until closed. With the JIT engine, time spent in compiled functions is charged to
+ * their interpreted caller and calls made from compiled code are not counted.
+ */
+public class Profiler implements AutoCloseable {
+
+    private final long intervalNanos;
+
+    private int[] code;
+    private FunctionInfo[] functionTable;
+    private ThreadedCode.Op[] ops;
+    private int[] blockStarts;
+    private long[] blockCounts;
+    private long executions;
+
+    private long[] selfSamples;
+    private long[] totalSamples;
+    private final Map<String, Long> stacks = new HashMap<>();
+    private long samples;
+    private long elapsedNanos;
+
+    volatile boolean sampleDue;
+    private volatile boolean closed;
+    private Thread sampler;
+    private long startNanos;
+
+    private int[] stack = new int[64];
+    private int[] seen;
+
+    public Profiler() {
+        this(1, TimeUnit.MILLISECONDS);
+    }
+
+    public Profiler(long interval, TimeUnit unit) {
+        this.intervalNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * Returns the handlers to run {@code code} with.
+     */
+    ThreadedCode.Op[] start(int[] code, FunctionInfo[] functionTable) {
+        if (this.code == null) {
+            bind(code, functionTable);
+        } else if (this.code != code) {
+            throw new IllegalStateException("A profiler covers executions of one program");
+        }
+        if (sampler == null) {
+            sampler = Thread.ofPlatform().daemon().name("nvm-profiler").start(this::tick);
+        }
+        executions++;
+        startNanos = System.nanoTime();
+        sampleDue = false;
+        return ops;
+    }
+
+    void stop() {
+        elapsedNanos += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Stops the sampler thread, which otherwise lives as long as the profiler is in use.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (sampler != null) {
+            LockSupport.unpark(sampler);
+        }
+    }
+
+    private void tick() {
+        while (!closed) {
+            LockSupport.parkNanos(intervalNanos);
+            sampleDue = true;
+        }
+    }
+
+    private void bind(int[] code, FunctionInfo[] functionTable) {
+        this.code = code;
+        this.functionTable = functionTable;
+        this.selfSamples = new long[functionTable.length];
+        this.totalSamples = new long[functionTable.length];
+        this.seen = new int[functionTable.length];
+
+        boolean[] leader = new boolean[code.length];
+        for (FunctionInfo f : functionTable) {
+            if (f != null && f.address < code.length) {
+                leader[f.address] = true;
+            }
+        }
+        for (int ip = 0; ip < code.length; ip += size(ip)) {
+            int inst = code[ip];
+            if (PeepholeOptimizer.isJump(inst)) {
+                int target = code[ip + PeepholeOptimizer.jumpOperand(inst)];
+                if (target >= 0 && target < code.length) {
+                    leader[target] = true;
+                }
+            }
+            int next = ip + size(ip);
+            if (endsBlock(inst) && next < code.length) {
+                leader[next] = true;
+            }
+        }
+
+        ops = ThreadedCode.decode(code);
+        blockCounts = new long[code.length];
+        int[] starts = new int[code.length];
+        int blocks = 0;
+        for (int ip = 0; ip < code.length; ip += size(ip)) {
+            if (leader[ip]) {
+                ops[ip] = new BlockStart(ops[ip], blocks, blockCounts, this);
+                starts[blocks++] = ip;
+            }
+        }
+        blockStarts = Arrays.copyOf(starts, blocks);
+    }
+
+    private static boolean endsBlock(int inst) {
+        return PeepholeOptimizer.isJump(inst) || inst == CALL || inst == TAILCALL || inst == SPAWN || inst == RET
+                || inst == STOP;
+    }
+
+    private int size(int ip) {
+        InstInfo info = INFO_MAP.get(code[ip]);
+        return info == null ? 1 : info.operandCount + 1;
+    }
+
+    /**
+     * Counts the block, takes a sample if one is due and runs the block's first instruction.
+     */
+    private static final class BlockStart extends ThreadedCode.Op {
+        private final ThreadedCode.Op first;
+        private final int block;
+        private final long[] counts;
+        private final Profiler profiler;
+
+        BlockStart(ThreadedCode.Op first, int block, long[] counts, Profiler profiler) {
+            this.first = first;
+            this.block = block;
+            this.counts = counts;
+            this.profiler = profiler;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            counts[block]++;
+            if (profiler.sampleDue) {
+                profiler.sample(vm.frames, vm.fp);
+            }
+            return first.execute(vm);
+        }
+    }
+
+    /**
+     * Records the call stack of the frames {@code fp} belongs to, see the frame layout in NVM.
+     */
+    void sample(int[] frames, int fp) {
+        sampleDue = false;
+        samples++;
+        int depth = 0;
+        for (int frame = fp; frame >= 3; frame = frames[frame - 1]) {
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth++] = frames[frame - 2];
+        }
+        if (depth == 0) {
+            return;
+        }
+        selfSamples[stack[0]]++;
+        int stamp = (int) samples;
+        StringBuilder key = new StringBuilder();
+        for (int i = depth - 1; i >= 0; i--) {
+            int function = stack[i];
+            if (seen[function] != stamp) {
+                seen[function] = stamp;
+                totalSamples[function]++;
+            }
+            if (key.length() > 0) {
+                key.append(';');
+            }
+            key.append(functionTable[function].name);
+        }
+        stacks.merge(key.toString(), 1L, Long::sum);
+    }
+
+    public long samples() {
+        return samples;
+    }
+
+    /**
+     * Executions of each opcode, indexed by opcode.
+     */
+    public long[] opcodeCounts() {
+        long[] counts = new long[256];
+        if (code == null) {
+            return counts;
+        }
+        for (int block = 0; block < blockStarts.length; block++) {
+            long count = blockCounts[block];
+            int end = block + 1 < blockStarts.length ? blockStarts[block + 1] : code.length;
+            for (int ip = blockStarts[block]; count > 0 && ip < end; ip += size(ip)) {
+                counts[code[ip] & 0xFF] += count;
+            }
+        }
+        return counts;
+    }
+
+    public long opcodeCount(int opcode) {
+        return opcodeCounts()[opcode];
+    }
+
+    /**
+     * Calls of each function, indexed like the function table. The entry function counts one call
+     * per execution.
+     */
+    public long[] callCounts() {
+        if (code == null) {
+            return new long[0];
+        }
+        long[] counts = new long[functionTable.length];
+        counts[0] = executions;
+        for (int block = 0; block < blockStarts.length; block++) {
+            int end = block + 1 < blockStarts.length ? blockStarts[block + 1] : code.length;
+            int last = blockStarts[block];
+            for (int ip = last; ip < end; ip += size(ip)) {
+                last = ip;
+            }
+            if (code[last] == CALL || code[last] == TAILCALL || code[last] == SPAWN) {
+                counts[code[last + 1]] += blockCounts[block];
+            }
+        }
+        return counts;
+    }
+
+    public long callCount(String function) {
+        long[] counts = callCounts();
+        for (int i = 0; i < counts.length; i++) {
+            if (functionTable[i] != null && functionTable[i].name.equals(function)) {
+                return counts[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Functions by total time, then opcodes by count.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("NVM profile: %d samples over %.1f ms%n", samples, elapsedNanos / 1e6));
+        if (code == null) {
+            return sb.toString();
+        }
+        long[] calls = callCounts();
+        sb.append(String.format("%-24s %12s %8s %8s %10s %10s%n", "Function", "Calls", "Self %", "Total %", "Self ms", "Total ms"));
+        List<Integer> functions = new ArrayList<>();
+        for (int i = 0; i < functionTable.length; i++) {
+            if (functionTable[i] != null && (calls[i] > 0 || totalSamples[i] > 0)) {
+                functions.add(i);
+            }
+        }
+        functions.sort((a, b) -> Long.compare(totalSamples[b], totalSamples[a]));
+        for (int i : functions) {
+            sb.append(String.format("%-24s %12d %8.1f %8.1f %10.1f %10.1f%n", functionTable[i].name, calls[i],
+                    percent(selfSamples[i]), percent(totalSamples[i]), millis(selfSamples[i]), millis(totalSamples[i])));
+        }
+
+        long[] opcodes = opcodeCounts();
+        long instructions = Arrays.stream(opcodes).sum();
+        sb.append(String.format("%n%-24s %12s %8s%n", "Opcode", "Count", "%"));
+        List<Integer> executed = new ArrayList<>();
+        for (int i = 0; i < opcodes.length; i++) {
+            if (opcodes[i] > 0) {
+                executed.add(i);
+            }
+        }
+        executed.sort((a, b) -> Long.compare(opcodes[b], opcodes[a]));
+        for (int i : executed) {
+            InstInfo info = INFO_MAP.get(i);
+            sb.append(String.format("%-24s %12d %8.1f%n", info == null ? String.valueOf(i) : info.name, opcodes[i],
+                    100.0 * opcodes[i] / instructions));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One {@code root;caller;function count} line per sampled stack, the input format of
+     * flamegraph.pl and most flame graph viewers.
+     */
+    public String collapsedStacks() {
+        StringBuilder sb = new StringBuilder();
+        stacks.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(e -> sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n'));
+        return sb.toString();
+    }
+
+    private double percent(long count) {
+        return samples == 0 ? 0 : 100.0 * count / samples;
+    }
+
+    private double millis(long count) {
+        return samples == 0 ? 0 : elapsedNanos / 1e6 * count / samples;
+    }
+}
@@ -0,0 +1,105 @@
+package com.nlang.vm;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A loaded program: the code, its function table, the string constant pool and the label names
+ * kept as debug info.
+ * <p>
+ * One instance can back any number of {@link NVM}s, sequential or concurrent; each NVM only holds
+ * the state of its own execution. The code, constants and labels are never modified once built.
+ * The function table is shared mutable state in two parts:
+ * <ul>
+ * <li>the {@link Verifier}'s results, maxStack, maxLocals, frameSize and verifiedCode, are written
+ * by the time the constructor returns and reach other threads through the final functionTable
+ * field;</li>
+ * <li>the JIT state, invocations, uncompilable and compiled, is written by every execution, see
+ * {@link FunctionInfo}; compiled is volatile, so a function compiled for one execution is safely
+ * used by all of them, while the other two are best-effort hints.</li>
+ * </ul>
+ * The raw NVM constructors verify the caller's table instead, locked on the table, see
+ * {@link Verifier#verify}.
+ */
+public class Program {
+
+    final int[] code;
+    final FunctionInfo[] functionTable;
+    final Map<Integer, String> stringPool;
+    final Map<String, Integer> labels;
+    // stringPool as an array indexed by LDC operand
+    final String[] constants;
+    // passed the Verifier, runs without per-instruction stack checks
+    final boolean verified;
+
+    private volatile ThreadedCode.Op[] threadedCode;
+    private volatile RegisterCode registerCode;
+
+    public Program(int[] code, FunctionInfo[] functionTable, Map<Integer, String> stringPool, Map<String, Integer> labels) {
+        this.code = code;
+        this.functionTable = functionTable;
+        this.stringPool = Collections.unmodifiableMap(stringPool);
+        this.labels = Collections.unmodifiableMap(labels);
+        this.constants = constants(stringPool);
+        this.verified = Verifier.verify(code, functionTable);
+    }
+
+    /**
+     * Throws an IllegalArgumentException describing the first problem the {@link Verifier} finds,
+     * if any. Unverified programs still run, with every push and pop checked.
+     */
+    public void verify() {
+        if (!verified) {
+            Verifier.check(code, functionTable);
+        }
+    }
+
+    /**
+     * The pool as a dense array, null where an index is not defined.
+     */
+    static String[] constants(Map<Integer, String> stringPool) {
+        if (stringPool == null || stringPool.isEmpty()) {
+            return new String[0];
+        }
+        String[] constants = new String[Collections.max(stringPool.keySet()) + 1];
+        for (Map.Entry<Integer, String> constant : stringPool.entrySet()) {
+            if (constant.getKey() < 0) {
+                throw new IllegalArgumentException("Negative constant index: " + constant.getKey());
+            }
+            constants[constant.getKey()] = constant.getValue();
+        }
+        return constants;
+    }
+
+    /**
+     * Assembles a .nbyte source.
+     */
+    public static Program parse(String source) {
+        return Assembler.assemble(source);
+    }
+
+    /**
+     * The code decoded for the THREADED engine, decoded on first use. The handlers hold no
+     * execution state, a racing second decode just produces an equivalent array.
+     */
+    ThreadedCode.Op[] threadedCode() {
+        ThreadedCode.Op[] decoded = threadedCode;
+        if (decoded == null) {
+            decoded = ThreadedCode.decode(code, verified);
+            threadedCode = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * The code translated for the REGISTER engine on first use, null if the program is not verified.
+     */
+    RegisterCode registerCode() {
+        RegisterCode translated = registerCode;
+        if (translated == null && verified) {
+            translated = RegisterCode.translate(code, functionTable);
+            registerCode = translated;
+        }
+        return translated;
+    }
+}
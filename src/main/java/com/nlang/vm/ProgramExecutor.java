@@ -0,0 +1,76 @@
+package com.nlang.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs executions of one {@link Program} in parallel. Every execution gets its own {@link NVM}
+ * over the shared program and, unless a sink is given, its own {@link MemoryOutputSink} whose
+ * contents complete the returned future.
+ */
+public class ProgramExecutor implements AutoCloseable {
+
+    private final Program program;
+    private final NVM.Engine engine;
+    private final ExecutorService executor;
+
+    public ProgramExecutor(Program program, NVM.Engine engine, ExecutorService executor) {
+        this.program = program;
+        this.engine = engine;
+        this.executor = executor;
+    }
+
+    /**
+     * One virtual thread per execution.
+     */
+    public static ProgramExecutor virtualThreads(Program program, NVM.Engine engine) {
+        return new ProgramExecutor(program, engine, Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    public static ProgramExecutor fixedPool(Program program, NVM.Engine engine, int threads) {
+        return new ProgramExecutor(program, engine, Executors.newFixedThreadPool(threads));
+    }
+
+    /**
+     * Starts one execution and completes with everything it printed.
+     */
+    public CompletableFuture<String> submit() {
+        return CompletableFuture.supplyAsync(() -> {
+            MemoryOutputSink out = new MemoryOutputSink();
+            new NVM(program, engine, out).execute();
+            return out.toString();
+        }, executor);
+    }
+
+    /**
+     * Starts one execution printing to {@code out}, which must not be shared with a concurrent
+     * execution.
+     */
+    public CompletableFuture<Void> submit(OutputSink out) {
+        return CompletableFuture.runAsync(() -> new NVM(program, engine, out).execute(), executor);
+    }
+
+    /**
+     * Runs {@code count} executions and waits for all of them. Returns their outputs in submission
+     * order; a failed execution is rethrown as a CompletionException.
+     */
+    public List<String> runAll(int count) {
+        List<CompletableFuture<String>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            futures.add(submit());
+        }
+        List<String> outputs = new ArrayList<>(count);
+        for (CompletableFuture<String> future : futures) {
+            outputs.add(future.join());
+        }
+        return outputs;
+    }
+
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
@@ -0,0 +1,404 @@
+package com.nlang.vm;
+
+import java.util.Arrays;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Verified bytecode translated to a three-address register code, used by
+ * {@link NVM.Engine#REGISTER}.
+ * <p>
+ * Every function gets one register file, its frame: registers {@code [0, maxLocals)} are the
+ * locals and register {@code maxLocals + d} holds the stack slot at depth {@code d}, which the
+ * {@link Verifier} knows for every instruction. Within a basic block LOAD and PUSH only note where
+ * the value is, arithmetic reads its operands straight from the locals and a STORE right after it
+ * becomes the destination, so {@code LOAD 3; LOAD 4; IADD; STORE 2} is the single
+ * {@code IADD r2 r3 r4}. A compare followed by JZ or JNZ becomes one compare-and-branch.
+ * Instructions without a register form run on the operand stack through {@link #R_STACK}.
+ * <pre>
+ * CONST dst k           MOVE dst src
+ * IADD dst a b          (ISUB, IMUL, ILT, IGE)
+ * IADDI dst a k         IINC r k
+ * JMP t                 JZ r t, JNZ r t
+ * ILT_JZ a b t          jumps unless a &lt; b (IGE_JZ)
+ * ILT_JZ_C a k t        (IGE_JZ_C)
+ * CALL f base           arguments in base.., results written back to base..
+ * TAILCALL f base
+ * SPAWN f base          the task handle, written to base
+ * RET src count         PRINT r
+ * STACK inst base pops  any other instruction, operands in base.., result to base
+ * STOP
+ * </pre>
+ */
+final class RegisterCode {
+
+    static final int R_STOP = 0;
+    static final int R_CONST = 1;
+    static final int R_MOVE = 2;
+    static final int R_IADD = 3;
+    static final int R_ISUB = 4;
+    static final int R_IMUL = 5;
+    static final int R_ILT = 6;
+    static final int R_IGTE = 7;
+    static final int R_IADDI = 8;
+    static final int R_IINC = 9;
+    static final int R_JMP = 10;
+    static final int R_JZ = 11;
+    static final int R_JNZ = 12;
+    static final int R_ILT_JZ = 13;
+    static final int R_IGTE_JZ = 14;
+    static final int R_ILT_JZ_C = 15;
+    static final int R_IGTE_JZ_C = 16;
+    static final int R_CALL = 17;
+    static final int R_TAILCALL = 18;
+    static final int R_RET = 19;
+    static final int R_PRINT = 20;
+    static final int R_STACK = 21;
+    static final int R_SPAWN = 22;
+
+    // where the value of a stack slot is while translating
+    private static final int IN_REGISTER = 0;
+    private static final int IN_LOCAL = 1;
+    private static final int IS_CONSTANT = 2;
+
+    final int[] code;
+    // per function: address of its first instruction and its frame size
+    final int[] entry;
+    final int[] registers;
+
+    private RegisterCode(int[] code, int[] entry, int[] registers) {
+        this.code = code;
+        this.entry = entry;
+        this.registers = registers;
+    }
+
+    /**
+     * Translates the program, or returns null if it does not pass the {@link Verifier} or two
+     * functions share code.
+     */
+    static RegisterCode translate(int[] code, FunctionInfo[] functionTable) {
+        int[] owners = new int[code.length];
+        int[] depths = Verifier.stackDepths(code, functionTable, owners);
+        if (depths == null) {
+            return null;
+        }
+        return new Translator(code, functionTable, depths, owners).translate();
+    }
+
+    private static final class Translator {
+        private final int[] code;
+        private final FunctionInfo[] functionTable;
+        private final int[] depths;
+        private final int[] owners;
+        private final boolean[] target;
+
+        private int[] out;
+        private int length;
+        private final int[] address;
+        private int[] fixups = new int[16];
+        private int fixupCount;
+
+        private int[] kinds = new int[16];
+        private int[] values = new int[16];
+        private int depth;
+        private int locals;
+        // position of the destination operand of the last instruction if it produced the top slot
+        private int lastDestination = -1;
+
+        Translator(int[] code, FunctionInfo[] functionTable, int[] depths, int[] owners) {
+            this.code = code;
+            this.functionTable = functionTable;
+            this.depths = depths;
+            this.owners = owners;
+            this.target = new boolean[code.length + 1];
+            this.out = new int[code.length * 2 + 16];
+            this.address = new int[code.length];
+        }
+
+        RegisterCode translate() {
+            for (int ip = 0; ip < code.length; ip = next(ip)) {
+                if (depths[ip] >= 0 && PeepholeOptimizer.isJump(code[ip])) {
+                    target[code[ip + PeepholeOptimizer.jumpOperand(code[ip])]] = true;
+                }
+            }
+            boolean fallsThrough = false;
+            int owner = -1;
+            for (int ip = 0; ip < code.length; ip = next(ip)) {
+                if (depths[ip] < 0) {
+                    fallsThrough = false;
+                    continue;
+                }
+                if (fallsThrough && owners[ip] == owner && target[ip]) {
+                    materializeAll();
+                } else if (!fallsThrough || owners[ip] != owner) {
+                    owner = owners[ip];
+                    FunctionInfo function = functionTable[owner];
+                    locals = function.maxLocals;
+                    if (kinds.length < function.maxStack + 1) {
+                        kinds = new int[function.maxStack + 1];
+                        values = new int[function.maxStack + 1];
+                    }
+                    depth = depths[ip];
+                    Arrays.fill(kinds, 0, depth, IN_REGISTER);
+                }
+                address[ip] = length;
+                int producer = lastDestination;
+                lastDestination = -1;
+                int inst = code[ip];
+                int next = next(ip);
+                if ((inst == ILT || inst == IGTE) && next < code.length
+                        && (code[next] == JZ || code[next] == JNZ)
+                        && !target[next] && depths[next] >= 0) {
+                    compareAndBranch(inst == ILT == (code[next] == JZ), code[next + 1]);
+                    address[next] = address[ip];
+                    fallsThrough = true;
+                    ip = next;
+                    continue;
+                }
+                fallsThrough = translate(ip, inst, producer);
+            }
+            for (int i = 0; i < fixupCount; i++) {
+                out[fixups[i]] = address[out[fixups[i]]];
+            }
+
+            int[] entry = new int[functionTable.length];
+            int[] registers = new int[functionTable.length];
+            for (int f = 0; f < functionTable.length; f++) {
+                FunctionInfo function = functionTable[f];
+                if (function != null) {
+                    entry[f] = depths[function.address] >= 0 ? address[function.address] : -1;
+                    registers[f] = function.maxLocals + function.maxStack;
+                }
+            }
+            return new RegisterCode(Arrays.copyOf(out, length), entry, registers);
+        }
+
+        /**
+         * Translates one instruction and returns whether execution can continue with the next.
+         */
+        private boolean translate(int ip, int inst, int producer) {
+            int operand = ip + 1 < code.length ? code[ip + 1] : 0;
+            switch (inst) {
+                case PUSH, LDC -> push(IS_CONSTANT, operand);
+                case LOAD -> push(IN_LOCAL, operand);
+                case STORE -> store(operand, producer);
+                case IADD, ISUB -> {
+                    if (kinds[depth - 1] == IS_CONSTANT) {
+                        int k = values[depth - 1];
+                        depth--;
+                        int a = register(depth - 1);
+                        emitResult(R_IADDI, a, inst == IADD ? k : -k);
+                    } else {
+                        binary(inst == IADD ? R_IADD : R_ISUB);
+                    }
+                }
+                case IMUL -> binary(R_IMUL);
+                case ILT -> binary(R_ILT);
+                case IGTE -> binary(R_IGTE);
+                case JMP -> {
+                    materializeAll();
+                    emitJump(R_JMP, code[ip + 1]);
+                    return false;
+                }
+                case JZ, JNZ -> {
+                    int condition = register(--depth);
+                    materializeAll();
+                    emitJump(inst == JZ ? R_JZ : R_JNZ, condition, code[ip + 1]);
+                }
+                case IINC -> {
+                    materializeLocal(operand);
+                    emit(R_IINC, operand, code[ip + 2]);
+                }
+                case MOVE -> {
+                    materializeLocal(code[ip + 2]);
+                    emit(R_MOVE, code[ip + 2], operand);
+                }
+                case IADD_LLS, ISUB_LLS, IMUL_LLS -> {
+                    materializeLocal(code[ip + 3]);
+                    int op = inst == IADD_LLS ? R_IADD : inst == ISUB_LLS ? R_ISUB : R_IMUL;
+                    emit(op, code[ip + 3], operand, code[ip + 2]);
+                }
+                case ILT_JZ_LL, IGTE_JZ_LL -> {
+                    materializeAll();
+                    emitJump(inst == ILT_JZ_LL ? R_ILT_JZ : R_IGTE_JZ, operand, code[ip + 2], code[ip + 3]);
+                }
+                case ILT_JZ_LC, IGTE_JZ_LC -> {
+                    materializeAll();
+                    emitJump(inst == ILT_JZ_LC ? R_ILT_JZ_C : R_IGTE_JZ_C, operand, code[ip + 2], code[ip + 3]);
+                }
+                case CALL, TAILCALL, SPAWN -> call(ip, inst, operand);
+                case RET -> {
+                    if (depth == 1) {
+                        emit(R_RET, register(0), 1);
+                    } else {
+                        materializeAll();
+                        emit(R_RET, locals, depth);
+                    }
+                    return false;
+                }
+                case PRINT -> emit(R_PRINT, register(--depth));
+                case STOP -> {
+                    emit(R_STOP);
+                    return false;
+                }
+                default -> {
+                    int pops = Verifier.pops(inst);
+                    for (int d = depth - pops; d < depth; d++) {
+                        materialize(d);
+                    }
+                    depth -= pops;
+                    emit(R_STACK, inst, locals + depth, pops);
+                    for (int i = 0; i < Verifier.pushes(inst); i++) {
+                        kinds[depth++] = IN_REGISTER;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void push(int kind, int value) {
+            kinds[depth] = kind;
+            values[depth] = value;
+            depth++;
+        }
+
+        /**
+         * STORE, retargeting {@code producer}, the destination of the instruction that just
+         * computed the top slot, unless a deferred LOAD of the local still needs the old value.
+         */
+        private void store(int local, int producer) {
+            int top = depth - 1;
+            boolean moved = materializeLocal(local, top);
+            if (kinds[top] == IN_REGISTER && producer >= 0 && !moved) {
+                out[producer] = local;
+            } else if (kinds[top] == IS_CONSTANT) {
+                emit(R_CONST, local, values[top]);
+            } else if (kinds[top] != IN_LOCAL || values[top] != local) {
+                emit(R_MOVE, local, register(top));
+            }
+            depth--;
+        }
+
+        private void binary(int op) {
+            int b = register(depth - 1);
+            int a = register(depth - 2);
+            depth--;
+            emitResult(op, a, b);
+        }
+
+        /**
+         * Emits {@code op top a b} where top is the slot below the operands, now the result.
+         */
+        private void emitResult(int op, int a, int b) {
+            int dst = locals + depth - 1;
+            emit(op, dst, a, b);
+            kinds[depth - 1] = IN_REGISTER;
+            lastDestination = length - 3;
+        }
+
+        private void compareAndBranch(boolean jumpUnlessLess, int bytecodeTarget) {
+            int a;
+            int b;
+            int op;
+            if (kinds[depth - 1] == IS_CONSTANT && kinds[depth - 2] != IS_CONSTANT) {
+                b = values[depth - 1];
+                a = register(depth - 2);
+                op = jumpUnlessLess ? R_ILT_JZ_C : R_IGTE_JZ_C;
+            } else {
+                b = register(depth - 1);
+                a = register(depth - 2);
+                op = jumpUnlessLess ? R_ILT_JZ : R_IGTE_JZ;
+            }
+            depth -= 2;
+            materializeAll();
+            emitJump(op, a, b, bytecodeTarget);
+        }
+
+        private void call(int ip, int inst, int callee) {
+            int argCount = functionTable[callee].argCount;
+            for (int d = depth - argCount; d < depth; d++) {
+                materialize(d);
+            }
+            depth -= argCount;
+            boolean tail = inst == TAILCALL && depth == 0;
+            emit(inst == SPAWN ? R_SPAWN : tail ? R_TAILCALL : R_CALL, callee, locals + depth);
+            int next = ip + 2;
+            int results = next < code.length && depths[next] >= 0 ? depths[next] - depth : 0;
+            for (int i = 0; i < results; i++) {
+                kinds[depth++] = IN_REGISTER;
+            }
+        }
+
+        /**
+         * The register holding slot {@code d}, loading a constant into the slot's own register.
+         */
+        private int register(int d) {
+            return switch (kinds[d]) {
+                case IN_LOCAL -> values[d];
+                case IS_CONSTANT -> {
+                    materialize(d);
+                    yield locals + d;
+                }
+                default -> locals + d;
+            };
+        }
+
+        private void materialize(int d) {
+            if (kinds[d] == IN_LOCAL) {
+                emit(R_MOVE, locals + d, values[d]);
+            } else if (kinds[d] == IS_CONSTANT) {
+                emit(R_CONST, locals + d, values[d]);
+            }
+            kinds[d] = IN_REGISTER;
+        }
+
+        private void materializeAll() {
+            for (int d = 0; d < depth; d++) {
+                materialize(d);
+            }
+        }
+
+        private void materializeLocal(int local) {
+            materializeLocal(local, depth);
+        }
+
+        /**
+         * Copies the slots below {@code limit} still reading {@code local} before it is overwritten;
+         * returns whether any was.
+         */
+        private boolean materializeLocal(int local, int limit) {
+            boolean moved = false;
+            for (int d = 0; d < limit; d++) {
+                if (kinds[d] == IN_LOCAL && values[d] == local) {
+                    materialize(d);
+                    moved = true;
+                }
+            }
+            return moved;
+        }
+
+        /**
+         * Emits an instruction whose last operand is a bytecode address, relocated at the end.
+         */
+        private void emitJump(int... instruction) {
+            emit(instruction);
+            if (fixupCount == fixups.length) {
+                fixups = Arrays.copyOf(fixups, fixupCount * 2);
+            }
+            fixups[fixupCount++] = length - 1;
+        }
+
+        private void emit(int... instruction) {
+            if (length + instruction.length > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, length + instruction.length));
+            }
+            System.arraycopy(instruction, 0, out, length, instruction.length);
+            length += instruction.length;
+        }
+
+        private int next(int ip) {
+            InstInfo info = INFO_MAP.get(code[ip]);
+            return ip + 1 + (info == null ? 0 : info.operandCount);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.nlang.vm;
+
+import java.io.PrintStream;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Keeps the last executed instructions with their ip, sp and fp in a fixed size ring and prints
+ * them when the execution fails, e.g. with "Stackoverflow" or "Trying to pop from empty stack".
+ * Nothing is printed while the execution succeeds.
+ */
+public class RingBufferTracer implements ExecutionListener {
+
+    static final int DEFAULT_CAPACITY = 64;
+
+    private final int[] ips;
+    private final int[] sps;
+    private final int[] fps;
+    private final PrintStream err;
+    private int[] code;
+    private long count;
+
+    public RingBufferTracer() {
+        this(DEFAULT_CAPACITY, System.err);
+    }
+
+    public RingBufferTracer(int capacity, PrintStream err) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.ips = new int[capacity];
+        this.sps = new int[capacity];
+        this.fps = new int[capacity];
+        this.err = err;
+    }
+
+    @Override
+    public void start(int[] code, FunctionInfo[] functionTable) {
+        this.code = code;
+    }
+
+    @Override
+    public void instruction(int ip, int opcode, int sp, int fp) {
+        int slot = (int) (count++ % ips.length);
+        ips[slot] = ip;
+        sps[slot] = sp;
+        fps[slot] = fp;
+    }
+
+    @Override
+    public void error(RuntimeException e) {
+        err.print(e.getMessage() + ", last instructions:" + System.lineSeparator() + dump());
+    }
+
+    /**
+     * The retained instructions, oldest first, one {@code #n ip=.. sp=.. fp=.. INST operands} line
+     * each. {@code sp} and {@code fp} are the values before the instruction ran.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        long first = Math.max(0, count - ips.length);
+        for (long n = first; n < count; n++) {
+            int slot = (int) (n % ips.length);
+            int ip = ips[slot];
+            sb.append(String.format("#%d ip=%d sp=%d fp=%d ", n, ip, sps[slot], fps[slot]));
+            InstInfo info = INFO_MAP.get(code[ip]);
+            if (info == null) {
+                sb.append(code[ip]);
+            } else {
+                sb.append(info.name);
+                for (int i = 1; i <= info.operandCount; i++) {
+                    sb.append(' ').append(code[ip + i]);
+                }
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Instructions seen so far, including those that fell out of the ring.
+     */
+    public long count() {
+        return count;
+    }
+}
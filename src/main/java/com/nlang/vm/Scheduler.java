@@ -0,0 +1,228 @@
+package com.nlang.vm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many executions on a few worker threads by time slicing them.
+ * <p>
+ * A worker takes a {@link Process} from the run queue and runs it for one slice of about
+ * {@code slice} instructions, see {@link NVM#execute(long)}. If it yields it goes to the back of
+ * the queue. With {@link Policy#ROUND_ROBIN} every process gets a slice in turn. With
+ * {@link Policy#PRIORITY} the highest priority runnable process runs next, taking turns with the
+ * others of its priority, and lower priorities wait for them. A process stuck in a loop only ever
+ * holds a worker for a slice at a time. Every process accounts the slices, instructions and worker
+ * CPU time it has used.
+ */
+public class Scheduler implements AutoCloseable {
+
+    static final long DEFAULT_SLICE = Long.getLong("nvm.scheduler.slice", 100_000);
+
+    public enum Policy {
+        ROUND_ROBIN,
+        PRIORITY
+    }
+
+    /**
+     * A scheduled execution.
+     */
+    public static final class Process {
+        private final NVM vm;
+        private final int priority;
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+        // run queue order, renewed on every yield
+        private long turn;
+        private volatile boolean cancelled;
+        private volatile long slices;
+        private volatile long instructions;
+        private volatile long cpuNanos;
+
+        private Process(NVM vm, int priority) {
+            this.vm = vm;
+            this.priority = priority;
+        }
+
+        /**
+         * Completes when the execution reaches STOP, exceptionally if it fails or is cancelled.
+         */
+        public CompletableFuture<Void> completion() {
+            return completion;
+        }
+
+        /**
+         * Stops the execution at its next yield or right away if it is waiting for a worker.
+         */
+        public void cancel() {
+            cancelled = true;
+            vm.pause();
+        }
+
+        public int priority() {
+            return priority;
+        }
+
+        public long slices() {
+            return slices;
+        }
+
+        /**
+         * The instructions charged to the execution's budgets, see {@link NVM#execute(long)}.
+         */
+        public long instructions() {
+            return instructions;
+        }
+
+        /**
+         * CPU time of the workers while they ran this execution, or wall time if the JVM cannot
+         * measure thread CPU time.
+         */
+        public long cpuNanos() {
+            return cpuNanos;
+        }
+    }
+
+    private final long slice;
+    private final BlockingQueue<Process> runQueue;
+    private final Thread[] workers;
+    private final AtomicLong turns = new AtomicLong();
+    private final AtomicInteger live = new AtomicInteger();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+    private volatile boolean closed;
+
+    public Scheduler(int workers, Policy policy) {
+        this(workers, policy, DEFAULT_SLICE);
+    }
+
+    public Scheduler(int workers, Policy policy, long slice) {
+        if (workers < 1 || slice < 1) {
+            throw new IllegalArgumentException("Workers and slice must be positive");
+        }
+        this.slice = slice;
+        this.runQueue = policy == Policy.PRIORITY
+                ? new PriorityBlockingQueue<>(64, Comparator.comparingInt((Process p) -> -p.priority)
+                        .thenComparingLong(p -> p.turn))
+                : new LinkedBlockingQueue<>();
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Thread(this::work, "nvm-worker-" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Schedules {@code vm} with priority 0. It must not be executed anywhere else until its
+     * process completes.
+     */
+    public Process submit(NVM vm) {
+        return submit(vm, 0);
+    }
+
+    /**
+     * Schedules {@code vm}; under {@link Policy#PRIORITY} higher priorities run first.
+     */
+    public Process submit(NVM vm, int priority) {
+        if (closed) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+        Process process = new Process(vm, priority);
+        live.incrementAndGet();
+        enqueue(process);
+        return process;
+    }
+
+    /**
+     * Processes submitted and not yet completed.
+     */
+    public int live() {
+        return live.get();
+    }
+
+    private void enqueue(Process process) {
+        process.turn = turns.getAndIncrement();
+        runQueue.add(process);
+    }
+
+    private void work() {
+        while (!closed) {
+            Process process;
+            try {
+                process = runQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (process.cancelled) {
+                finish(process, new CancellationException());
+                continue;
+            }
+            long start = now();
+            try {
+                process.vm.execute(slice);
+            } catch (Throwable e) {
+                // an Error, say a StackOverflowError, fails only the process; the worker lives on
+                account(process, start);
+                finish(process, e);
+                continue;
+            }
+            account(process, start);
+            if (process.cancelled) {
+                finish(process, new CancellationException());
+            } else if (process.vm.isPaused()) {
+                enqueue(process);
+            } else {
+                finish(process, null);
+            }
+        }
+    }
+
+    private void account(Process process, long start) {
+        process.cpuNanos += now() - start;
+        process.instructions += slice - process.vm.remainingBudget();
+        process.slices++;
+    }
+
+    private void finish(Process process, Throwable failure) {
+        live.decrementAndGet();
+        if (failure == null) {
+            process.completion.complete(null);
+        } else {
+            process.completion.completeExceptionally(failure);
+        }
+    }
+
+    private long now() {
+        return cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Stops the workers once their current slices end and cancels every process that has not
+     * completed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Process process; (process = runQueue.poll()) != null; ) {
+            finish(process, new CancellationException());
+        }
+    }
+}
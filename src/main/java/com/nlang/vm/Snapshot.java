@@ -0,0 +1,150 @@
+package com.nlang.vm;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Checkpoint file of a paused execution, written and read through a memory-mapped file. All values
+ * are little-endian and every array is one bulk copy, so saving and restoring take time in
+ * proportion to the live state:
+ * <pre>
+ * header    magic "NVS1", version, code length, code hash
+ * vm        ip, sp, fp, frame top, stack[sp + 1], frames[frame top], heap flags
+ * arrays    see ArrayHeap#save, if the execution has created any
+ * strings   see StringHeap#save, if the execution has created any
+ * </pre>
+ * The program itself is not saved; the hash makes sure a checkpoint is resumed with the program it
+ * was taken from.
+ */
+final class Snapshot {
+
+    static final int MAGIC = 0x3153564E; // "NVS1" read little-endian
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfChar CHAR = ValueLayout.JAVA_CHAR_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private Snapshot() {
+    }
+
+    static void write(NVM vm, int[] code, Path path) throws IOException {
+        long size = HEADER_BYTES + vm.snapshotBytes();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Arena arena = Arena.ofConfined()) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, size, arena);
+            Cursor out = new Cursor(file);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(code.length);
+            out.putInt(Arrays.hashCode(code));
+            vm.save(out);
+            file.force();
+        }
+    }
+
+    static void read(NVM vm, int[] code, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             Arena arena = Arena.ofConfined()) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            if (file.byteSize() < HEADER_BYTES || file.get(INT, 0) != MAGIC) {
+                throw new IOException("Not an NVM checkpoint: " + path);
+            }
+            if (file.get(INT, 4) != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + file.get(INT, 4) + ": " + path);
+            }
+            if (file.get(INT, 8) != code.length || file.get(INT, 12) != Arrays.hashCode(code)) {
+                throw new IOException("Checkpoint of a different program: " + path);
+            }
+            Cursor in = new Cursor(file);
+            in.offset = HEADER_BYTES;
+            vm.restore(in);
+        }
+    }
+
+    /**
+     * Sequential access to the mapped file.
+     */
+    static final class Cursor {
+        private final MemorySegment file;
+        private long offset;
+
+        private Cursor(MemorySegment file) {
+            this.file = file;
+        }
+
+        int getInt() {
+            int value = file.get(INT, offset);
+            offset += 4;
+            return value;
+        }
+
+        void putInt(int value) {
+            file.set(INT, offset, value);
+            offset += 4;
+        }
+
+        long getLong() {
+            long value = file.get(LONG, offset);
+            offset += 8;
+            return value;
+        }
+
+        void putLong(long value) {
+            file.set(LONG, offset, value);
+            offset += 8;
+        }
+
+        void getInts(int[] values, int count) {
+            MemorySegment.copy(file, INT, offset, values, 0, count);
+            offset += count * 4L;
+        }
+
+        void putInts(int[] values, int count) {
+            MemorySegment.copy(values, 0, file, INT, offset, count);
+            offset += count * 4L;
+        }
+
+        void getLongs(long[] values, int count) {
+            MemorySegment.copy(file, LONG, offset, values, 0, count);
+            offset += count * 8L;
+        }
+
+        void putLongs(long[] values, int count) {
+            MemorySegment.copy(values, 0, file, LONG, offset, count);
+            offset += count * 8L;
+        }
+
+        void getChars(char[] values, int count) {
+            MemorySegment.copy(file, CHAR, offset, values, 0, count);
+            offset += count * 2L;
+        }
+
+        void putChars(char[] values, int count) {
+            MemorySegment.copy(values, 0, file, CHAR, offset, count);
+            offset += count * 2L;
+        }
+
+        /**
+         * Copies {@code bytes} bytes of native ints, converting to little-endian if needed.
+         */
+        void getSegment(MemorySegment target, long bytes) {
+            MemorySegment.copy(file, INT, offset, target, ValueLayout.JAVA_INT, 0, bytes / 4);
+            offset += bytes;
+        }
+
+        void putSegment(MemorySegment source, long bytes) {
+            MemorySegment.copy(source, ValueLayout.JAVA_INT, 0, file, INT, offset, bytes / 4);
+            offset += bytes;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.nlang.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A SPAWNed call running as a fork-join task, see {@link NVM#spawn}.
+ * <p>
+ * The call runs in a child {@link NVM} over the same program, with its own stacks and heaps, so
+ * only ints cross: the arguments and the result. What the child prints is kept and replayed into
+ * the parent's sink when the parent JOINs, so a program prints the same whatever the scheduling.
+ * <p>
+ * A SPAWN beyond the parent's spawnDepth runs as a call in the parent instead; its task is never
+ * forked, it only keeps what the call prints and is completed with the result when the call
+ * returns, so JOIN does the same for both.
+ */
+final class SpawnTask extends RecursiveTask<Integer> implements OutputSink {
+
+    private final NVM parent;
+    private final int function;
+    private final int[] args;
+    private final int depth;
+    private long spawnedTasks;
+    // Integer, Float or String per printed value
+    private final List<Object> printed = new ArrayList<>();
+
+    SpawnTask(NVM parent, int function, int[] args, int depth) {
+        this.parent = parent;
+        this.function = function;
+        this.args = args;
+        this.depth = depth;
+    }
+
+    @Override
+    protected Integer compute() {
+        NVM child = parent.child(this, depth);
+        int result = child.runSpawned(function, args);
+        spawnedTasks = child.spawnedTasks();
+        return result;
+    }
+
+    /**
+     * Whether the call runs in the parent, see {@link NVM#spawn}.
+     */
+    boolean runsAsCall() {
+        return args == null;
+    }
+
+    /**
+     * Tasks the call forked in turn; call after the task completed.
+     */
+    long spawnedTasks() {
+        return spawnedTasks;
+    }
+
+    /**
+     * Prints what the child printed to {@code out}; call after the task completed.
+     */
+    void replay(OutputSink out) {
+        for (Object value : printed) {
+            if (value instanceof Integer i) {
+                out.printInt(i);
+            } else if (value instanceof Float f) {
+                out.printFloat(f);
+            } else {
+                out.printString((String) value);
+            }
+        }
+    }
+
+    @Override
+    public void printInt(int value) {
+        printed.add(value);
+    }
+
+    @Override
+    public void printFloat(float value) {
+        printed.add(value);
+    }
+
+    @Override
+    public void printString(String value) {
+        printed.add(value);
+    }
+
+    @Override
+    public void flush() {
+    }
+}
@@ -0,0 +1,83 @@
+package com.nlang.vm;
+
+/**
+ * Recycles the arrays NVM operand and frame stacks live in, shared by all executions.
+ * <p>
+ * Arrays come in power of two sizes. A stack that outgrows its array takes the next size from the
+ * pool and hands the old one back, and a finished execution hands back what it grew, so a
+ * sequence of deep executions allocates its big stacks once. Arrays are not cleared between uses,
+ * so an execution must never read a slot it has not written: pushFrame clears a frame's locals
+ * past its arguments, unverified code has its pops checked against sp and its local operands
+ * against the frame, see NVM.local, and the verifier proves the same for verified code. That keeps
+ * one execution from seeing what another left behind. At most {@code capacity} ints are kept.
+ */
+final class StackPool {
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("nvm.stack.pool", 1 << 22);
+    static final StackPool SHARED = new StackPool(DEFAULT_CAPACITY);
+
+    private static final int PER_SIZE = 4;
+    private static final int MAX_CLASS = 30;
+
+    private final long capacity;
+    private final int[][][] free = new int[MAX_CLASS + 1][PER_SIZE][];
+    private final int[] counts = new int[MAX_CLASS + 1];
+    private long pooled;
+    private long hits;
+    private long misses;
+
+    StackPool(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * An array of at least {@code size} ints with undefined contents.
+     */
+    int[] take(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass > MAX_CLASS) {
+            return new int[size];
+        }
+        synchronized (this) {
+            if (counts[sizeClass] > 0) {
+                int[] array = free[sizeClass][--counts[sizeClass]];
+                free[sizeClass][counts[sizeClass]] = null;
+                pooled -= array.length;
+                hits++;
+                return array;
+            }
+            misses++;
+        }
+        return new int[1 << sizeClass];
+    }
+
+    /**
+     * Keeps {@code array} for a later take, unless the pool is full. The caller must not use it
+     * any more.
+     */
+    synchronized void give(int[] array) {
+        int sizeClass = sizeClass(array.length);
+        if (sizeClass > MAX_CLASS || array.length != 1 << sizeClass || counts[sizeClass] == PER_SIZE
+                || pooled + array.length > capacity) {
+            return;
+        }
+        free[sizeClass][counts[sizeClass]++] = array;
+        pooled += array.length;
+    }
+
+    private static int sizeClass(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    synchronized long pooled() {
+        return pooled;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+}
@@ -0,0 +1,343 @@
+package com.nlang.vm;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The strings an execution builds, as slices of one growing char buffer.
+ * <p>
+ * A string value on the stack is either a constant pool index, which is never negative, or a
+ * negative handle into this heap: the complement of the slot in the handle table with the slot's
+ * generation in the high bits, like {@link ArrayHeap} handles. Strings are immutable, so a
+ * substring is a new slice of the same chars, concatenating two adjacent slices copies nothing and a
+ * concatenation whose left side ends at the top of the buffer appends the right side in place. A
+ * loop that keeps appending to its latest result copies every char once and creates no
+ * java.lang.String.
+ * <p>
+ * {@link #collect} frees the strings no stack slot, local or array element refers to and slides the
+ * chars still in use, shared slices included, to the start of the buffer.
+ */
+final class StringHeap {
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("nvm.strings.capacity", 1 << 16);
+
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int MAX_GENERATION = (1 << (31 - SLOT_BITS)) - 1;
+
+    private final String[] constants;
+    private char[] chars;
+    private int top;
+    private int collectAt;
+
+    // per slot: first char, length (-1 when free) and current generation
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private int[] generations = new int[16];
+    private int[] marks = new int[16];
+    private int slots;
+    private int[] free = new int[16];
+    private int freeTop;
+    private int epoch;
+    private int[] pending = new int[16];
+    private int pendingTop;
+
+    private long collections;
+    private long reclaimed;
+
+    StringHeap(int capacity, String[] constants) {
+        this.constants = constants;
+        this.chars = new char[Math.max(capacity, 16)];
+        this.collectAt = chars.length;
+    }
+
+    /**
+     * True if making a string of {@code length} new chars should collect first.
+     */
+    boolean shouldCollect(int length) {
+        return top + length > collectAt || (freeTop == 0 && slots == SLOT_MASK + 1);
+    }
+
+    int length(int s) {
+        return s >= 0 ? constant(s).length() : lengths[slot(s)];
+    }
+
+    int concat(int a, int b) {
+        int lengthA = length(a);
+        int lengthB = length(b);
+        if (a < 0 && b < 0 && offsets[slot(a)] + lengthA == offsets[slot(b)]) {
+            return allocate(offsets[slot(a)], lengthA + lengthB);
+        }
+        if (a < 0 && offsets[slot(a)] + lengthA == top) {
+            int offset = offsets[slot(a)];
+            append(b, 0, lengthB);
+            return allocate(offset, lengthA + lengthB);
+        }
+        int offset = top;
+        append(a, 0, lengthA);
+        append(b, 0, lengthB);
+        return allocate(offset, lengthA + lengthB);
+    }
+
+    int substring(int s, int begin, int end) {
+        Objects.checkFromToIndex(begin, end, length(s));
+        if (s < 0) {
+            return allocate(offsets[slot(s)] + begin, end - begin);
+        }
+        int offset = top;
+        append(s, begin, end);
+        return allocate(offset, end - begin);
+    }
+
+    /**
+     * -1, 0 or 1 as {@code a} sorts before, equal to or after {@code b}, comparing chars like
+     * {@link String#compareTo}.
+     */
+    int compare(int a, int b) {
+        int lengthA = length(a);
+        int lengthB = length(b);
+        for (int i = 0, n = Math.min(lengthA, lengthB); i < n; i++) {
+            char x = charAt(a, i);
+            char y = charAt(b, i);
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return Integer.signum(lengthA - lengthB);
+    }
+
+    int fromInt(int value) {
+        ensure(11);
+        int offset = top;
+        long v = value;
+        if (v < 0) {
+            chars[top++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long d = v; d >= 10; d /= 10) {
+            digits++;
+        }
+        top += digits;
+        for (int at = top; at > top - digits; v /= 10) {
+            chars[--at] = (char) ('0' + v % 10);
+        }
+        return allocate(offset, top - offset);
+    }
+
+    void print(int s, OutputSink out) {
+        if (s >= 0) {
+            out.printString(constant(s));
+        } else {
+            int slot = slot(s);
+            out.printChars(chars, offsets[slot], lengths[slot]);
+        }
+    }
+
+    String toString(int s) {
+        if (s >= 0) {
+            return constant(s);
+        }
+        int slot = slot(s);
+        return new String(chars, offsets[slot], lengths[slot]);
+    }
+
+    private char charAt(int s, int index) {
+        return s >= 0 ? constants[s].charAt(index) : chars[offsets[~s & SLOT_MASK] + index];
+    }
+
+    private String constant(int index) {
+        if (index >= constants.length || constants[index] == null) {
+            throw new IllegalArgumentException("Invalid string: " + index);
+        }
+        return constants[index];
+    }
+
+    private void append(int s, int begin, int end) {
+        ensure(end - begin);
+        if (s >= 0) {
+            constants[s].getChars(begin, end, chars, top);
+        } else {
+            System.arraycopy(chars, offsets[slot(s)] + begin, chars, top, end - begin);
+        }
+        top += end - begin;
+    }
+
+    private void ensure(int length) {
+        if (top + length > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, top + length));
+        }
+    }
+
+    private int allocate(int offset, int length) {
+        int slot;
+        if (freeTop > 0) {
+            slot = free[--freeTop];
+        } else if (slots <= SLOT_MASK) {
+            slot = slots++;
+            if (slot == offsets.length) {
+                int size = slot * 2;
+                offsets = Arrays.copyOf(offsets, size);
+                lengths = Arrays.copyOf(lengths, size);
+                generations = Arrays.copyOf(generations, size);
+                marks = Arrays.copyOf(marks, size);
+            }
+            generations[slot] = 1;
+        } else {
+            throw new UnsupportedOperationException("Too many live strings");
+        }
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        return ~(generations[slot] << SLOT_BITS | slot);
+    }
+
+    private int slot(int handle) {
+        int slot = ~handle & SLOT_MASK;
+        if (!isLive(handle)) {
+            throw new IllegalArgumentException("Invalid string: " + handle);
+        }
+        return slot;
+    }
+
+    private boolean isLive(int value) {
+        int slot = ~value & SLOT_MASK;
+        return value < 0 && slot < slots && lengths[slot] >= 0 && generations[slot] == ~value >>> SLOT_BITS;
+    }
+
+    /**
+     * Frees every string not referred to from {@code stack[0..sp]}, {@code frames[0..frameTop)}, the
+     * elements of {@code arrays} or {@code keep}, and compacts the rest. The next collection is due
+     * once the buffer has doubled its live size.
+     */
+    void collect(int[] stack, int sp, int[] frames, int frameTop, ArrayHeap arrays, int... keep) {
+        collections++;
+        epoch++;
+        pendingTop = 0;
+        for (int i = 0; i <= sp; i++) {
+            mark(stack[i]);
+        }
+        for (int i = 0; i < frameTop; i++) {
+            mark(frames[i]);
+        }
+        if (arrays != null) {
+            for (long e = 0, used = arrays.used(); e < used; e++) {
+                mark(arrays.element(e));
+            }
+        }
+        for (int value : keep) {
+            mark(value);
+        }
+
+        for (int slot = 0; slot < slots; slot++) {
+            if (lengths[slot] >= 0 && marks[slot] != epoch) {
+                lengths[slot] = -1;
+                generations[slot] = generations[slot] == MAX_GENERATION ? 1 : generations[slot] + 1;
+                if (freeTop == free.length) {
+                    free = Arrays.copyOf(free, freeTop * 2);
+                }
+                free[freeTop++] = slot;
+                reclaimed++;
+            }
+        }
+
+        // live slices by offset; overlapping slices form one run that moves as a whole
+        long[] live = new long[pendingTop];
+        for (int i = 0; i < pendingTop; i++) {
+            live[i] = (long) offsets[pending[i]] << SLOT_BITS | pending[i];
+        }
+        Arrays.sort(live);
+        int runStart = 0;
+        int runEnd = 0;
+        int runTarget = 0;
+        for (long entry : live) {
+            int slot = (int) (entry & SLOT_MASK);
+            int offset = offsets[slot];
+            if (offset >= runEnd) {
+                if (runEnd > runStart) {
+                    System.arraycopy(chars, runStart, chars, runTarget, runEnd - runStart);
+                    runTarget += runEnd - runStart;
+                }
+                runStart = offset;
+                runEnd = offset;
+            }
+            runEnd = Math.max(runEnd, offset + lengths[slot]);
+            offsets[slot] = runTarget + offset - runStart;
+        }
+        if (runEnd > runStart) {
+            System.arraycopy(chars, runStart, chars, runTarget, runEnd - runStart);
+            runTarget += runEnd - runStart;
+        }
+        top = runTarget;
+        collectAt = Math.max(chars.length, top * 2);
+    }
+
+    private void mark(int value) {
+        if (isLive(value) && marks[~value & SLOT_MASK] != epoch) {
+            marks[~value & SLOT_MASK] = epoch;
+            if (pendingTop == pending.length) {
+                pending = Arrays.copyOf(pending, pendingTop * 2);
+            }
+            pending[pendingTop++] = ~value & SLOT_MASK;
+        }
+    }
+
+    long snapshotBytes() {
+        return 32 + top * 2L + slots * 12L + freeTop * 4L;
+    }
+
+    /**
+     * Writes the chars in use and the handle table, see {@link Snapshot}.
+     */
+    void save(Snapshot.Cursor out) {
+        out.putInt(top);
+        out.putInt(collectAt);
+        out.putLong(collections);
+        out.putLong(reclaimed);
+        out.putInt(slots);
+        out.putInt(freeTop);
+        out.putChars(chars, top);
+        out.putInts(offsets, slots);
+        out.putInts(lengths, slots);
+        out.putInts(generations, slots);
+        out.putInts(free, freeTop);
+    }
+
+    static StringHeap restore(Snapshot.Cursor in, int capacity, String[] constants) {
+        int top = in.getInt();
+        StringHeap heap = new StringHeap(Math.max(capacity, top), constants);
+        heap.top = top;
+        heap.collectAt = in.getInt();
+        heap.collections = in.getLong();
+        heap.reclaimed = in.getLong();
+        heap.slots = in.getInt();
+        heap.freeTop = in.getInt();
+        int size = Math.max(16, Integer.highestOneBit(Math.max(heap.slots, heap.freeTop)) * 2);
+        heap.offsets = new int[size];
+        heap.lengths = new int[size];
+        heap.generations = new int[size];
+        heap.marks = new int[size];
+        heap.free = new int[size];
+        in.getChars(heap.chars, top);
+        in.getInts(heap.offsets, heap.slots);
+        in.getInts(heap.lengths, heap.slots);
+        in.getInts(heap.generations, heap.slots);
+        in.getInts(heap.free, heap.freeTop);
+        return heap;
+    }
+
+    int used() {
+        return top;
+    }
+
+    long collections() {
+        return collections;
+    }
+
+    long reclaimed() {
+        return reclaimed;
+    }
+
+    int liveStrings() {
+        return slots - freeTop;
+    }
+}
@@ -0,0 +1,944 @@
+package com.nlang.vm;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Pre-decoded form of the bytecode used by {@link NVM.Engine#THREADED}.
+ * <p>
+ * The code is decoded once into a handler array indexed by the original address, so jump targets
+ * and return addresses stay valid. Every handler has its operands and its fall-through address
+ * resolved up front and returns the address of the next instruction, or -1 on STOP or a pause.
+ * <p>
+ * Code that passed the {@link Verifier} gets unchecked handlers for the common stack instructions,
+ * which access the stack directly instead of through the bounds-checked push and pop.
+ */
+final class ThreadedCode {
+
+    abstract static class Op {
+        abstract int execute(NVM vm);
+    }
+
+    private ThreadedCode() {
+    }
+
+    static Op[] decode(int[] code) {
+        return decode(code, false);
+    }
+
+    static Op[] decode(int[] code, boolean verified) {
+        Op[] ops = new Op[code.length];
+        int ip = 0;
+        while (ip < code.length) {
+            int inst = code[ip];
+            InstInfo info = INFO_MAP.get(inst);
+            int length = info == null ? 1 : 1 + info.operandCount;
+            Op op = verified ? decodeUnchecked(inst, code, ip, ip + length) : null;
+            ops[ip] = op != null ? op : decode(inst, code, ip, ip + length);
+            if (PeepholeOptimizer.isJump(inst) && operand(code, ip, PeepholeOptimizer.jumpOperand(inst)) <= ip) {
+                ops[ip] = new BackEdge(ops[ip], operand(code, ip, PeepholeOptimizer.jumpOperand(inst)), ip);
+            }
+            ip += length;
+        }
+        return ops;
+    }
+
+    private static Op decodeUnchecked(int inst, int[] code, int ip, int next) {
+        int operand = operand(code, ip, 1);
+        return switch (inst) {
+            case PUSH, LDC -> new UncheckedPush(operand, next);
+            case LOAD -> new UncheckedLoad(operand, next);
+            case STORE -> new UncheckedStore(operand, next);
+            case IADD -> new UncheckedIAdd(next);
+            case ISUB -> new UncheckedISub(next);
+            case IMUL -> new UncheckedIMul(next);
+            case ILT -> new UncheckedILt(next);
+            case IGTE -> new UncheckedIGte(next);
+            case JZ -> new UncheckedJz(operand, next);
+            case JNZ -> new UncheckedJnz(operand, next);
+            default -> null;
+        };
+    }
+
+    private static Op decode(int inst, int[] code, int ip, int next) {
+        int operand = operand(code, ip, 1);
+        return switch (inst) {
+            case STOP -> new Stop();
+            case PUSH, LDC -> new Push(operand, next);
+            case IADD -> new IAdd(next);
+            case ISUB -> new ISub(next);
+            case IMUL -> new IMul(next);
+            case IDIV -> new IDiv(next);
+            case FADD -> new FAdd(next);
+            case FSUB -> new FSub(next);
+            case FMUL -> new FMul(next);
+            case FDIV -> new FDiv(next);
+            case ILT -> new ILt(next);
+            case IGTE -> new IGte(next);
+            case JZ -> new Jz(operand, next);
+            case JNZ -> new Jnz(operand, next);
+            case JMP -> new Jmp(operand);
+            case LOAD -> new Load(operand, next);
+            case STORE -> new Store(operand, next);
+            case CALL -> new Call(operand, next);
+            case TAILCALL -> new TailCall(operand, next);
+            case SPAWN -> new Spawn(operand, next);
+            case JOIN -> new Join(next);
+            case RET -> new Ret();
+            case PRINT -> new Print(next);
+            case FPRINT -> new FPrint(next);
+            case SPRINT -> new SPrint(next);
+            case NEW_ARRAY -> new NewArray(next);
+            case ALOAD -> new ALoad(next);
+            case ASTORE, IASTORE -> new AStore(next);
+            case FASTORE -> new FAStore(next);
+            case SCONCAT, SLEN, SSUB, SCMP, ITOS -> new StringOp(inst, next);
+            case IASUM, FASUM, IADOT, FADOT, IAADD, IAMUL, FAADD, FAMUL, AFILL -> new Bulk(inst, next);
+            case IINC -> new IInc(operand, operand(code, ip, 2), next);
+            case MOVE -> new Move(operand, operand(code, ip, 2), next);
+            case IADD_LLS -> new IAddLocals(operand, operand(code, ip, 2), operand(code, ip, 3), next);
+            case ISUB_LLS -> new ISubLocals(operand, operand(code, ip, 2), operand(code, ip, 3), next);
+            case IMUL_LLS -> new IMulLocals(operand, operand(code, ip, 2), operand(code, ip, 3), next);
+            case ILT_JZ_LL -> new ILtJzLocals(operand, operand(code, ip, 2), operand(code, ip, 3), next);
+            case ILT_JZ_LC -> new ILtJzConst(operand, operand(code, ip, 2), operand(code, ip, 3), next);
+            case IGTE_JZ_LL -> new IGteJzLocals(operand, operand(code, ip, 2), operand(code, ip, 3), next);
+            case IGTE_JZ_LC -> new IGteJzConst(operand, operand(code, ip, 2), operand(code, ip, 3), next);
+            default -> new Unsupported(inst);
+        };
+    }
+
+    private static int operand(int[] code, int ip, int n) {
+        return ip + n < code.length ? code[ip + n] : 0;
+    }
+
+    private static final class Stop extends Op {
+        @Override
+        int execute(NVM vm) {
+            return -1;
+        }
+    }
+
+    private static final class Push extends Op {
+        private final int value;
+        private final int next;
+
+        Push(int value, int next) {
+            this.value = value;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.push(value);
+            return next;
+        }
+    }
+
+    private static final class IAdd extends Op {
+        private final int next;
+
+        IAdd(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int first = vm.pop();
+            int second = vm.pop();
+            vm.push(second + first);
+            return next;
+        }
+    }
+
+    private static final class ISub extends Op {
+        private final int next;
+
+        ISub(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int first = vm.pop();
+            int second = vm.pop();
+            vm.push(second - first);
+            return next;
+        }
+    }
+
+    private static final class IMul extends Op {
+        private final int next;
+
+        IMul(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int first = vm.pop();
+            int second = vm.pop();
+            vm.push(second * first);
+            return next;
+        }
+    }
+
+    private static final class IDiv extends Op {
+        private final int next;
+
+        IDiv(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int first = vm.pop();
+            int second = vm.pop();
+            vm.push(second / first);
+            return next;
+        }
+    }
+
+    private static final class FAdd extends Op {
+        private final int next;
+
+        FAdd(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            float first = vm.popFloat();
+            float second = vm.popFloat();
+            vm.pushFloat(second + first);
+            return next;
+        }
+    }
+
+    private static final class FSub extends Op {
+        private final int next;
+
+        FSub(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            float first = vm.popFloat();
+            float second = vm.popFloat();
+            vm.pushFloat(second - first);
+            return next;
+        }
+    }
+
+    private static final class FMul extends Op {
+        private final int next;
+
+        FMul(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            float first = vm.popFloat();
+            float second = vm.popFloat();
+            vm.pushFloat(second * first);
+            return next;
+        }
+    }
+
+    private static final class FDiv extends Op {
+        private final int next;
+
+        FDiv(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            float first = vm.popFloat();
+            float second = vm.popFloat();
+            vm.pushFloat(second / first);
+            return next;
+        }
+    }
+
+    private static final class ILt extends Op {
+        private final int next;
+
+        ILt(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int first = vm.pop();
+            int second = vm.pop();
+            vm.push(second < first ? 1 : 0);
+            return next;
+        }
+    }
+
+    private static final class IGte extends Op {
+        private final int next;
+
+        IGte(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int first = vm.pop();
+            int second = vm.pop();
+            vm.push(second >= first ? 1 : 0);
+            return next;
+        }
+    }
+
+    private static final class Jz extends Op {
+        private final int target;
+        private final int next;
+
+        Jz(int target, int next) {
+            this.target = target;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return vm.pop() == 0 ? target : next;
+        }
+    }
+
+    private static final class Jnz extends Op {
+        private final int target;
+        private final int next;
+
+        Jnz(int target, int next) {
+            this.target = target;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return vm.pop() == 1 ? target : next;
+        }
+    }
+
+    private static final class Jmp extends Op {
+        private final int target;
+
+        Jmp(int target) {
+            this.target = target;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return target;
+        }
+    }
+
+    /**
+     * A jump to an earlier address, which tells {@link NVM#backEdge} when it is taken.
+     */
+    private static final class BackEdge extends Op {
+        private final Op jump;
+        private final int target;
+        private final int ip;
+
+        BackEdge(Op jump, int target, int ip) {
+            this.jump = jump;
+            this.target = target;
+            this.ip = ip;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int next = jump.execute(vm);
+            return next == target ? vm.backEdge(target, ip) : next;
+        }
+    }
+
+    private static final class Load extends Op {
+        private final int index;
+        private final int next;
+
+        Load(int index, int next) {
+            this.index = index;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.push(vm.frames[vm.local(index)]);
+            return next;
+        }
+    }
+
+    private static final class Store extends Op {
+        private final int index;
+        private final int next;
+
+        Store(int index, int next) {
+            this.index = index;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.frames[vm.local(index)] = vm.pop();
+            return next;
+        }
+    }
+
+    private static final class Spawn extends Op {
+        private final int function;
+        private final int next;
+
+        Spawn(int function, int next) {
+            this.function = function;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return vm.spawn(function, next);
+        }
+    }
+
+    private static final class Join extends Op {
+        private final int next;
+
+        Join(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.push(vm.join(vm.pop()));
+            return next;
+        }
+    }
+
+    private static final class Call extends Op {
+        private final int function;
+        private final int next;
+
+        Call(int function, int next) {
+            this.function = function;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return vm.call(function, next);
+        }
+    }
+
+    private static final class TailCall extends Op {
+        private final int function;
+        private final int ret;
+
+        TailCall(int function, int ret) {
+            this.function = function;
+            this.ret = ret;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return vm.tailCall(function, ret);
+        }
+    }
+
+    private static final class Ret extends Op {
+        @Override
+        int execute(NVM vm) {
+            return vm.ret();
+        }
+    }
+
+    private static final class Print extends Op {
+        private final int next;
+
+        Print(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.print(vm.pop());
+            return next;
+        }
+    }
+
+    private static final class FPrint extends Op {
+        private final int next;
+
+        FPrint(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.printFloat(vm.popFloat());
+            return next;
+        }
+    }
+
+    private static final class SPrint extends Op {
+        private final int next;
+
+        SPrint(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.printString(vm.pop());
+            return next;
+        }
+    }
+
+    private static final class NewArray extends Op {
+        private final int next;
+
+        NewArray(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.push(vm.newArray(vm.pop()));
+            return next;
+        }
+    }
+
+    private static final class ALoad extends Op {
+        private final int next;
+
+        ALoad(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int index = vm.pop();
+            vm.push(vm.heap().load(vm.pop(), index));
+            return next;
+        }
+    }
+
+    private static final class AStore extends Op {
+        private final int next;
+
+        AStore(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int value = vm.pop();
+            int index = vm.pop();
+            vm.heap().store(vm.pop(), index, value);
+            return next;
+        }
+    }
+
+    private static final class FAStore extends Op {
+        private final int next;
+
+        FAStore(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            float value = vm.popFloat();
+            int index = vm.pop();
+            vm.heap().storeFloat(vm.pop(), index, value);
+            return next;
+        }
+    }
+
+    /**
+     * The bulk array instructions, which each run a whole loop, share one handler.
+     */
+    private static final class Bulk extends Op {
+        private final int inst;
+        private final int next;
+
+        Bulk(int inst, int next) {
+            this.inst = inst;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.bulk(inst);
+            return next;
+        }
+    }
+
+    private static final class StringOp extends Op {
+        private final int inst;
+        private final int next;
+
+        StringOp(int inst, int next) {
+            this.inst = inst;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.stringOp(inst);
+            return next;
+        }
+    }
+
+    private static final class IInc extends Op {
+        private final int index;
+        private final int delta;
+        private final int next;
+
+        IInc(int index, int delta, int next) {
+            this.index = index;
+            this.delta = delta;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.frames[vm.local(index)] += delta;
+            return next;
+        }
+    }
+
+    private static final class Move extends Op {
+        private final int from;
+        private final int to;
+        private final int next;
+
+        Move(int from, int to, int next) {
+            this.from = from;
+            this.to = to;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] frames = vm.frames;
+            frames[vm.local(to)] = frames[vm.local(from)];
+            return next;
+        }
+    }
+
+    private static final class IAddLocals extends Op {
+        private final int a;
+        private final int b;
+        private final int dst;
+        private final int next;
+
+        IAddLocals(int a, int b, int dst, int next) {
+            this.a = a;
+            this.b = b;
+            this.dst = dst;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] frames = vm.frames;
+            frames[vm.local(dst)] = frames[vm.local(a)] + frames[vm.local(b)];
+            return next;
+        }
+    }
+
+    private static final class ISubLocals extends Op {
+        private final int a;
+        private final int b;
+        private final int dst;
+        private final int next;
+
+        ISubLocals(int a, int b, int dst, int next) {
+            this.a = a;
+            this.b = b;
+            this.dst = dst;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] frames = vm.frames;
+            frames[vm.local(dst)] = frames[vm.local(a)] - frames[vm.local(b)];
+            return next;
+        }
+    }
+
+    private static final class IMulLocals extends Op {
+        private final int a;
+        private final int b;
+        private final int dst;
+        private final int next;
+
+        IMulLocals(int a, int b, int dst, int next) {
+            this.a = a;
+            this.b = b;
+            this.dst = dst;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] frames = vm.frames;
+            frames[vm.local(dst)] = frames[vm.local(a)] * frames[vm.local(b)];
+            return next;
+        }
+    }
+
+    private static final class ILtJzLocals extends Op {
+        private final int a;
+        private final int b;
+        private final int target;
+        private final int next;
+
+        ILtJzLocals(int a, int b, int target, int next) {
+            this.a = a;
+            this.b = b;
+            this.target = target;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] frames = vm.frames;
+            return frames[vm.local(a)] < frames[vm.local(b)] ? next : target;
+        }
+    }
+
+    private static final class ILtJzConst extends Op {
+        private final int a;
+        private final int constant;
+        private final int target;
+        private final int next;
+
+        ILtJzConst(int a, int constant, int target, int next) {
+            this.a = a;
+            this.constant = constant;
+            this.target = target;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return vm.frames[vm.local(a)] < constant ? next : target;
+        }
+    }
+
+    private static final class IGteJzLocals extends Op {
+        private final int a;
+        private final int b;
+        private final int target;
+        private final int next;
+
+        IGteJzLocals(int a, int b, int target, int next) {
+            this.a = a;
+            this.b = b;
+            this.target = target;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] frames = vm.frames;
+            return frames[vm.local(a)] >= frames[vm.local(b)] ? next : target;
+        }
+    }
+
+    private static final class IGteJzConst extends Op {
+        private final int a;
+        private final int constant;
+        private final int target;
+        private final int next;
+
+        IGteJzConst(int a, int constant, int target, int next) {
+            this.a = a;
+            this.constant = constant;
+            this.target = target;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return vm.frames[vm.local(a)] >= constant ? next : target;
+        }
+    }
+
+    private static final class Unsupported extends Op {
+        private final int inst;
+
+        Unsupported(int inst) {
+            this.inst = inst;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            throw NVM.unsupported(inst);
+        }
+    }
+
+    private static final class UncheckedPush extends Op {
+        private final int value;
+        private final int next;
+
+        UncheckedPush(int value, int next) {
+            this.value = value;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.stack[++vm.sp] = value;
+            return next;
+        }
+    }
+
+    private static final class UncheckedLoad extends Op {
+        private final int index;
+        private final int next;
+
+        UncheckedLoad(int index, int next) {
+            this.index = index;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.stack[++vm.sp] = vm.frames[vm.fp + index];
+            return next;
+        }
+    }
+
+    private static final class UncheckedStore extends Op {
+        private final int index;
+        private final int next;
+
+        UncheckedStore(int index, int next) {
+            this.index = index;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            vm.frames[vm.fp + index] = vm.stack[vm.sp--];
+            return next;
+        }
+    }
+
+    private static final class UncheckedIAdd extends Op {
+        private final int next;
+
+        UncheckedIAdd(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] stack = vm.stack;
+            int sp = --vm.sp;
+            stack[sp] = stack[sp] + stack[sp + 1];
+            return next;
+        }
+    }
+
+    private static final class UncheckedISub extends Op {
+        private final int next;
+
+        UncheckedISub(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] stack = vm.stack;
+            int sp = --vm.sp;
+            stack[sp] = stack[sp] - stack[sp + 1];
+            return next;
+        }
+    }
+
+    private static final class UncheckedIMul extends Op {
+        private final int next;
+
+        UncheckedIMul(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] stack = vm.stack;
+            int sp = --vm.sp;
+            stack[sp] = stack[sp] * stack[sp + 1];
+            return next;
+        }
+    }
+
+    private static final class UncheckedILt extends Op {
+        private final int next;
+
+        UncheckedILt(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] stack = vm.stack;
+            int sp = --vm.sp;
+            stack[sp] = stack[sp] < stack[sp + 1] ? 1 : 0;
+            return next;
+        }
+    }
+
+    private static final class UncheckedIGte extends Op {
+        private final int next;
+
+        UncheckedIGte(int next) {
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            int[] stack = vm.stack;
+            int sp = --vm.sp;
+            stack[sp] = stack[sp] >= stack[sp + 1] ? 1 : 0;
+            return next;
+        }
+    }
+
+    private static final class UncheckedJz extends Op {
+        private final int target;
+        private final int next;
+
+        UncheckedJz(int target, int next) {
+            this.target = target;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return vm.stack[vm.sp--] == 0 ? target : next;
+        }
+    }
+
+    private static final class UncheckedJnz extends Op {
+        private final int target;
+        private final int next;
+
+        UncheckedJnz(int target, int next) {
+            this.target = target;
+            this.next = next;
+        }
+
+        @Override
+        int execute(NVM vm) {
+            return vm.stack[vm.sp--] == 1 ? target : next;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.nlang.vm;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+/**
+ * {@link ArrayKernels} on the preferred vector shape of the CPU, with a scalar tail. Only loaded
+ * when jdk.incubator.vector is in the boot layer.
+ */
+final class VectorKernels extends ArrayKernels {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+
+    @Override
+    int intSum(MemorySegment m, long from, int length) {
+        IntVector acc = IntVector.zero(INTS);
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            acc = acc.add(IntVector.fromMemorySegment(INTS, m, (from + i) * 4, ORDER));
+        }
+        int sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += m.getAtIndex(JAVA_INT, from + i);
+        }
+        return sum;
+    }
+
+    @Override
+    float floatSum(MemorySegment m, long from, int length) {
+        FloatVector acc = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            acc = acc.add(FloatVector.fromMemorySegment(FLOATS, m, (from + i) * 4, ORDER));
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += m.getAtIndex(JAVA_FLOAT, from + i);
+        }
+        return sum;
+    }
+
+    @Override
+    int intDot(MemorySegment m, long a, long b, int length) {
+        IntVector acc = IntVector.zero(INTS);
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector x = IntVector.fromMemorySegment(INTS, m, (a + i) * 4, ORDER);
+            IntVector y = IntVector.fromMemorySegment(INTS, m, (b + i) * 4, ORDER);
+            acc = acc.add(x.mul(y));
+        }
+        int sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += m.getAtIndex(JAVA_INT, a + i) * m.getAtIndex(JAVA_INT, b + i);
+        }
+        return sum;
+    }
+
+    @Override
+    float floatDot(MemorySegment m, long a, long b, int length) {
+        FloatVector acc = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            FloatVector x = FloatVector.fromMemorySegment(FLOATS, m, (a + i) * 4, ORDER);
+            FloatVector y = FloatVector.fromMemorySegment(FLOATS, m, (b + i) * 4, ORDER);
+            acc = x.fma(y, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += m.getAtIndex(JAVA_FLOAT, a + i) * m.getAtIndex(JAVA_FLOAT, b + i);
+        }
+        return sum;
+    }
+
+    @Override
+    void intAdd(MemorySegment m, long dst, long a, long b, int length) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector x = IntVector.fromMemorySegment(INTS, m, (a + i) * 4, ORDER);
+            IntVector y = IntVector.fromMemorySegment(INTS, m, (b + i) * 4, ORDER);
+            x.add(y).intoMemorySegment(m, (dst + i) * 4, ORDER);
+        }
+        super.intAdd(m, dst + i, a + i, b + i, length - i);
+    }
+
+    @Override
+    void intMul(MemorySegment m, long dst, long a, long b, int length) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            IntVector x = IntVector.fromMemorySegment(INTS, m, (a + i) * 4, ORDER);
+            IntVector y = IntVector.fromMemorySegment(INTS, m, (b + i) * 4, ORDER);
+            x.mul(y).intoMemorySegment(m, (dst + i) * 4, ORDER);
+        }
+        super.intMul(m, dst + i, a + i, b + i, length - i);
+    }
+
+    @Override
+    void floatAdd(MemorySegment m, long dst, long a, long b, int length) {
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            FloatVector x = FloatVector.fromMemorySegment(FLOATS, m, (a + i) * 4, ORDER);
+            FloatVector y = FloatVector.fromMemorySegment(FLOATS, m, (b + i) * 4, ORDER);
+            x.add(y).intoMemorySegment(m, (dst + i) * 4, ORDER);
+        }
+        super.floatAdd(m, dst + i, a + i, b + i, length - i);
+    }
+
+    @Override
+    void floatMul(MemorySegment m, long dst, long a, long b, int length) {
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            FloatVector x = FloatVector.fromMemorySegment(FLOATS, m, (a + i) * 4, ORDER);
+            FloatVector y = FloatVector.fromMemorySegment(FLOATS, m, (b + i) * 4, ORDER);
+            x.mul(y).intoMemorySegment(m, (dst + i) * 4, ORDER);
+        }
+        super.floatMul(m, dst + i, a + i, b + i, length - i);
+    }
+
+    @Override
+    void fill(MemorySegment m, long from, int length, int value) {
+        IntVector splat = IntVector.broadcast(INTS, value);
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            splat.intoMemorySegment(m, (from + i) * 4, ORDER);
+        }
+        super.fill(m, from + i, length - i, value);
+    }
+}
@@ -0,0 +1,321 @@
+package com.nlang.vm;
+
+import java.util.Arrays;
+
+import static com.nlang.vm.InstructionSet.*;
+
+/**
+ * Load time check of a program, function by function.
+ * <p>
+ * Follows every control-flow path from each {@link FunctionInfo#address} and checks that every
+ * instruction is known and complete, that jump targets are instruction starts, that local indexes
+ * are in range and that the stack depth, counted from the function's entry, never goes below zero
+ * and is the same on every path into an instruction. All RETs of a function must leave the same
+ * number of values; a CALL pops the callee's arguments and pushes that number. A SPAWNed function
+ * and a function declared pure must return one value, the one NVM memoizes or joins.
+ * <p>
+ * A program that passes gets {@link FunctionInfo#maxStack} and {@link FunctionInfo#maxLocals} set
+ * and its frames sized to {@code maxLocals}. {@link NVM} checks for stack overflow once per frame
+ * against maxStack and runs verified code without per-instruction stack checks.
+ */
+final class Verifier {
+
+    static final int MAX_LOCALS = 1 << 16;
+
+    private static final int UNKNOWN = -1;
+
+    private final int[] code;
+    private final FunctionInfo[] functionTable;
+    private final boolean[] instructionStart;
+    // per function: the number of values its RETs leave, UNKNOWN until one is reached
+    private final int[] returns;
+    private final int[] maxStack;
+    private final int[] maxLocals;
+
+    // stack depth before each instruction of the function being analyzed, -1 if not reached yet
+    private final int[] depths;
+    private int[] reached = new int[64];
+    private int reachedCount;
+
+    // optional record of the depths and owning function of every reachable instruction
+    private int[] depthAt;
+    private int[] owners;
+    private boolean sharedCode;
+
+    private Verifier(int[] code, FunctionInfo[] functionTable) {
+        this.code = code;
+        this.functionTable = functionTable;
+        this.instructionStart = new boolean[code.length];
+        this.returns = new int[functionTable.length];
+        this.maxStack = new int[functionTable.length];
+        this.maxLocals = new int[functionTable.length];
+        this.depths = new int[code.length];
+        Arrays.fill(returns, UNKNOWN);
+        Arrays.fill(depths, -1);
+    }
+
+    /**
+     * Verifies the program and records the results in its function table, or leaves the table
+     * untouched and returns false if the program fails. A table already verified against this very
+     * code array is not checked again.
+     * <p>
+     * Runs locked on the table, so executions verifying one table at once see each other's results.
+     */
+    static boolean verify(int[] code, FunctionInfo[] functionTable) {
+        synchronized (functionTable) {
+            if (isVerified(code, functionTable)) {
+                return true;
+            }
+            try {
+                check(code, functionTable);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Like {@link #verify} but throws an IllegalArgumentException naming the first problem found.
+     */
+    static void check(int[] code, FunctionInfo[] functionTable) {
+        Verifier verifier = new Verifier(code, functionTable);
+        verifier.run();
+        synchronized (functionTable) {
+            for (int f = 0; f < functionTable.length; f++) {
+                FunctionInfo function = functionTable[f];
+                if (function != null) {
+                    function.maxStack = verifier.maxStack[f];
+                    function.maxLocals = verifier.maxLocals[f];
+                    function.frameSize = verifier.maxLocals[f];
+                    function.verifiedCode = code;
+                }
+            }
+        }
+    }
+
+    /**
+     * The stack depth before every reachable instruction, -1 before the others, with the function
+     * each instruction belongs to stored in {@code owners}. Null if the program fails verification
+     * or if two functions share code.
+     */
+    static int[] stackDepths(int[] code, FunctionInfo[] functionTable, int[] owners) {
+        Verifier verifier = new Verifier(code, functionTable);
+        verifier.depthAt = new int[code.length];
+        verifier.owners = owners;
+        Arrays.fill(verifier.depthAt, -1);
+        Arrays.fill(owners, -1);
+        try {
+            verifier.run();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return verifier.sharedCode ? null : verifier.depthAt;
+    }
+
+    /**
+     * True if every function of the table was verified against {@code code}, the same array.
+     */
+    static boolean isVerified(int[] code, FunctionInfo[] functionTable) {
+        if (functionTable.length == 0 || functionTable[0] == null) {
+            return false;
+        }
+        for (FunctionInfo function : functionTable) {
+            if (function != null && (function.maxStack < 0 || function.verifiedCode != code)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void run() {
+        if (functionTable.length == 0 || functionTable[0] == null) {
+            throw new IllegalArgumentException("No main function");
+        }
+        for (int ip = 0; ip < code.length; ) {
+            instructionStart[ip] = true;
+            InstInfo info = INFO_MAP.get(code[ip]);
+            ip += info == null ? 1 : 1 + info.operandCount;
+        }
+        for (FunctionInfo function : functionTable) {
+            if (function != null && (function.address < 0 || function.address >= code.length
+                    || !instructionStart[function.address])) {
+                throw new IllegalArgumentException("Function " + function.name + ": invalid address " + function.address);
+            }
+        }
+
+        // A path ends at a call to a function whose return count is not known yet. Callees are
+        // usually declared first, so going backwards most functions are complete after one pass.
+        boolean[] complete = new boolean[functionTable.length];
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int f = functionTable.length - 1; f >= 0; f--) {
+                if (functionTable[f] != null && !complete[f]) {
+                    int before = returns[f];
+                    complete[f] = analyze(f);
+                    progress |= complete[f] || returns[f] != before;
+                }
+            }
+        }
+        // what is left only calls functions that never return, the paths after those calls are dead
+    }
+
+    /**
+     * Analyzes one function; returns false if a path stopped at a call of unknown effect.
+     */
+    private boolean analyze(int f) {
+        FunctionInfo function = functionTable[f];
+        int locals = function.argCount;
+        int max = 0;
+        boolean complete = true;
+        reachedCount = 0;
+        try {
+            reach(function.address, 0, function);
+            for (int i = 0; i < reachedCount; i++) {
+                int ip = reached[i];
+                int depth = depths[ip];
+                int inst = code[ip];
+                InstInfo info = INFO_MAP.get(inst);
+                if (info == null || inst == FLT || inst == FGTE || inst == COPY) {
+                    throw error(function, "unsupported instruction " + inst, ip);
+                }
+                int next = ip + 1 + info.operandCount;
+                if (next > code.length) {
+                    throw error(function, "truncated instruction", ip);
+                }
+                locals = Math.max(locals, locals(function, inst, ip));
+
+                int pops;
+                int pushes;
+                if (inst == CALL || inst == TAILCALL || inst == SPAWN) {
+                    int callee = code[ip + 1];
+                    if (callee < 0 || callee >= functionTable.length || functionTable[callee] == null) {
+                        throw error(function, "call of undefined function " + callee, ip);
+                    }
+                    if (returns[callee] == UNKNOWN) {
+                        complete = false;
+                        continue;
+                    }
+                    if (inst == SPAWN && returns[callee] != 1) {
+                        throw error(function, "spawn of " + functionTable[callee].name + ", which returns "
+                                + returns[callee] + " values", ip);
+                    }
+                    pops = functionTable[callee].argCount;
+                    pushes = returns[callee];
+                } else {
+                    pops = pops(inst);
+                    pushes = pushes(inst);
+                }
+                if (depth < pops) {
+                    throw error(function, "stack underflow", ip);
+                }
+                int after = depth - pops + pushes;
+                max = Math.max(max, after);
+
+                if (inst == STOP) {
+                    continue;
+                }
+                if (inst == RET) {
+                    if (function.pure && depth != 1) {
+                        throw error(function, "pure function returns " + depth + " values", ip);
+                    }
+                    if (returns[f] == UNKNOWN) {
+                        returns[f] = depth;
+                    } else if (returns[f] != depth) {
+                        throw error(function, "returns " + depth + " values, elsewhere " + returns[f], ip);
+                    }
+                    continue;
+                }
+                if (PeepholeOptimizer.isJump(inst)) {
+                    reach(code[ip + PeepholeOptimizer.jumpOperand(inst)], after, function);
+                    if (inst == JMP) {
+                        continue;
+                    }
+                }
+                if (next >= code.length) {
+                    throw error(function, "falls off the end of the code", ip);
+                }
+                reach(next, after, function);
+            }
+        } finally {
+            for (int i = 0; i < reachedCount; i++) {
+                int ip = reached[i];
+                if (depthAt != null) {
+                    sharedCode |= owners[ip] != -1 && owners[ip] != f;
+                    depthAt[ip] = depths[ip];
+                    owners[ip] = f;
+                }
+                depths[ip] = -1;
+            }
+        }
+        maxStack[f] = max;
+        maxLocals[f] = locals;
+        return complete;
+    }
+
+    private void reach(int target, int depth, FunctionInfo function) {
+        if (target < 0 || target >= code.length || !instructionStart[target]) {
+            throw error(function, "jump to " + target + ", not an instruction", target);
+        }
+        if (depths[target] == -1) {
+            depths[target] = depth;
+            if (reachedCount == reached.length) {
+                reached = Arrays.copyOf(reached, reachedCount * 2);
+            }
+            reached[reachedCount++] = target;
+        } else if (depths[target] != depth) {
+            throw error(function, "stack depth " + depth + ", elsewhere " + depths[target], target);
+        }
+    }
+
+    /**
+     * One more than the highest local the instruction at {@code ip} uses.
+     */
+    private int locals(FunctionInfo function, int inst, int ip) {
+        int operands = localOperands(inst);
+        int locals = 0;
+        for (int i = 1; i <= operands; i++) {
+            int local = code[ip + i];
+            if (local < 0 || local >= MAX_LOCALS) {
+                throw error(function, "invalid local " + local, ip);
+            }
+            locals = Math.max(locals, local + 1);
+        }
+        return locals;
+    }
+
+    /**
+     * The number of operands, from the first on, that are local indexes.
+     */
+    static int localOperands(int inst) {
+        return switch (inst) {
+            case LOAD, STORE, IINC, ILT_JZ_LC, IGTE_JZ_LC -> 1;
+            case MOVE, ILT_JZ_LL, IGTE_JZ_LL -> 2;
+            case IADD_LLS, ISUB_LLS, IMUL_LLS -> 3;
+            default -> 0;
+        };
+    }
+
+    static int pops(int inst) {
+        return switch (inst) {
+            case IADD, ISUB, IMUL, IDIV, FADD, FSUB, FMUL, FDIV, ILT, IGTE, ALOAD, IADOT, FADOT,
+                 SCONCAT, SCMP, AFILL -> 2;
+            case ASTORE, IASTORE, FASTORE, IAADD, IAMUL, FAADD, FAMUL, SSUB -> 3;
+            case JZ, JNZ, STORE, PRINT, FPRINT, SPRINT, NEW_ARRAY, IASUM, FASUM, SLEN, ITOS, JOIN -> 1;
+            default -> 0;
+        };
+    }
+
+    static int pushes(int inst) {
+        return switch (inst) {
+            case PUSH, LDC, LOAD, IADD, ISUB, IMUL, IDIV, FADD, FSUB, FMUL, FDIV, ILT, IGTE, NEW_ARRAY, ALOAD,
+                 IASUM, FASUM, IADOT, FADOT, SCONCAT, SLEN, SSUB, SCMP, ITOS, JOIN -> 1;
+            default -> 0;
+        };
+    }
+
+    private static IllegalArgumentException error(FunctionInfo function, String message, int ip) {
+        return new IllegalArgumentException("Function " + function.name + ": " + message + " at " + ip);
+    }
+}
@@ -1,30 +1,43 @@
 package com.nlang.vm;
 
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static com.nlang.vm.InstructionSet.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class NVMTest {
 
-    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    private final ByteArrayOutputStream errStream = new ByteArrayOutputStream();
+    private final MemoryOutputSink output = new MemoryOutputSink();
 
     private NVM vm;
 
-    @BeforeEach
-    public void setUp() {
-        System.setOut(new PrintStream(outputStream));
-        System.setErr(new PrintStream(errStream));
-    }
-
     @Test
     void testSum() {
 
@@ -37,9 +50,7 @@ class NVMTest {
 
         };
         FunctionInfo[] functionTable = {new FunctionInfo("main", 0, 0)};
-        vm = new NVM(code, functionTable);
-        vm.execute();
-        assertEquals("264" + System.lineSeparator(), outputStream.toString());
+        assertOutput("264", code, functionTable, null);
     }
 
     @Test
@@ -66,9 +77,7 @@ class NVMTest {
                 new FunctionInfo("main", 0, 9),
                 new FunctionInfo("avg", 2, 0)
         };
-        vm = new NVM(code, functionTable);
-        vm.execute();
-        assertEquals("97" + System.lineSeparator(), outputStream.toString());
+        assertOutput("97", code, functionTable, null);
     }
 
     @Test
@@ -102,9 +111,7 @@ class NVMTest {
                 new FunctionInfo("main", 0, code.length - 6),
                 new FunctionInfo("factorial", 1, 0)
         };
-        vm = new NVM(code, functionTable);
-        vm.execute();
-        assertEquals("24" + System.lineSeparator(), outputStream.toString());
+        assertOutput("24", code, functionTable, null);
     }
 
     @Test
@@ -141,11 +148,1412 @@ class NVMTest {
                 new FunctionInfo("main", 0, code.length - 6),
                 new FunctionInfo("fibonacci", 1, 0)
         };
-        vm = new NVM(code, functionTable);
+        assertOutput("28657", code, functionTable, null);
+    }
+
+
+    @Test
+    void testGreaterOrEqualDoesNotFallThroughIntoJz() {
+
+        int[] code = {
+                PUSH,  5,       //0
+                PUSH,  3,       //2
+                IGTE,           //4
+                JZ, 10,         //5
+                PUSH,  1,       //7
+                PRINT,          //9
+                STOP,           //10
+        };
+
+        FunctionInfo[] functionTable = {new FunctionInfo("main", 0, 0)};
+        assertOutput("1", code, functionTable, null);
+    }
+
+    @Test
+    void testPeepholeFusionOfFibLoop() throws IOException {
+        BytecodeLexer lexer = new BytecodeLexer();
+        lexer.parseCode(Files.readString(Path.of("./examples/fib_loop.nbyte")));
+        PeepholeOptimizer.Result result = PeepholeOptimizer.optimize(lexer.getBytecode(), lexer.functionTable);
+
+        assertEquals(1, result.fusedCount(ILT_JZ_LL));
+        assertEquals(1, result.fusedCount(IADD_LLS));
+        assertEquals(1, result.fusedCount(IINC));
+        assertEquals(2, result.fusedCount(MOVE));
+        assertEquals(result.instructionsBefore - 11, result.instructionsAfter);
+        assertEquals(lexer.functionTable[1].address, result.functionTable[1].address);
+        assertEquals(lexer.functionTable[0].address - 12, result.functionTable[0].address);
+
+        Program program = Assembler.assemble(Path.of("./examples/fib_loop.nbyte"));
+        PeepholeOptimizer.Result fused = PeepholeOptimizer.optimize(program.code, program.functionTable);
+        assertEquals(ILT_JZ_LL, fused.code[fused.relocate(program.labels).get("loop")]);
+    }
+
+    @Test
+    void testPeepholeDoesNotFuseAcrossLabels() {
+
+        int[] code = {
+                PUSH,  0,       //0
+                STORE, 0,       //2
+                LOAD, 0,        //4
+                JMP, 8,         //6
+                STORE, 1,       //8  label in the middle of LOAD; STORE
+                LOAD, 1,        //10
+                PRINT,          //12
+                STOP,           //13
+        };
+
+        FunctionInfo[] functionTable = {new FunctionInfo("main", 0, 0)};
+        assertEquals(0, PeepholeOptimizer.optimize(code, functionTable).fusedCount(MOVE));
+        assertOutput("0", code, functionTable, null);
+    }
+
+    @Test
+    void testJitCompilesHotRecursiveFunctions() throws IOException {
+        for (String example : new String[]{"fibonacci_recursive", "factorial_recursive", "fib_loop", "factorial_loop"}) {
+            BytecodeLexer lexer = new BytecodeLexer();
+            lexer.parseCode(Files.readString(Path.of("./examples/" + example + ".nbyte")));
+            PeepholeOptimizer.Result fused = PeepholeOptimizer.optimize(lexer.getBytecode(), lexer.functionTable);
+
+            output.reset();
+            vm = new NVM(fused.code, fused.functionTable, null, NVM.Engine.JIT, output);
+            vm.jitThreshold = 1;
+            vm.execute();
+            assertNotNull(fused.functionTable[1].compiled, example);
+            assertEquals(expectedOutput(example) + System.lineSeparator(), output.toString(), example);
+        }
+
+        // the invocation count is shared: a lower threshold than it has reached still compiles
+        Program program = Assembler.assemble(Path.of("./examples/fibonacci_recursive.nbyte"));
+        vm = new NVM(program, NVM.Engine.JIT, new MemoryOutputSink());
+        vm.jitThreshold = Integer.MAX_VALUE;
+        vm.execute();
+        assertNull(program.functionTable[1].compiled);
+        vm = new NVM(program, NVM.Engine.JIT, new MemoryOutputSink());
+        vm.jitThreshold = 10;
+        vm.execute();
+        assertNotNull(program.functionTable[1].compiled);
+    }
+
+    @Test
+    void testHotLoopsAreReplacedOnTheStack() throws IOException {
+        for (String example : new String[]{"fib_loop", "factorial_loop"}) {
+            Program program = Assembler.assemble(Path.of("./examples/" + example + ".nbyte"));
+            int header = program.labels.get("loop");
+
+            output.reset();
+            vm = new NVM(program, NVM.Engine.JIT, output);
+            vm.jitThreshold = Integer.MAX_VALUE;
+            vm.osrThreshold = 3;
+            vm.execute();
+            assertEquals(expectedOutput(example) + System.lineSeparator(), output.toString(), example);
+            assertEquals(3, vm.backEdges(header), example);
+            assertEquals(1, vm.osrEntries(), example);
+            assertEquals(1, vm.osrExits(), example);
+            assertTrue(vm.loopReport().contains("Loop at " + header + " in " + program.functionTable[1].name
+                    + ": 3 back edges, compiled, entered 1 times"), vm.loopReport());
+        }
+
+        // ALOAD is not compiled, so the sieve's loops stay interpreted
+        Program sieve = Assembler.assemble(Path.of("./examples/sieve.nbyte"));
+        output.reset();
+        vm = new NVM(sieve, NVM.Engine.JIT, output);
+        vm.osrThreshold = 3;
+        vm.execute();
+        assertEquals("1229" + System.lineSeparator(), output.toString());
+        assertEquals(0, vm.osrEntries());
+        assertTrue(vm.loopReport().contains("not compilable"), vm.loopReport());
+    }
+
+    @Test
+    void testInstructionBudgetsYieldAndResume() throws IOException {
+        for (String example : new String[]{"fib_loop", "fibonacci_recursive"}) {
+            Program program = Assembler.assemble(Path.of("./examples/" + example + ".nbyte"));
+            for (NVM.Engine engine : new NVM.Engine[]{NVM.Engine.SWITCH, NVM.Engine.THREADED, NVM.Engine.JIT}) {
+                output.reset();
+                vm = new NVM(program, engine, output);
+                vm.jitThreshold = 1;
+                int slices = 0;
+                do {
+                    vm.execute(50);
+                    slices++;
+                    assertTrue(vm.remainingBudget() > -200, example + " " + engine);
+                    // the jump or call that used up the budget paused, no request is left over
+                    assertFalse(vm.pauseRequested, example + " " + engine);
+                } while (vm.isPaused());
+                assertTrue(slices > 10, example + " " + engine + " " + slices);
+                assertEquals(expectedOutput(example) + System.lineSeparator(), output.toString(), example + " " + engine);
+            }
+        }
+        vm = new NVM(Assembler.assemble(Path.of("./examples/fib_loop.nbyte")), NVM.Engine.REGISTER, output);
+        assertThrows(UnsupportedOperationException.class, () -> vm.execute(200));
+    }
+
+    @Test
+    void testSchedulerTimeSlicesExecutionsOverFewWorkers() throws Exception {
+        Program spin = Program.parse("""
+                #code
+                main:0:0:
+                loop:
+                    JMP loop
+                """);
+        Program fib = Assembler.assemble(Path.of("./examples/fib_loop.nbyte"));
+        for (Scheduler.Policy policy : Scheduler.Policy.values()) {
+            try (Scheduler scheduler = new Scheduler(2, policy, 1000)) {
+                // more endless loops than workers must not keep the others from finishing
+                List<Scheduler.Process> spinning = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    spinning.add(scheduler.submit(new NVM(spin, NVM.Engine.SWITCH, new MemoryOutputSink()), 1));
+                }
+                List<MemoryOutputSink> outputs = new ArrayList<>();
+                List<Scheduler.Process> finishing = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    outputs.add(new MemoryOutputSink());
+                    NVM.Engine engine = NVM.Engine.values()[i % 3];
+                    finishing.add(scheduler.submit(new NVM(fib, engine, outputs.get(i)), policy == Scheduler.Policy.PRIORITY ? 2 : 0));
+                }
+                for (int i = 0; i < finishing.size(); i++) {
+                    finishing.get(i).completion().get(30, TimeUnit.SECONDS);
+                    assertEquals(expectedOutput("fib_loop") + System.lineSeparator(), outputs.get(i).toString());
+                    assertTrue(finishing.get(i).slices() > 1);
+                    assertTrue(finishing.get(i).instructions() >= 36 * 20);
+                }
+                assertEquals(4, scheduler.live());
+
+                spinning.get(0).cancel();
+                assertThrows(CancellationException.class, () -> spinning.get(0).completion().join());
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+                while (spinning.get(1).slices() < 2 && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                assertTrue(spinning.get(1).slices() >= 2 && spinning.get(1).instructions() >= 2000);
+                scheduler.close();
+                assertThrows(CancellationException.class, () -> spinning.get(3).completion().join());
+                assertEquals(0, scheduler.live());
+            }
+        }
+
+        // an Error fails its process and leaves the only worker running the next one
+        try (Scheduler scheduler = new Scheduler(1, Scheduler.Policy.ROUND_ROBIN, 1000)) {
+            MemoryOutputSink failing = new MemoryOutputSink() {
+                @Override
+                public void printInt(int value) {
+                    throw new StackOverflowError();
+                }
+            };
+            Scheduler.Process failed = scheduler.submit(new NVM(fib, NVM.Engine.SWITCH, failing));
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> failed.completion().get(30, TimeUnit.SECONDS));
+            assertInstanceOf(StackOverflowError.class, e.getCause());
+            MemoryOutputSink out = new MemoryOutputSink();
+            scheduler.submit(new NVM(fib, NVM.Engine.SWITCH, out)).completion().get(30, TimeUnit.SECONDS);
+            assertEquals(expectedOutput("fib_loop") + System.lineSeparator(), out.toString());
+            assertEquals(0, scheduler.live());
+        }
+    }
+
+    @Test
+    void testSpawnedCallsRunInParallelAndJoin() throws IOException {
+        Program program = Assembler.assemble(Path.of("./examples/fibonacci_parallel.nbyte"));
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            // 0 runs every SPAWN as a plain call
+            for (int spawnDepth : new int[]{0, 1, 6}) {
+                output.reset();
+                vm = new NVM(program, engine, output);
+                vm.spawnDepth = spawnDepth;
+                vm.execute();
+                assertEquals("832040" + System.lineSeparator(), output.toString(), engine + " " + spawnDepth);
+                // a task forks while it is less than spawnDepth calls deep: the tree of
+                // fib(n - 1) spawns and fib(n - 2) calls below main's spawn is spawnDepth - 1 deep
+                assertEquals(spawnDepth == 0 ? 0 : 1L << (spawnDepth - 1), vm.spawnedTasks(), engine + " " + spawnDepth);
+            }
+        }
+        BytecodeLexer lexer = new BytecodeLexer();
+        lexer.parseCode(Files.readString(Path.of("./examples/fibonacci_parallel.nbyte")));
+        assertArrayEquals(program.code, lexer.getBytecode());
+
+        // a child's output is printed when it is joined, so the order does not depend on scheduling
+        Program printing = Program.parse("""
+                #code
+                show:1:1:
+                    LOAD 0
+                    PRINT
+                    LOAD 0
+                    PUSH 10
+                    IMUL
+                    RET
+                main:0:0:
+                    PUSH 1
+                    SPAWN show
+                    PUSH 2
+                    SPAWN show
+                    PUSH 3
+                    PRINT
+                    JOIN
+                    PRINT
+                    JOIN
+                    PRINT
+                    STOP
+                """);
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            // and not on whether the SPAWN forks or runs as a call
+            for (int spawnDepth : new int[]{0, 6}) {
+                output.reset();
+                vm = new NVM(printing, engine, output);
+                vm.spawnDepth = spawnDepth;
+                vm.execute();
+                assertEquals(String.join(System.lineSeparator(), "3", "2", "20", "1", "10", ""), output.toString(),
+                        engine + " " + spawnDepth);
+            }
+        }
+
+        // handles cross the cutoff both ways: main's task is joined one call deeper, and the task
+        // spawned one call deeper is joined by main
+        Program crossing = Program.parse("""
+                #code
+                show:1:1:
+                    LOAD 0
+                    PRINT
+                    LOAD 0
+                    PUSH 10
+                    IMUL
+                    RET
+                joinIt:2:1:
+                    LOAD 0
+                    JOIN
+                    RET
+                spawnIt:3:1:
+                    LOAD 0
+                    SPAWN show
+                    RET
+                main:0:0:
+                    PUSH 1
+                    SPAWN show
+                    PUSH 2
+                    PRINT
+                    CALL joinIt
+                    PRINT
+                    PUSH 3
+                    CALL spawnIt
+                    PUSH 4
+                    PRINT
+                    JOIN
+                    PRINT
+                    STOP
+                """);
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            for (int spawnDepth : new int[]{0, 1, 6}) {
+                output.reset();
+                vm = new NVM(crossing, engine, output);
+                vm.spawnDepth = spawnDepth;
+                vm.execute();
+                assertEquals(String.join(System.lineSeparator(), "2", "1", "10", "4", "3", "30", ""),
+                        output.toString(), engine + " " + spawnDepth);
+            }
+        }
+
+        Program unbalanced = Program.parse("""
+                #code
+                none:1:0:
+                    RET
+                main:0:0:
+                    SPAWN none
+                    JOIN
+                    STOP
+                """);
+        assertThrows(IllegalArgumentException.class, () -> Verifier.check(unbalanced.code, unbalanced.functionTable));
+        vm = new NVM(printing, NVM.Engine.SWITCH, output);
+        assertThrows(IllegalArgumentException.class, () -> vm.join(0));
+    }
+
+    @Test
+    void testCompiledAndInterpretedFunctionsCallEachOther() {
+
+        int[] code = {
+                // inner(n): print n; return n * 2
+                LOAD, 0,        //0
+                PRINT,          //2
+                LOAD, 0,        //3
+                PUSH,  2,       //5
+                IMUL,           //7
+                RET,            //8
+                // outer(a, b): return inner(a) + b
+                LOAD, 0,        //9
+                CALL, 2,        //11
+                LOAD, 1,        //13
+                IADD,           //15
+                RET,            //16
+
+                PUSH,  20,      //17 MAIN
+                PUSH,  1,       //19
+                CALL, 1,        //21
+                PRINT,          //23
+                STOP,           //24
+        };
+
+        FunctionInfo[] functionTable = {
+                new FunctionInfo("main", 0, 17),
+                new FunctionInfo("outer", 2, 9),
+                new FunctionInfo("inner", 1, 0)
+        };
+        functionTable[1].compiled = JitCompiler.compile(code, functionTable, 1);
+        assertNotNull(functionTable[1].compiled);
+
+        vm = new NVM(code, functionTable, null, NVM.Engine.JIT, output);
+        vm.jitThreshold = Integer.MAX_VALUE;
         vm.execute();
-        assertEquals("28657" + System.lineSeparator(), outputStream.toString());
+        assertNull(functionTable[2].compiled);
+        assertEquals("20" + System.lineSeparator() + "41" + System.lineSeparator(), output.toString());
+    }
+
+    @Test
+    void testJitSkipsFunctionsWithUnbalancedStack() {
+
+        int[] code = {
+                // pair(): leaves two values on the stack
+                PUSH,  1,       //0
+                PUSH,  2,       //2
+                RET,            //4
+
+                CALL, 1,        //5 MAIN
+                PRINT,          //7
+                PRINT,          //8
+                STOP,           //9
+        };
+
+        FunctionInfo[] functionTable = {
+                new FunctionInfo("main", 0, 5),
+                new FunctionInfo("pair", 0, 0)
+        };
+        assertNull(JitCompiler.compile(code, functionTable, 1));
+    }
+
+    @Test
+    void testLocalsStartZeroedWhenFrameIsReused() {
+
+        int[] code = {
+                // f(): print local 1, then dirty it
+                LOAD, 1,        //0
+                PRINT,          //2
+                PUSH,  7,       //3
+                STORE, 1,       //5
+                PUSH,  0,       //7
+                RET,            //9
+
+                CALL, 1,        //10 MAIN
+                STORE, 0,       //12
+                CALL, 1,        //14
+                STORE, 0,       //16
+                STOP,           //18
+        };
+
+        FunctionInfo[] functionTable = {
+                new FunctionInfo("main", 0, 10),
+                new FunctionInfo("f", 0, 0)
+        };
+        assertOutput("0" + System.lineSeparator() + "0", code, functionTable, null);
     }
 
+    @Test
+    void testFrameStackDebugView() {
+
+        int[] code = {
+                LOAD, 0,        //0
+                PUSH,  1,       //2
+                IADD,           //4
+                RET,            //5
+
+                PUSH,  41,      //6 MAIN
+                CALL, 1,        //8
+                PRINT,          //10
+                STOP,           //11
+        };
+
+        FunctionInfo[] functionTable = {
+                new FunctionInfo("main", 0, 6),
+                new FunctionInfo("inc", 1, 0)
+        };
+        vm = new NVM(code, functionTable, null, NVM.Engine.SWITCH, output);
+        vm.push(41);
+        vm.ip = vm.call(1, 10);
+
+        Context context = vm.context();
+        assertEquals("inc", context.info.name);
+        assertEquals(41, context.memory[0]);
+        assertEquals(10, context.returnAddress);
+        assertEquals("main", context.parent.info.name);
+        assertNull(context.parent.parent);
+    }
+
+    @Test
+    void testBufferedOutputSinkMatchesPrintln() {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream println = new PrintStream(expected, true, StandardCharsets.UTF_8);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        BufferedOutputSink sink = new BufferedOutputSink(actual, StandardCharsets.UTF_8, 16);
+
+        int[] ints = {0, 7, -7, 1234567890, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        float[] floats = {0f, -0f, 7.5360007f, 1e-10f, Float.NaN, Float.POSITIVE_INFINITY, 123456789f};
+        String[] strings = {"Hello, World", "", "gr\u00fc\u00dfe", null, "a string longer than the sixteen byte buffer"};
+        for (int i : ints) {
+            println.println(i);
+            sink.printInt(i);
+        }
+        for (float f : floats) {
+            println.println(f);
+            sink.printFloat(f);
+        }
+        for (String str : strings) {
+            println.println(str);
+            sink.printString(str);
+        }
+        sink.flush();
+        assertEquals(expected.toString(StandardCharsets.UTF_8), actual.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testBinaryFormatRoundTrip(@TempDir Path dir) throws IOException {
+        for (String example : new String[]{"fibonacci_recursive", "fibonacci_pure", "factorial_loop", "float", "hello"}) {
+            Program program = Program.parse(Files.readString(Path.of("./examples/" + example + ".nbyte")));
+            Path file = dir.resolve(example + ".nbc");
+            NbcFormat.write(program, file);
+            Program loaded = NbcFormat.load(file);
+
+            assertArrayEquals(program.code, loaded.code);
+            assertEquals(program.stringPool, loaded.stringPool);
+            assertEquals(program.labels, loaded.labels);
+            assertEquals(program.functionTable.length, loaded.functionTable.length);
+            for (int i = 0; i < program.functionTable.length; i++) {
+                FunctionInfo f = program.functionTable[i];
+                if (f == null) {
+                    assertNull(loaded.functionTable[i]);
+                } else {
+                    assertEquals(f.name, loaded.functionTable[i].name);
+                    assertEquals(f.argCount, loaded.functionTable[i].argCount);
+                    assertEquals(f.address, loaded.functionTable[i].address);
+                    assertEquals(f.pure, loaded.functionTable[i].pure);
+                }
+            }
+
+            MemoryOutputSink expected = new MemoryOutputSink();
+            new NVM(program, NVM.Engine.SWITCH, expected).execute();
+            output.reset();
+            new NVM(loaded, NVM.Engine.SWITCH, output).execute();
+            assertEquals(expected.toString(), output.toString(), example);
+        }
+    }
+
+    @Test
+    void testBinaryFormatRejectsOtherFiles(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("fib.nbyte.nbc");
+        Files.copy(Path.of("./examples/fibonacci_recursive.nbyte"), file);
+        assertThrows(IOException.class, () -> NbcFormat.load(file));
+
+        // truncated or corrupt binaries fail as IOExceptions too, not with whatever a bad count or
+        // offset would throw
+        Program program = Program.parse(Files.readString(Path.of("./examples/hello.nbyte")));
+        Path binary = dir.resolve("hello.nbc");
+        NbcFormat.write(program, binary);
+        byte[] bytes = Files.readAllBytes(binary);
+        for (int size = 0; size < bytes.length; size++) {
+            Files.write(file, Arrays.copyOf(bytes, size));
+            try {
+                NbcFormat.load(file);
+            } catch (IOException e) {
+                // only what the padding of the last entry can lose loads
+            }
+        }
+        int functions = 32 + program.code.length * 4;
+        int[][] corruptions = {{8, -1}, {8, Integer.MAX_VALUE}, {12, -1}, {12, Integer.MAX_VALUE}, {16, 1000},
+                {functions, program.functionTable.length}, {functions + 8, program.code.length},
+                {functions + 16, -4}, {functions + 16, Integer.MAX_VALUE}};
+        for (int[] corruption : corruptions) {
+            ByteBuffer corrupt = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.LITTLE_ENDIAN);
+            corrupt.putInt(corruption[0], corruption[1]);
+            Files.write(file, corrupt.array());
+            assertThrows(IOException.class, () -> NbcFormat.load(file), Arrays.toString(corruption));
+        }
+    }
+
+    @Test
+    void testAssemblerMatchesBytecodeLexer() throws IOException {
+        for (String example : new String[]{"average", "factorial_loop", "factorial_recursive", "fib_loop",
+                "fibonacci_recursive", "float", "hello"}) {
+            Path path = Path.of("./examples/" + example + ".nbyte");
+            String source = Files.readString(path);
+            BytecodeLexer lexer = new BytecodeLexer();
+            lexer.parseCode(source);
+
+            // a reader returning a few characters at a time splits lines across reads
+            Reader trickle = new FilterReader(new StringReader(source)) {
+                @Override
+                public int read(char[] buffer, int offset, int length) throws IOException {
+                    return super.read(buffer, offset, Math.min(length, 7));
+                }
+            };
+            for (Program program : new Program[]{Assembler.assemble(source), Assembler.assemble(path),
+                    Assembler.assemble(trickle)}) {
+                assertArrayEquals(lexer.getBytecode(), program.code, example);
+                assertEquals(lexer.getStringPool(), program.stringPool, example);
+                assertEquals(lexer.getLabels(), program.labels, example);
+                for (int i = 0; i < program.functionTable.length; i++) {
+                    FunctionInfo f = program.functionTable[i];
+                    if (f == null) {
+                        assertNull(lexer.functionTable[i]);
+                    } else {
+                        assertEquals(lexer.functionTable[i].name, f.name);
+                        assertEquals(lexer.functionTable[i].argCount, f.argCount);
+                        assertEquals(lexer.functionTable[i].address, f.address);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testAssemblerGrowsFunctionTable() {
+        // f1..f99 each add one to their argument and pass it on, main prints f1(0)
+        StringBuilder source = new StringBuilder("#code\n");
+        for (int f = 1; f < 100; f++) {
+            source.append("f").append(f).append(':').append(f).append(":1:\n")
+                    .append("LOAD 0\nPUSH 1\nIADD\n");
+            source.append(f < 99 ? "CALL f" + (f + 1) + "\n" : "").append("RET\n");
+        }
+        source.append("main:0:0:\nPUSH 0\nCALL f1\nPRINT\nSTOP\n");
+
+        Program program = Assembler.assemble(source);
+        assertEquals(100, program.functionTable.length);
+        assertOutput("99", program.code, program.functionTable, program.stringPool);
+    }
+
+    @Test
+    void testAssemblerReportsErrors() {
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> Assembler.assemble("#code\nmain:0:0:\nJMP nowhere\nSTOP\n"));
+        assertEquals("Undefined label: nowhere at line 3", e.getMessage());
+        e = assertThrows(RuntimeException.class, () -> Assembler.assemble("#code\nmain:0:0:\nPUSHH 1\n"));
+        assertEquals("Unknown instruction: PUSHH at line 3", e.getMessage());
+    }
+
+    @Test
+    void testExecutorSharesOneProgram() throws IOException {
+        Program program = Program.parse(Files.readString(Path.of("./examples/fibonacci_recursive.nbyte")));
+        String expected = "28657" + System.lineSeparator();
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            try (ProgramExecutor executor = ProgramExecutor.fixedPool(program, engine, 4)) {
+                for (String result : executor.runAll(50)) {
+                    assertEquals(expected, result, engine.name());
+                }
+            }
+            try (ProgramExecutor executor = ProgramExecutor.virtualThreads(program, engine)) {
+                for (String result : executor.runAll(50)) {
+                    assertEquals(expected, result, engine.name());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testPureFunctionsAreMemoized() throws IOException {
+        Program program = Assembler.assemble(Path.of("./examples/fibonacci_pure.nbyte"));
+        assertTrue(program.functionTable[1].pure);
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            output.reset();
+            vm = new NVM(program, engine, output);
+            vm.jitThreshold = 1;
+            vm.execute();
+            assertEquals("102334155" + System.lineSeparator(), output.toString(), engine.name());
+            // fib(0..40) are computed once each, fib(n-2) is then found for every n >= 3
+            assertEquals(41, vm.memoMisses(), engine.name());
+            assertEquals(38, vm.memoHits(), engine.name());
+        }
+    }
+
+    @Test
+    void testPureFunctionsMayNotPrintOrCallImpureFunctions() {
+        assertThrows(RuntimeException.class, () -> Assembler.assemble(
+                "#code\nf:1:1:pure:\nLOAD 0\nPRINT\nPUSH 0\nRET\nmain:0:0:\nPUSH 1\nCALL f\nSTOP\n"));
+        assertThrows(RuntimeException.class, () -> Assembler.assemble(
+                "#code\ng:2:0:\nPUSH 1\nRET\nf:1:0:pure:\nCALL g\nRET\nmain:0:0:\nCALL f\nSTOP\n"));
+
+        // only one result can be cached, so a pure function must return exactly one
+        for (String body : new String[]{"RET", "LOAD 0\nLOAD 0\nRET"}) {
+            Program program = Assembler.assemble(
+                    "#code\nf:1:1:pure:\n" + body + "\nmain:0:0:\nPUSH 7\nPUSH 1\nCALL f\nPUSH 1\nCALL f\nSTOP\n");
+            assertThrows(IllegalArgumentException.class, program::verify, body);
+            vm = new NVM(program, NVM.Engine.SWITCH, output);
+            vm.execute();
+            assertEquals(0, vm.memoHits() + vm.memoMisses(), body);
+        }
+    }
+
+    @Test
+    void testMemoCacheEvictsUnreferencedEntriesFirst() {
+        MemoCache cache = new MemoCache(4, 1);
+        assertEquals(4, cache.capacity());
+        for (int i = 0; i < 4; i++) {
+            cache.put(0, new int[]{i}, 0, 1, i * 10);
+        }
+        assertEquals(10, cache.value(cache.find(0, new int[]{1}, 0, 1)));
+        cache.put(0, new int[]{4}, 0, 1, 40);
+        cache.put(0, new int[]{5}, 0, 1, 50);
+
+        assertEquals(-1, cache.find(0, new int[]{0}, 0, 1));
+        assertEquals(-1, cache.find(0, new int[]{2}, 0, 1));
+        assertEquals(10, cache.value(cache.find(0, new int[]{1}, 0, 1)));
+        assertEquals(-1, cache.find(1, new int[]{3}, 0, 1));
+        assertEquals(30, cache.value(cache.find(0, new int[]{3}, 0, 1)));
+        assertEquals(2, cache.evictions);
+    }
+
+    @Test
+    void testTailCallsReuseTheFrame() throws IOException {
+        Program program = Assembler.assemble(Path.of("./examples/sum_tail_recursive.nbyte"));
+        assertEquals(1, Arrays.stream(program.code).filter(inst -> inst == TAILCALL).count());
+        assertOutput("1250025000", program.code, program.functionTable, program.stringPool);
+
+        for (NVM.Engine engine : new NVM.Engine[]{NVM.Engine.SWITCH, NVM.Engine.THREADED}) {
+            vm = new NVM(program, engine, output);
+            int frames = vm.frames.length;
+            vm.execute();
+            assertEquals(frames, vm.frames.length, engine.name());
+        }
+    }
+
+    @Test
+    void testProfilerCountsCallsAndSamplesStacks() throws IOException {
+        Program program = Program.parse(Files.readString(Path.of("./examples/fibonacci_recursive.nbyte")));
+        for (NVM.Engine engine : new NVM.Engine[]{NVM.Engine.SWITCH, NVM.Engine.THREADED}) {
+            Profiler profiler = new Profiler(10, TimeUnit.MICROSECONDS);
+            output.reset();
+            vm = new NVM(program, engine, output);
+            vm.setProfiler(profiler);
+            vm.execute();
+            profiler.close();
+
+            assertEquals("28657" + System.lineSeparator(), output.toString());
+            // fib(23) makes 2 * fib(24) - 1 calls
+            assertEquals(92735, profiler.callCount("fib"), engine.name());
+            assertEquals(1, profiler.callCount("main"), engine.name());
+            assertEquals(92735, profiler.opcodeCount(CALL), engine.name());
+            assertTrue(profiler.samples() > 0, engine.name());
+            long sampled = 0;
+            for (String line : profiler.collapsedStacks().split("\n")) {
+                assertTrue(line.startsWith("main;fib") || line.startsWith("main "), line);
+                sampled += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+            assertEquals(profiler.samples(), sampled);
+            assertTrue(profiler.report().contains("fib"));
+        }
+    }
+
+    @Test
+    void testListenerSeesCallsAndReturns() throws IOException {
+        Program program = Program.parse(Files.readString(Path.of("./examples/fibonacci_recursive.nbyte")));
+        long[] events = new long[3];
+        vm = new NVM(program, NVM.Engine.THREADED, output);
+        vm.setListener(new ExecutionListener() {
+            @Override
+            public void instruction(int ip, int opcode, int sp, int fp) {
+                events[0]++;
+            }
+
+            @Override
+            public void call(int function, int fp) {
+                events[1]++;
+            }
+
+            @Override
+            public void ret(int function, int returnAddress) {
+                events[2]++;
+            }
+        });
+        vm.execute();
+        assertEquals("28657" + System.lineSeparator(), output.toString());
+        assertEquals(92735, events[1]);
+        assertEquals(92735, events[2]);
+        assertTrue(events[0] > 92735 * 2);
+    }
+
+    @Test
+    void testDebugModeDumpsStateAfterEveryInstruction() {
+        int[] code = {PUSH, 1, JMP, 4, IINC, 0, 1, PRINT, STOP};
+        FunctionInfo[] functionTable = {new FunctionInfo("main", 0, 0)};
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(dump, true, StandardCharsets.UTF_8));
+        try {
+            new NVM(code, functionTable, true, null, NVM.Engine.SWITCH, output).execute();
+        } finally {
+            System.setOut(stdout);
+        }
+        // JMP and IINC leave the stack alone and still get their dumps
+        String[] lines = dump.toString(StandardCharsets.UTF_8).split(System.lineSeparator());
+        assertEquals(12, lines.length);
+        for (int i = 0; i < lines.length; i += 3) {
+            assertTrue(lines[i + 1].startsWith("Stack: "), lines[i + 1]);
+            assertTrue(lines[i + 2].startsWith("Function name: main"), lines[i + 2]);
+        }
+    }
+
+    @Test
+    void testRingBufferTracerDumpsTheLastInstructionsOnFailure() {
+        Program program = Program.parse("""
+                #code
+                main:0:0:
+                    PUSH 1
+                    PUSH 2
+                    PRINT
+                    PRINT
+                    IADD
+                    STOP
+                """);
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        RingBufferTracer tracer = new RingBufferTracer(3, new PrintStream(err, true, StandardCharsets.UTF_8));
+        vm = new NVM(program, NVM.Engine.SWITCH, output);
+        vm.setListener(tracer);
+
+        UnsupportedOperationException e = assertThrows(UnsupportedOperationException.class, vm::execute);
+        assertEquals("Trying to pop from empty stack", e.getMessage());
+        assertEquals(5, tracer.count());
+        String[] lines = err.toString(StandardCharsets.UTF_8).split(System.lineSeparator());
+        assertEquals(4, lines.length);
+        assertEquals("Trying to pop from empty stack, last instructions:", lines[0]);
+        assertEquals("#2 ip=4 sp=1 fp=3 PRINT", lines[1]);
+        assertEquals("#4 ip=6 sp=-1 fp=3 IADD", lines[3]);
+    }
+
+    @Test
+    void testVerifierRecordsMaxStackAndLocals() throws IOException {
+        Program program = Assembler.assemble(Path.of("./examples/fibonacci_recursive.nbyte"));
+        assertTrue(program.verified);
+        FunctionInfo fib = program.functionTable[1];
+        assertEquals(3, fib.maxStack);
+        assertEquals(1, fib.maxLocals);
+        assertEquals(1, fib.frameSize);
+        assertEquals(1, program.functionTable[0].maxStack);
+        assertEquals(0, program.functionTable[0].frameSize);
+
+        // runs away pushing one value per call: caught by the per-frame check on every engine
+        int[] code = {
+                PUSH,  1,       //0
+                CALL, 1,        //2
+                RET,            //4
+
+                CALL, 1,        //5 MAIN
+                STOP,           //7
+        };
+        FunctionInfo[] functionTable = {
+                new FunctionInfo("main", 0, 5),
+                new FunctionInfo("f", 0, 0)
+        };
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            vm = new NVM(code, functionTable, null, engine, output);
+            UnsupportedOperationException e = assertThrows(UnsupportedOperationException.class, vm::execute);
+            assertEquals("Stackoverflow", e.getMessage());
+        }
+    }
+
+    @Test
+    void testVerifierRejectsBadCode() {
+        FunctionInfo[] main = {new FunctionInfo("main", 0, 0)};
+        assertEquals("Function main: invalid local -1 at 2", verifyError(new int[]{PUSH, 1, STORE, -1, STOP}, main));
+        assertEquals("Function main: jump to 1, not an instruction at 1", verifyError(new int[]{JMP, 1, STOP}, main));
+        assertEquals("Function main: stack depth 1, elsewhere 0 at 0", verifyError(new int[]{PUSH, 1, JMP, 0}, main));
+        assertEquals("Function main: falls off the end of the code at 2", verifyError(new int[]{PUSH, 1, PRINT}, main));
+        assertEquals(-1, main[0].maxStack);
+
+        // a table verified against one program is checked again with other code
+        FunctionInfo[] reused = {new FunctionInfo("main", 0, 0)};
+        assertTrue(Verifier.verify(new int[]{PUSH, 1, PRINT, STOP}, reused));
+        assertFalse(Verifier.verify(new int[]{PRINT, STOP}, reused));
+
+        Program program = Program.parse("#code\nmain:0:0:\nPUSH 1\nPRINT\nIADD\nSTOP\n");
+        assertTrue(!program.verified);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, program::verify);
+        assertEquals("Function main: stack underflow at 3", e.getMessage());
+    }
+
+    @Test
+    void testUnverifiedLocalsAreBoundsChecked() {
+        // the IADDs underflow, so the verifier rejects these and they run checked: no local
+        // operand may reach a frame header or past the frame's 10 slots
+        int[][] programs = {{PUSH, 1, STORE, -3, STOP}, {LOAD, 200, IADD, STOP}, {IINC, 10, 1, IADD, STOP}};
+        for (int[] code : programs) {
+            for (NVM.Engine engine : new NVM.Engine[]{NVM.Engine.SWITCH, NVM.Engine.THREADED}) {
+                vm = new NVM(code, new FunctionInfo[]{new FunctionInfo("main", 0, 0)}, null, engine, output);
+                assertThrows(ArrayIndexOutOfBoundsException.class, vm::execute, engine.name());
+            }
+        }
+    }
+
+    private static String verifyError(int[] code, FunctionInfo[] functionTable) {
+        return assertThrows(IllegalArgumentException.class, () -> Verifier.check(code, functionTable)).getMessage();
+    }
+
+    @Test
+    void testDeepRecursionGrowsTheStacks() {
+        // sum(n) = n < 1 ? 0 : n + sum(n - 1), 50000 calls deep
+        int[] code = {
+                LOAD, 0,        //0
+                PUSH, 1,        //2
+                ILT,            //4
+                JZ, 10,         //5
+                PUSH, 0,        //7
+                RET,            //9
+                LOAD, 0,        //10
+                LOAD, 0,        //12
+                PUSH, 1,        //14
+                ISUB,           //16
+                CALL, 1,        //17
+                IADD,           //19
+                RET,            //20
+
+                PUSH, 50000,    //21 MAIN
+                CALL, 1,        //23
+                PRINT,          //25
+                STOP,           //26
+        };
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            FunctionInfo[] functionTable = {new FunctionInfo("main", 0, 21), new FunctionInfo("sum", 1, 0)};
+            output.reset();
+            vm = new NVM(code, functionTable, null, engine, output);
+            vm.execute();
+            assertEquals("1250025000" + System.lineSeparator(), output.toString(), engine.name());
+            // JIT: compiled recursion stops at compiledDepthLimit and goes on interpreted
+            int interpreted = engine == NVM.Engine.JIT ? 50000 - 2 * vm.compiledDepthLimit : 50000;
+            assertTrue(engine != NVM.Engine.JIT || functionTable[1].compiled != null);
+            assertTrue(vm.stackHighWater() > interpreted, engine.name());
+            assertTrue(vm.frameHighWater() > 4 * interpreted, engine.name());
+            // the grown arrays went back to the pool
+            assertEquals(1024, vm.stack.length, engine.name());
+            assertEquals(256, vm.frames.length, engine.name());
+        }
+
+        FunctionInfo[] functionTable = {new FunctionInfo("main", 0, 21), new FunctionInfo("sum", 1, 0)};
+        vm = new NVM(code, functionTable, null, NVM.Engine.SWITCH, output);
+        vm.stackLimit = 5000;
+        UnsupportedOperationException e = assertThrows(UnsupportedOperationException.class, vm::execute);
+        assertEquals("Stackoverflow", e.getMessage());
+        assertEquals(5000, vm.stackHighWater());
+
+        vm = new NVM(code, functionTable, null, NVM.Engine.SWITCH, output);
+        vm.frameLimit = 5000;
+        e = assertThrows(UnsupportedOperationException.class, vm::execute);
+        assertEquals("Call stack overflow", e.getMessage());
+        assertTrue(vm.frameHighWater() <= 5000);
+    }
+
+    @Test
+    void testConstantFolderFoldsPropagatesAndRemovesDeadCode() throws IOException {
+        Program average = Assembler.assemble(Path.of("./examples/average.nbyte"));
+        ConstantFolder.Result result = ConstantFolder.optimize(average.code, average.functionTable);
+        assertArrayEquals(new int[]{PUSH, 8, PRINT, STOP}, result.code);
+        assertEquals(4, result.instructionsRemoved());
+
+        int[] code = {
+                PUSH,  1,       //0  dead
+                PRINT,          //2
+                LOAD, 0,        //3  f(n) = n + 1
+                PUSH,  1,       //5
+                IADD,           //7
+                RET,            //8
+
+                PUSH,  3,       //9 MAIN
+                STORE, 0,       //11
+                LOAD, 0,        //13
+                PUSH,  4,       //15
+                IMUL,           //17
+                PUSH,  10,      //18
+                ILT,            //20
+                JZ, 26,         //21 always taken
+                PUSH,  7,       //23 dead
+                PRINT,          //25
+                LOAD, 0,        //26 end:
+                CALL, 1,        //28
+                PRINT,          //30
+                PUSH,  Float.floatToIntBits(1.5f),  //31
+                PUSH,  Float.floatToIntBits(2f),    //33
+                FMUL,           //35
+                FPRINT,         //36
+                STOP,           //37
+        };
+        FunctionInfo[] functionTable = {new FunctionInfo("main", 0, 9), new FunctionInfo("f", 1, 3)};
+        result = ConstantFolder.optimize(code, functionTable);
+        assertArrayEquals(new int[]{
+                LOAD, 0, PUSH, 1, IADD, RET,
+                PUSH, 3, STORE, 0, JMP, 12,
+                LOAD, 0, CALL, 1, PRINT, PUSH, Float.floatToIntBits(3f), FPRINT, STOP}, result.code);
+        assertEquals(6, result.functionTable[0].address);
+        assertEquals(0, result.functionTable[1].address);
+        assertEquals(Map.of("end", 12), result.relocate(Map.of("end", 26, "dead", 23)));
+        assertEquals(3, result.folded);
+        assertEquals(1, result.propagated);
+        assertEquals(1, result.branchesResolved);
+        assertEquals(4, result.unreachable);
+        assertEquals(11, result.instructionsRemoved());
+
+        assertOutput("4" + System.lineSeparator() + "3.0", code, functionTable, null);
+        String expected = output.toString();
+        output.reset();
+        new NVM(result.code, result.functionTable, null, NVM.Engine.SWITCH, output).execute();
+        assertEquals(expected, output.toString());
+    }
+
+    @Test
+    void testConstantFolderKeepsEveryExampleRunning() throws IOException {
+        try (var examples = Files.list(Path.of("./examples"))) {
+            for (Path path : examples.sorted().toList()) {
+                Program program = Assembler.assemble(path);
+                ConstantFolder.Result result = ConstantFolder.optimize(program.code, program.functionTable);
+                Program folded = new Program(result.code, result.functionTable, program.stringPool,
+                        result.relocate(program.labels));
+                assertEquals(program.verified, folded.verified, path.toString());
+                output.reset();
+                new NVM(program, NVM.Engine.SWITCH, output).execute();
+                String expected = output.toString();
+                output.reset();
+                new NVM(folded, NVM.Engine.SWITCH, output).execute();
+                assertEquals(expected, output.toString(), path.toString());
+            }
+        }
+    }
+
+    @Test
+    void testInlinerCopiesSmallLeafFunctionsIntoTheirCallers() {
+        int[] code = {
+                LOAD, 0,        //0 avg(a, b)
+                LOAD, 1,        //2
+                IADD,           //4
+                PUSH,  2,       //5
+                IDIV,           //7
+                RET,            //8
+
+                PUSH,  150,     //9 MAIN
+                PUSH,  44,      //11
+                CALL, 1,        //13
+                PRINT,          //15
+                STOP,           //16
+        };
+        FunctionInfo[] functionTable = {new FunctionInfo("main", 0, 9), new FunctionInfo("avg", 2, 0)};
+        Inliner.Result result = Inliner.optimize(code, functionTable);
+        assertEquals(1, result.inlined);
+        assertArrayEquals(new int[]{
+                LOAD, 0, LOAD, 1, IADD, PUSH, 2, IDIV, RET,
+                PUSH, 150, PUSH, 44, STORE, 1, STORE, 0, LOAD, 0, LOAD, 1, IADD, PUSH, 2, IDIV, PRINT, STOP},
+                result.code);
+        assertEquals(9, result.functionTable[0].address);
+        assertEquals(0, Inliner.optimize(code, functionTable, 4).inlined);
+        // with the arguments stored as constants the whole call folds away
+        ConstantFolder.Result folded = ConstantFolder.optimize(result.code, result.functionTable);
+        String body = Arrays.toString(folded.code);
+        assertTrue(body.endsWith(PUSH + ", 97, " + PRINT + ", " + STOP + "]"), body);
+
+        // max(a, b) returns from two places and is called with a value below its arguments
+        code = new int[]{
+                LOAD, 0,        //0 max(a, b)
+                LOAD, 1,        //2
+                ILT,            //4
+                JZ, 10,         //5
+                LOAD, 1,        //7
+                RET,            //9
+                LOAD, 0,        //10
+                RET,            //12
+
+                LOAD, 0,        //13 twice(n) = n + max(n, 9), calls max so it stays
+                LOAD, 0,        //15
+                PUSH,  9,       //17
+                CALL, 1,        //19
+                IADD,           //21
+                RET,            //22
+
+                PUSH,  100,     //23 MAIN
+                PUSH,  3,       //25
+                PUSH,  9,       //27
+                CALL, 1,        //29
+                IADD,           //31
+                PRINT,          //32
+                PUSH,  12,      //33
+                CALL, 2,        //35
+                PRINT,          //37
+                STOP,           //38
+        };
+        functionTable = new FunctionInfo[]{
+                new FunctionInfo("main", 0, 23), new FunctionInfo("max", 2, 0), new FunctionInfo("twice", 1, 13)};
+        result = Inliner.optimize(code, functionTable);
+        assertEquals(2, result.inlined);
+        assertOutput("109" + System.lineSeparator() + "24", code, functionTable, null);
+        assertOutput("109" + System.lineSeparator() + "24", result.code, result.functionTable, null);
+        assertEquals(3, result.functionTable[2].frameSize);
+
+        // recursive functions make calls, so they are never inlined
+        code = new int[]{CALL, 1, STOP, PUSH, 1, CALL, 1, RET};
+        functionTable = new FunctionInfo[]{new FunctionInfo("main", 0, 0), new FunctionInfo("f", 0, 3)};
+        assertEquals(0, Inliner.optimize(code, functionTable).inlined);
+    }
+
+    @Test
+    void testRegisterCodeMatchesTheStackInterpreterOnEveryExample() throws IOException {
+        try (var examples = Files.list(Path.of("./examples"))) {
+            for (Path path : examples.sorted().toList()) {
+                Program program = Assembler.assemble(path);
+                PeepholeOptimizer.Result result = PeepholeOptimizer.optimize(program.code, program.functionTable);
+                Program fused = new Program(result.code, result.functionTable, program.stringPool, Map.of());
+                for (Program p : new Program[]{program, fused}) {
+                    assertNotNull(p.registerCode(), path.toString());
+                    output.reset();
+                    new NVM(p, NVM.Engine.SWITCH, output).execute();
+                    String expected = output.toString();
+                    output.reset();
+                    new NVM(p, NVM.Engine.REGISTER, output).execute();
+                    assertEquals(expected, output.toString(), path.toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testRegisterCodeFoldsLoadsAndStoresIntoOperands() throws IOException {
+        Program program = Assembler.assemble(Path.of("./examples/fib_loop.nbyte"));
+        String ir = Arrays.toString(program.registerCode().code);
+        // result = fib0 + fib1; fib0 = fib1; fib1 = result; i = i + 1
+        String body = Arrays.toString(new int[]{
+                RegisterCode.R_IADD, 2, 3, 4,
+                RegisterCode.R_MOVE, 3, 4,
+                RegisterCode.R_MOVE, 4, 2,
+                RegisterCode.R_IADDI, 1, 1, 1,
+                RegisterCode.R_JMP});
+        assertTrue(ir.contains(body.substring(1, body.length() - 1)), ir);
+        assertTrue(ir.contains(RegisterCode.R_ILT_JZ + ", 1, 0, "), ir);
+    }
+
+    @Test
+    void testCheckpointAndResumeOnAnotherEngine(@TempDir Path dir) throws IOException {
+        Program program = Program.parse("""
+                #code
+                main:0:0:
+                    PUSH 10
+                    NEW_ARRAY
+                    STORE 0         // squares
+                    PUSH 0
+                    ITOS
+                    STORE 1         // s = "0"
+                    PUSH 0
+                    STORE 2
+                loop:
+                    LOAD 2
+                    PUSH 10
+                    ILT
+                    JZ done
+                    LOAD 0          // squares[i] = i * i
+                    LOAD 2
+                    LOAD 2
+                    LOAD 2
+                    IMUL
+                    IASTORE
+                    LOAD 1          // s = s + i
+                    LOAD 2
+                    ITOS
+                    SCONCAT
+                    STORE 1
+                    LOAD 2
+                    PRINT
+                    LOAD 2
+                    PUSH 1
+                    IADD
+                    STORE 2
+                    JMP loop
+                done:
+                    LOAD 0
+                    IASUM
+                    PRINT
+                    LOAD 1
+                    SPRINT
+                    STOP
+                """);
+        new NVM(program, NVM.Engine.SWITCH, output).execute();
+        String expected = output.toString();
+
+        NVM.Engine[] engines = {NVM.Engine.SWITCH, NVM.Engine.THREADED, NVM.Engine.JIT};
+        for (int i = 0; i < engines.length; i++) {
+            MemoryOutputSink first = new MemoryOutputSink() {
+                @Override
+                public void printInt(int value) {
+                    super.printInt(value);
+                    if (value == 4) {
+                        vm.pause();
+                    }
+                }
+            };
+            vm = new NVM(program, engines[i], first);
+            vm.execute();
+            assertTrue(vm.isPaused(), engines[i].name());
+            Path file = dir.resolve("checkpoint." + i);
+            vm.checkpoint(file);
+
+            MemoryOutputSink rest = new MemoryOutputSink();
+            NVM resumed = NVM.resume(program, file, engines[(i + 1) % engines.length], rest);
+            resumed.execute();
+            assertEquals(expected, first + rest.toString(), engines[i].name());
+            assertTrue(first.toString().endsWith("4" + System.lineSeparator()));
+        }
+
+        IOException e = assertThrows(IOException.class, () -> NVM.resume(
+                Program.parse("#code\nmain:0:0:\nSTOP\n"), dir.resolve("checkpoint.0"), NVM.Engine.SWITCH, output));
+        assertTrue(e.getMessage().startsWith("Checkpoint of a different program"));
+    }
+
+    @Test
+    void testArraysOnEveryEngine() throws IOException {
+        Program program = Assembler.assemble(Path.of("./examples/sieve.nbyte"));
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            output.reset();
+            vm = new NVM(program, engine, output);
+            vm.execute();
+            assertEquals("1229" + System.lineSeparator(), output.toString(), engine.name());
+        }
+
+        Program floats = Program.parse("""
+                #code
+                main:0:0:
+                    PUSH 2
+                    NEW_ARRAY
+                    STORE 0
+                    LOAD 0
+                    PUSH 1
+                    PUSH 2.5
+                    FASTORE
+                    LOAD 0
+                    PUSH 1
+                    ALOAD
+                    FPRINT
+                    LOAD 0
+                    PUSH 2
+                    ALOAD
+                    STOP
+                """);
+        vm = new NVM(floats, NVM.Engine.SWITCH, output);
+        output.reset();
+        IndexOutOfBoundsException e = assertThrows(IndexOutOfBoundsException.class, vm::execute);
+        assertEquals("2.5" + System.lineSeparator(), output.toString());
+        assertEquals("Index 2 out of bounds for length 2", e.getMessage());
+    }
+
+    @Test
+    void testArrayHeapCollectsUnreachableArrays() {
+        ArrayHeap heap = new ArrayHeap(16);
+        int garbage = heap.allocate(8);
+        int kept = heap.allocate(4);
+        int inner = heap.allocate(2);
+        heap.store(kept, 1, inner);
+        heap.storeFloat(kept, 3, 1.5f);
+        heap.store(inner, 0, 42);
+
+        heap.collect(new int[]{7, kept}, 1, new int[0], 0);
+        assertEquals(2, heap.liveArrays());
+        assertEquals(1, heap.reclaimed());
+        assertEquals(42, heap.load(heap.load(kept, 1), 0));
+        assertEquals(1.5f, Float.intBitsToFloat(heap.load(kept, 3)));
+        assertThrows(IllegalArgumentException.class, () -> heap.load(garbage, 0));
+        assertThrows(IndexOutOfBoundsException.class, () -> heap.load(kept, 4));
+        assertTrue(heap.allocate(1) != garbage);
+
+        // 1000 arrays of 100 elements, one live at a time, in a 256 element heap
+        Program program = Program.parse("""
+                #code
+                main:0:0:
+                    PUSH 0
+                    STORE 1
+                loop:
+                    LOAD 1
+                    PUSH 1000
+                    ILT
+                    JZ done
+                    PUSH 100
+                    NEW_ARRAY
+                    STORE 0
+                    LOAD 0
+                    PUSH 99
+                    LOAD 1
+                    IASTORE
+                    LOAD 1
+                    PUSH 1
+                    IADD
+                    STORE 1
+                    JMP loop
+                done:
+                    LOAD 0
+                    PUSH 99
+                    ALOAD
+                    PRINT
+                    STOP
+                """);
+        output.reset();
+        vm = new NVM(program, NVM.Engine.THREADED, output);
+        vm.heapCapacity = 256;
+        vm.execute();
+        assertEquals("999" + System.lineSeparator(), output.toString());
+        assertTrue(vm.heap().collections() > 0);
+        assertTrue(vm.heap().liveArrays() <= 3);
+    }
+
+    @Test
+    void testBulkArrayInstructions() {
+        Program program = Program.parse("""
+                #code
+                main:0:0:
+                    PUSH 37         // a = [3] * 37, b = [2] * 37
+                    NEW_ARRAY
+                    STORE 0
+                    LOAD 0
+                    PUSH 3
+                    AFILL
+                    PUSH 37
+                    NEW_ARRAY
+                    STORE 1
+                    LOAD 1
+                    PUSH 2
+                    AFILL
+                    PUSH 37         // c = (a + b) * a
+                    NEW_ARRAY
+                    STORE 2
+                    LOAD 2
+                    LOAD 0
+                    LOAD 1
+                    IAADD
+                    LOAD 2
+                    LOAD 2
+                    LOAD 0
+                    IAMUL
+                    LOAD 2
+                    IASUM
+                    PRINT
+                    LOAD 0
+                    LOAD 1
+                    IADOT
+                    PRINT
+                    LOAD 0          // a = [1.5] * 37, b = [0.5] * 37, a = (a + b) * b
+                    PUSH 1.5
+                    AFILL
+                    LOAD 1
+                    PUSH 0.5
+                    AFILL
+                    LOAD 0
+                    LOAD 0
+                    LOAD 1
+                    FAADD
+                    LOAD 0
+                    LOAD 0
+                    LOAD 1
+                    FAMUL
+                    LOAD 0
+                    FASUM
+                    FPRINT
+                    LOAD 0
+                    LOAD 1
+                    FADOT
+                    FPRINT
+                    STOP
+                """);
+        assertTrue(ArrayKernels.DEFAULT instanceof VectorKernels);
+        String expected = String.join(System.lineSeparator(), "555", "222", "37.0", "18.5", "");
+        for (ArrayKernels kernels : new ArrayKernels[]{ArrayKernels.SCALAR, ArrayKernels.DEFAULT}) {
+            for (NVM.Engine engine : new NVM.Engine[]{NVM.Engine.SWITCH, NVM.Engine.THREADED}) {
+                output.reset();
+                vm = new NVM(program, engine, output);
+                vm.heap().kernels = kernels;
+                vm.execute();
+                assertEquals(expected, output.toString(), kernels.getClass().getSimpleName() + " " + engine);
+            }
+        }
+
+        ArrayHeap heap = new ArrayHeap(64);
+        int a = heap.allocate(3);
+        int b = heap.allocate(4);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> heap.intDot(a, b));
+        assertEquals("Array lengths differ: 3 and 4", e.getMessage());
+    }
+
+    @Test
+    void testStringInstructions() throws IOException {
+        Program program = Assembler.assemble(Path.of("./examples/strings.nbyte"));
+        assertArrayEquals(new String[]{",", "length: "}, program.constants);
+        String expected = String.join(System.lineSeparator(), "0,1,2,3,4,5,6,7,8,9", "length: 19", "1,2", "1", "");
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            output.reset();
+            vm = new NVM(program, engine, output);
+            vm.execute();
+            assertEquals(expected, output.toString(), engine.name());
+            // the loop writes every char once, the length line copies its constant
+            assertEquals("0,1,2,3,4,5,6,7,8,9".length() + "19".length() + "length: 19".length(), vm.strings().used(),
+                    engine.name());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BufferedOutputSink sink = new BufferedOutputSink(bytes, StandardCharsets.UTF_8);
+        sink.printChars("[ascii, é]".toCharArray(), 1, 5);
+        sink.printChars("[ascii, é]".toCharArray(), 8, 1);
+        sink.flush();
+        assertEquals("ascii" + System.lineSeparator() + "é" + System.lineSeparator(), bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testStringHeapCollectsGarbage() {
+        Program program = Program.parse("""
+                #constants
+                0:","
+                1:"x"
+
+                #code
+                main:0:0:
+                    PUSH 0
+                    ITOS
+                    STORE 0
+                    PUSH 1
+                    STORE 1
+                loop:
+                    LOAD 1
+                    PUSH 300
+                    ILT
+                    JZ done
+                    LOAD 0
+                    LDC 0
+                    SCONCAT
+                    LOAD 1
+                    ITOS
+                    SCONCAT
+                    STORE 0
+                    LDC 1
+                    LOAD 0
+                    SCONCAT
+                    STORE 2
+                    LOAD 1
+                    PUSH 1
+                    IADD
+                    STORE 1
+                    JMP loop
+                done:
+                    LOAD 0
+                    SPRINT
+                    LOAD 2
+                    PUSH 1
+                    PUSH 4
+                    SSUB
+                    SPRINT
+                    STOP
+                """);
+        StringBuilder s = new StringBuilder("0");
+        for (int i = 1; i < 300; i++) {
+            s.append(',').append(i);
+        }
+        vm = new NVM(program, NVM.Engine.THREADED, output);
+        vm.stringCapacity = 256;
+        vm.execute();
+        assertEquals(s + System.lineSeparator() + "0,1" + System.lineSeparator(), output.toString());
+        assertTrue(vm.strings().collections() > 0);
+        // without collections the copies into local 2 alone would take 150 times that
+        assertTrue(vm.strings().used() < 10 * s.length());
+        assertThrows(IllegalArgumentException.class, () -> vm.strings().length(-1));
+    }
 
     @Test
     void readFromFileFibonacciRecursive() throws IOException {
@@ -178,15 +1586,36 @@ class NVMTest {
     }
 
 
+    private static String expectedOutput(String example) {
+        return switch (example) {
+            case "fibonacci_recursive" -> "28657";
+            case "factorial_recursive", "factorial_loop" -> "120";
+            case "fib_loop" -> "14930352";
+            default -> throw new IllegalArgumentException(example);
+        };
+    }
+
     private void executeFromFile(String filePath, String expected) throws IOException {
         String s = Files.readString(Path.of(filePath));
         BytecodeLexer lexer = new BytecodeLexer();
         lexer.parseCode(s);
 
-        int[] bytecode = lexer.getBytecode();
-        NVM vm = new NVM(bytecode, lexer.functionTable, lexer.getStringPool());
-        vm.execute();
-        assertEquals(expected + System.lineSeparator(), outputStream.toString());
+        assertOutput(expected, lexer.getBytecode(), lexer.functionTable, lexer.getStringPool());
+    }
+
+    private void assertOutput(String expected, int[] code, FunctionInfo[] functionTable, Map<Integer, String> stringPool) {
+        PeepholeOptimizer.Result fused = PeepholeOptimizer.optimize(code, functionTable);
+        for (NVM.Engine engine : NVM.Engine.values()) {
+            output.reset();
+            vm = new NVM(code, functionTable, stringPool, engine, output);
+            vm.execute();
+            assertEquals(expected + System.lineSeparator(), output.toString(), engine.name());
+
+            output.reset();
+            vm = new NVM(fused.code, fused.functionTable, stringPool, engine, output);
+            vm.execute();
+            assertEquals(expected + System.lineSeparator(), output.toString(), engine.name() + " fused");
+        }
     }
 
 }
\ No newline at end of file